@@ -36,7 +36,11 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.PathFilter;
 import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RunningJob;
+import org.apache.hadoop.mapred.TIPStatus;
+import org.apache.hadoop.mapred.TaskReport;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.log4j.Logger;
 
@@ -228,6 +232,71 @@ public class AvroUtils
     job.waitForCompletion(true);
   }
   
+  /**
+   * Run an avro hadoop job until at least the given fraction of its reduce tasks (map
+   * tasks for a map-only job) have completed, then kill the other tasks. The output of
+   * the completed tasks is kept. Returns once the job is complete, so that no task can
+   * still commit its output afterwards.
+   * @param conf
+   * @param fraction
+   * @param pollMillis how often the task reports are checked
+   * @return the number of tasks that did not complete
+   * @throws Exception
+   */
+  public static int runAvroJob(JobConf conf, double fraction, long pollMillis) throws Exception
+  {
+    Path[] inputPaths = AvroInputFormat.getInputPaths(conf);
+    _log.info("Running hadoop job with input paths:");
+    for (Path inputPath : inputPaths)
+    {
+      _log.info(inputPath);
+    }
+    _log.info("Output path="+AvroOutputFormat.getOutputPath(conf));
+    conf.setJarByClass(AvroUtils.class);
+    JobClient client = new JobClient(conf);
+    RunningJob job = client.submitJob(conf);
+    boolean mapOnly = (conf.getNumReduceTasks() == 0);
+    while (!job.isComplete())
+    {
+      TaskReport[] reports =
+          (mapOnly ? client.getMapTaskReports(job.getID()) : client.getReduceTaskReports(job.getID()));
+      int completed = countCompleted(reports);
+      if (reports.length > 0 && completed < reports.length
+          && completed >= Math.ceil(fraction * reports.length))
+      {
+        _log.info(completed + " of " + reports.length + " tasks have completed, killing the others");
+        job.killJob();
+        // killJob() only asks for the kill, a task may still complete in the meantime
+        while (!job.isComplete())
+        {
+          Thread.sleep(pollMillis);
+        }
+        reports =
+            (mapOnly ? client.getMapTaskReports(job.getID()) : client.getReduceTaskReports(job.getID()));
+        return reports.length - countCompleted(reports);
+      }
+      Thread.sleep(pollMillis);
+    }
+    if (!job.isSuccessful())
+    {
+      throw new IOException("Job " + job.getID() + " failed!");
+    }
+    return 0;
+  }
+  
+  private static int countCompleted(TaskReport[] reports)
+  {
+    int completed = 0;
+    for (TaskReport report : reports)
+    {
+      if (report.getCurrentStatus() == TIPStatus.COMPLETE)
+      {
+        completed++;
+      }
+    }
+    return completed;
+  }
+
   /**
    * Obtain a DataFileStream given a conf and path
    * @param conf
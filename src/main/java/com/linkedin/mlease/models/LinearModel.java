@@ -739,6 +739,48 @@ public class LinearModel
     return maxabs;
   }
 
+  /**
+   * Returns the inner product of this model and y, including the intercept
+   * 
+   * @param y
+   * @return
+   */
+  public double dot(LinearModel y)
+  {
+    double sum = _intercept * y.getIntercept();
+    Map<String, Double> small = _coefficients;
+    Map<String, Double> large = y.getCoefficients();
+    if (small.size() > large.size())
+    {
+      small = y.getCoefficients();
+      large = _coefficients;
+    }
+    for (String k : small.keySet())
+    {
+      Double v = large.get(k);
+      if (v != null)
+      {
+        sum += small.get(k) * v;
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * Returns the squared L2 norm of this model, including the intercept
+   * 
+   * @return
+   */
+  public double squaredNorm()
+  {
+    double sum = _intercept * _intercept;
+    for (double v : _coefficients.values())
+    {
+      sum += v * v;
+    }
+    return sum;
+  }
+
   /**
    * Filter out coefficients that contains String key in the coefficients
    * 
@@ -0,0 +1,343 @@
+/**
+ * Copyright 2014 LinkedIn Corp. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.linkedin.mlease.models;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.avro.generic.GenericData;
+
+import com.linkedin.mlease.utils.Util;
+
+/**
+ * ScoringBatch keeps a set of test instances decoded once, with the feature names interned
+ * to ids, so that the test log-likelihood of many models can be computed repeatedly
+ * without decoding Avro records or building "name\u0001term" keys again.
+ * <p>
+ * The instances are added with add() up to the capacity; when sampling is on, the later
+ * ones replace earlier ones so that the batch is a uniform (reservoir) sample of all the
+ * instances added. finish() packs them in CSR form before scoring.
+ *
+ */
+public final class ScoringBatch
+{
+  private final boolean              _ignoreValue;
+  private final int                  _capacity;
+  private final Random               _random;
+  private long                       _seen         = 0;
+  private Map<String, Integer>       _featureIds   = new HashMap<String, Integer>();
+  private final List<String>         _featureNames = new ArrayList<String>();
+  // the instances until finish()
+  private List<Row>                  _rows         = new ArrayList<Row>();
+  // CSR form after finish()
+  private int[]                      _rowStart;
+  private int[]                      _ids;
+  private double[]                   _values;
+  private boolean[]                  _positive;
+  private double[]                   _offsets;
+  private double[]                   _weights;
+  private double                     _sumWeight;
+
+  private static final class Row
+  {
+    int[]    ids;
+    double[] values;
+    boolean  positive;
+    double   offset;
+    double   weight;
+  }
+
+  /**
+   * @param ignoreValue the feature values are taken as 1
+   * @param capacity the maximum number of instances
+   * @param sampling if true, a uniform sample of all the instances added is kept, using
+   *          the given seed; if false the first capacity instances are kept
+   * @param seed
+   */
+  public ScoringBatch(boolean ignoreValue, int capacity, boolean sampling, long seed)
+  {
+    _ignoreValue = ignoreValue;
+    _capacity = capacity;
+    _random = (sampling ? new Random(seed) : null);
+  }
+
+  /**
+   * Adds an instance in the format of RegressionPrepareOutput or of the test data. Returns
+   * false if the batch is full and does not sample, i.e. the caller can stop adding.
+   *
+   * @param input
+   * @return
+   * @throws IOException
+   */
+  public boolean add(GenericData.Record input) throws IOException
+  {
+    if (_rows == null)
+    {
+      throw new IOException("Cannot add instances after finish()");
+    }
+    int slot = _rows.size();
+    if (slot >= _capacity)
+    {
+      if (_random == null)
+      {
+        return false;
+      }
+      // reservoir sampling: the (seen+1)-th instance is kept with probability capacity/(seen+1)
+      long j = (long) (_random.nextDouble() * (_seen + 1));
+      _seen++;
+      if (j >= _capacity)
+      {
+        return true;
+      }
+      slot = (int) j;
+    }
+    else
+    {
+      _seen++;
+    }
+    Row row = new Row();
+    int y = Util.getResponseAvro(input);
+    if (y != 1 && y != 0 && y != -1)
+      throw new IOException("response = " + y);
+    row.positive = (y == 1);
+    row.offset = 0;
+    if (input.get("offset") != null)
+      row.offset = Util.getDoubleAvro(input, "offset");
+    row.weight = 1;
+    if (input.get("weight") != null)
+      row.weight = Util.getDoubleAvro(input, "weight");
+    Object temp = input.get("features");
+    if (temp == null)
+      throw new IOException("features is null");
+    if (!(temp instanceof List))
+      throw new IOException("features is not a list");
+    List<?> features = (List<?>) temp;
+    int m = features.size();
+    row.ids = new int[m];
+    row.values = (_ignoreValue ? null : new double[m]);
+    for (int i = 0; i < m; i++)
+    {
+      temp = features.get(i);
+      if (!(temp instanceof GenericData.Record))
+        throw new IOException("features[" + i + "] is not a Avro Record");
+      GenericData.Record feature = (GenericData.Record) temp;
+      String name = Util.getStringAvro(feature, "name", false);
+      String term = Util.getStringAvro(feature, "term", true);
+      if (!"".equals(term))
+        name = name + "\u0001" + term;
+      Integer id = _featureIds.get(name);
+      if (id == null)
+      {
+        id = _featureNames.size();
+        _featureIds.put(name, id);
+        _featureNames.add(name);
+      }
+      row.ids[i] = id;
+      if (!_ignoreValue)
+        row.values[i] = Util.getDoubleAvro(feature, "value");
+    }
+    if (slot == _rows.size())
+    {
+      _rows.add(row);
+    }
+    else
+    {
+      _rows.set(slot, row);
+    }
+    return true;
+  }
+
+  /**
+   * Packs the instances, no instance can be added afterwards.
+   */
+  public void finish()
+  {
+    if (_rows == null)
+    {
+      return;
+    }
+    int n = _rows.size();
+    int nnz = 0;
+    for (Row row : _rows)
+    {
+      nnz += row.ids.length;
+    }
+    _rowStart = new int[n + 1];
+    _ids = new int[nnz];
+    _values = (_ignoreValue ? null : new double[nnz]);
+    _positive = new boolean[n];
+    _offsets = new double[n];
+    _weights = new double[n];
+    _sumWeight = 0;
+    int k = 0;
+    for (int r = 0; r < n; r++)
+    {
+      Row row = _rows.get(r);
+      _rowStart[r] = k;
+      System.arraycopy(row.ids, 0, _ids, k, row.ids.length);
+      if (!_ignoreValue)
+      {
+        System.arraycopy(row.values, 0, _values, k, row.values.length);
+      }
+      k += row.ids.length;
+      _positive[r] = row.positive;
+      _offsets[r] = row.offset;
+      _weights[r] = row.weight;
+      _sumWeight += row.weight;
+    }
+    _rowStart[n] = k;
+    _rows = null;
+    _featureIds = null;
+  }
+
+  /**
+   * Number of instances in the batch
+   */
+  public int size()
+  {
+    return (_rows != null ? _rows.size() : _positive.length);
+  }
+
+  /**
+   * The offset of the r-th instance after finish()
+   */
+  double getOffset(int r)
+  {
+    return _offsets[r];
+  }
+
+  /**
+   * Number of instances added, including the ones not kept
+   */
+  public long getNumSeen()
+  {
+    return _seen;
+  }
+
+  /**
+   * Returns the weighted mean of the test log-likelihood of model, as
+   * LinearModel.evalInstanceAvro does for each instance.
+   *
+   * @param model
+   * @param num_click_replicates
+   * @return
+   */
+  public double loglik(LinearModel model, int num_click_replicates)
+  {
+    if (_rows != null)
+    {
+      throw new IllegalStateException("Cannot score before finish()");
+    }
+    // project the model on the feature ids of the batch
+    double[] beta = new double[_featureNames.size()];
+    Map<String, Double> coefficients = model.getCoefficients();
+    for (int j = 0; j < beta.length; j++)
+    {
+      Double v = coefficients.get(_featureNames.get(j));
+      beta[j] = (v == null ? 0 : v);
+    }
+    double intercept =
+        -Math.log(num_click_replicates - 1 + num_click_replicates
+            * Math.exp(-model.getIntercept()));
+    double sum = 0;
+    for (int r = 0; r < _positive.length; r++)
+    {
+      // summed in the order of evalInstanceAvro
+      double xbeta = intercept;
+      for (int k = _rowStart[r]; k < _rowStart[r + 1]; k++)
+      {
+        xbeta += (_ignoreValue ? beta[_ids[k]] : beta[_ids[k]] * _values[k]);
+      }
+      xbeta = _offsets[r] + xbeta;
+      if (_positive[r])
+      {
+        sum -= Math.log1p(Math.exp(-xbeta)) * _weights[r];
+      }
+      else
+      {
+        sum -= Math.log1p(Math.exp(xbeta)) * _weights[r];
+      }
+    }
+    return sum / _sumWeight;
+  }
+
+  /**
+   * Returns the loglik of each model, scoring up to numThreads models at a time
+   *
+   * @param models
+   * @param num_click_replicates
+   * @param numThreads
+   * @return
+   * @throws IOException
+   */
+  public Map<String, Double> loglik(Map<String, LinearModel> models,
+                                    final int num_click_replicates,
+                                    int numThreads) throws IOException
+  {
+    Map<String, Double> result = new HashMap<String, Double>();
+    if (numThreads <= 1 || models.size() <= 1)
+    {
+      for (String k : models.keySet())
+      {
+        result.put(k, loglik(models.get(k), num_click_replicates));
+      }
+      return result;
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(Math.min(numThreads, models.size()));
+    try
+    {
+      Map<String, Future<Double>> futures = new HashMap<String, Future<Double>>();
+      for (String k : models.keySet())
+      {
+        final LinearModel model = models.get(k);
+        futures.put(k, pool.submit(new Callable<Double>()
+        {
+          @Override
+          public Double call()
+          {
+            return loglik(model, num_click_replicates);
+          }
+        }));
+      }
+      for (String k : futures.keySet())
+      {
+        result.put(k, futures.get(k).get());
+      }
+    }
+    catch (InterruptedException e)
+    {
+      throw new IOException("Test loglik interrupted!", e);
+    }
+    catch (ExecutionException e)
+    {
+      throw new IOException("Test loglik error!", e.getCause());
+    }
+    finally
+    {
+      pool.shutdown();
+    }
+    return result;
+  }
+}
@@ -33,6 +33,13 @@ public class MeanLinearModelConsumer implements AvroConsumer<Map<String, LinearM
   private int                      _counter      = 0;
   private boolean                  _done         = false;
   private int                      _nblocks;
+  // sum of the squared norms of the models of each lambda
+  private Map<String, Double>      _sumSquaredNorm = new HashMap<String, Double>();
+  // number of partitions each feature appears in, counted on the models of one lambda
+  private Map<String, Integer>     _featureCounts = null;
+  private String                   _countedLambda = null;
+  // sum of the uSquaredNorm of the records of each lambda, for the ones that have it
+  private Map<String, Double>      _uSumSquaredNorm = new HashMap<String, Double>();
   public static final String       INTERCEPT_KEY = "(INTERCEPT)";
 
   public MeanLinearModelConsumer(int nblocks)
@@ -40,6 +47,20 @@ public class MeanLinearModelConsumer implements AvroConsumer<Map<String, LinearM
     _nblocks = nblocks;
   }
 
+  /**
+   * @param nblocks
+   * @param countFeatures also count the number of models each feature appears in, see
+   *          getFeatureCounts()
+   */
+  public MeanLinearModelConsumer(int nblocks, boolean countFeatures)
+  {
+    _nblocks = nblocks;
+    if (countFeatures)
+    {
+      _featureCounts = new HashMap<String, Integer>();
+    }
+  }
+
   @Override
   public void consume(Object value)
   {
@@ -60,6 +81,30 @@ public class MeanLinearModelConsumer implements AvroConsumer<Map<String, LinearM
             new LinearModel(INTERCEPT_KEY, (List<?>) record.get("model"));
         model.linearCombine(1.0, 1.0 / nblocks, newmodel);
         _result.put(lambda, model);
+        Double sum = _sumSquaredNorm.get(lambda);
+        _sumSquaredNorm.put(lambda, (sum == null ? 0 : sum) + newmodel.squaredNorm());
+        if (record.get("uSquaredNorm") != null)
+        {
+          Double usum = _uSumSquaredNorm.get(lambda);
+          _uSumSquaredNorm.put(lambda, (usum == null ? 0 : usum)
+              + ((Number) record.get("uSquaredNorm")).doubleValue());
+        }
+        if (_featureCounts != null)
+        {
+          // every lambda is fitted on the same partitions, one is enough
+          if (_countedLambda == null)
+          {
+            _countedLambda = lambda;
+          }
+          if (_countedLambda.equals(lambda))
+          {
+            for (String k : newmodel.getCoefficients().keySet())
+            {
+              Integer count = _featureCounts.get(k);
+              _featureCounts.put(k, (count == null ? 1 : count + 1));
+            }
+          }
+        }
         _counter++;
       }
       catch (IOException e)
@@ -90,6 +135,41 @@ public class MeanLinearModelConsumer implements AvroConsumer<Map<String, LinearM
     throw new IllegalStateException("Cannot call get before done");
   }
 
+  public Map<String, Double> getSumSquaredNorm() throws IllegalStateException
+  {
+    if (_done)
+    {
+      return _sumSquaredNorm;
+    }
+    throw new IllegalStateException("Cannot call get before done");
+  }
+
+  /**
+   * Sum of the uSquaredNorm field of the records of each lambda, empty when the records do
+   * not have it
+   */
+  public Map<String, Double> getUSumSquaredNorm() throws IllegalStateException
+  {
+    if (_done)
+    {
+      return _uSumSquaredNorm;
+    }
+    throw new IllegalStateException("Cannot call get before done");
+  }
+
+  /**
+   * Number of partitions each feature (but the intercept) appears in, null if the consumer
+   * does not count features
+   */
+  public Map<String, Integer> getFeatureCounts() throws IllegalStateException
+  {
+    if (_done)
+    {
+      return _featureCounts;
+    }
+    throw new IllegalStateException("Cannot call get before done");
+  }
+
   public int getCounter()
   {
     return _counter;
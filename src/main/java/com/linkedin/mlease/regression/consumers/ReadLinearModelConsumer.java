@@ -19,6 +19,7 @@ import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.avro.generic.GenericData;
 
@@ -36,6 +37,7 @@ public final class ReadLinearModelConsumer implements
   private String                   _lambdaStr;
   private int                      _partitionId;
   private int                      _nReducers;
+  private Set<String>              _keys;
 
   public ReadLinearModelConsumer()
   {
@@ -51,6 +53,15 @@ public final class ReadLinearModelConsumer implements
     _nReducers = nReducers;
   }
 
+  /**
+   * Only keeps the models of the given keys, the other records are not deserialized
+   */
+  public ReadLinearModelConsumer(Set<String> keys)
+  {
+    this();
+    _keys = keys;
+  }
+
   @Override
   public void consume(Object value)
   {
@@ -60,10 +71,14 @@ public final class ReadLinearModelConsumer implements
       if (record.get("key") != null && record.get("model") != null)
       {
         String partitionID = Util.getStringAvro(record, "key", false);
+        if (_keys != null && !_keys.contains(partitionID))
+        {
+          return;
+        }
         LinearModel model = new LinearModel(INTERCEPT_KEY, (List<?>) record.get("model"));
         if (_lambdaStr == null)
         {
-          _result.put(partitionID, model);
+          add(partitionID, model);
         }
         else
         {
@@ -87,6 +102,22 @@ public final class ReadLinearModelConsumer implements
     }
   }
 
+  /**
+   * A model can be split over several records of the same key, e.g. the shards written by
+   * the distributed z-update of RegressionAdmmTrain; their features are disjoint.
+   */
+  private void add(String key, LinearModel model)
+  {
+    LinearModel existing = _result.get(key);
+    if (existing == null)
+    {
+      _result.put(key, model);
+      return;
+    }
+    existing.getCoefficients().putAll(model.getCoefficients());
+    existing.setIntercept(existing.getIntercept() + model.getIntercept());
+  }
+
   @Override
   public void done()
   {
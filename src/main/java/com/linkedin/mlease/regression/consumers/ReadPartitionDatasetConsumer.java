@@ -0,0 +1,127 @@
+/**
+ * Copyright 2014 LinkedIn Corp. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.linkedin.mlease.regression.consumers;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.linkedin.mapred.AvroConsumer;
+import com.linkedin.mlease.regression.avro.RegressionPrepareOutput;
+import com.linkedin.mlease.regression.liblinearfunc.LibLinearBinaryDataset;
+import com.linkedin.mlease.regression.liblinearfunc.LibLinearDataset;
+
+/**
+ * Builds one LibLinearDataset per partition from the output of RegressionPrepare, where
+ * the partition id is the key of each record. The records have to be read as specific
+ * records. The datasets are finished on the first get(), so the same consumer can be
+ * built from several input paths.
+ */
+public final class ReadPartitionDatasetConsumer implements
+    AvroConsumer<Map<Integer, LibLinearDataset>>
+{
+  private Map<Integer, LibLinearDataset> _result = new HashMap<Integer, LibLinearDataset>();
+  private boolean                        _done   = false;
+  private boolean                        _binaryFeature;
+  private boolean                        _shortFeatureIndex;
+  private int                            _hashingBits;
+  private boolean                        _hashingCollisions;
+
+  public ReadPartitionDatasetConsumer(boolean binaryFeature, boolean shortFeatureIndex)
+  {
+    this(binaryFeature, shortFeatureIndex, 0, false);
+  }
+
+  /**
+   * @param hashingBits
+   *          when > 0, the datasets index the features by a hash of that many bits, see
+   *          LibLinearDataset.setFeatureHashing()
+   * @param hashingCollisions
+   *          whether the datasets count the hash collisions
+   */
+  public ReadPartitionDatasetConsumer(boolean binaryFeature,
+                                      boolean shortFeatureIndex,
+                                      int hashingBits,
+                                      boolean hashingCollisions)
+  {
+    _binaryFeature = binaryFeature;
+    _shortFeatureIndex = shortFeatureIndex;
+    _hashingBits = hashingBits;
+    _hashingCollisions = hashingCollisions;
+  }
+
+  @Override
+  public void consume(Object value)
+  {
+    RegressionPrepareOutput record = (RegressionPrepareOutput) value;
+    int partitionID = Integer.parseInt(record.key.toString());
+    try
+    {
+      LibLinearDataset dataset = _result.get(partitionID);
+      if (dataset == null)
+      {
+        if (_binaryFeature)
+        {
+          dataset = new LibLinearBinaryDataset(1.0, _shortFeatureIndex);
+        }
+        else
+        {
+          dataset = new LibLinearDataset(1.0);
+        }
+        if (_hashingBits > 0)
+        {
+          dataset.setFeatureHashing(_hashingBits, _hashingCollisions);
+        }
+        _result.put(partitionID, dataset);
+      }
+      dataset.addInstanceAvro(record);
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException("Failed to add the record to partition " + partitionID, e);
+    }
+  }
+
+  @Override
+  public void done()
+  {
+    _done = true;
+  }
+
+  @Override
+  public Map<Integer, LibLinearDataset> get() throws IllegalStateException
+  {
+    if (!_done)
+    {
+      throw new IllegalStateException("Cannot call get before done");
+    }
+    try
+    {
+      for (LibLinearDataset dataset : _result.values())
+      {
+        if (!dataset.isFinished())
+        {
+          dataset.finish();
+        }
+      }
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException("Failed to finish the partition datasets", e);
+    }
+    return _result;
+  }
+}
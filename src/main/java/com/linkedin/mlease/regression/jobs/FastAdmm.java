@@ -0,0 +1,140 @@
+/**
+ * Copyright 2014 LinkedIn Corp. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.linkedin.mlease.regression.jobs;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.linkedin.mlease.models.LinearModel;
+import com.linkedin.mlease.utils.Util;
+
+/**
+ * Momentum of fast ADMM with restart (Goldstein et al., Fast Alternating Direction
+ * Optimization Methods, 2014), kept for each lambda. After the z-update of iteration k, z
+ * and u are extrapolated as zhat = z_k + gamma * (z_k - z_{k-1}), and the same for u, where
+ * gamma = (a_k - 1) / a_{k+1} and a_{k+1} = (1 + sqrt(1 + 4 a_k^2)) / 2. When the combined
+ * residual c_k = rho * primal^2 + dual^2 / rho does not drop below eta * c_{k-1}, ADMM
+ * restarts from the previous iterates, zhat = z_{k-1} and uhat = u_{k-1}, with a_{k+1} = 1
+ * and c_k = c_{k-1} / eta (Algorithm 8 of the paper). This is gamma = -1 in the
+ * extrapolation.
+ */
+final class FastAdmm
+{
+  private static final Logger       _logger    = Logger.getLogger(FastAdmm.class);
+  private final double              _eta;
+  private final Map<String, Double> _a         = new HashMap<String, Double>();
+  private final Map<String, Double> _residual  = new HashMap<String, Double>();
+
+  FastAdmm(double eta)
+  {
+    _eta = eta;
+  }
+
+  /**
+   * Returns gamma for each lambda given the residuals of this iteration as computed by
+   * RegressionAdmmTrain.residuals() against the extrapolated z of the x-update, -1 for the
+   * lambdas that restart.
+   */
+  Map<String, Double> momentum(Map<String, double[]> residuals, Map<Float, Float> lambdaRho)
+  {
+    Map<String, Double> gamma = new HashMap<String, Double>();
+    for (String lambda : residuals.keySet())
+    {
+      double rho = lambdaRho.get(Float.parseFloat(lambda));
+      double primal = residuals.get(lambda)[0];
+      double dual = residuals.get(lambda)[1];
+      double c = rho * primal * primal + dual * dual / rho;
+      Double a = _a.get(lambda);
+      Double lastc = _residual.get(lambda);
+      if (a == null || c < _eta * lastc)
+      {
+        double ak = (a == null ? 1.0 : a);
+        double anext = (1 + Math.sqrt(1 + 4 * ak * ak)) / 2;
+        gamma.put(lambda, (ak - 1) / anext);
+        _a.put(lambda, anext);
+        _residual.put(lambda, c);
+      }
+      else
+      {
+        _logger.info("For lambda=" + lambda + ": restart fast ADMM, combined residual = "
+            + String.valueOf(c) + ", last combined residual = " + String.valueOf(lastc));
+        gamma.put(lambda, -1.0);
+        _a.put(lambda, 1.0);
+        _residual.put(lambda, lastc / _eta);
+      }
+    }
+    return gamma;
+  }
+
+  /**
+   * a_k of the lambda, null before its first iteration
+   */
+  Double getA(String lambda)
+  {
+    return _a.get(lambda);
+  }
+
+  /**
+   * c_k of the lambda, null before its first iteration
+   */
+  Double getResidual(String lambda)
+  {
+    return _residual.get(lambda);
+  }
+
+  /**
+   * Restores the state of a lambda from a checkpoint.
+   */
+  void restore(String lambda, double a, double residual)
+  {
+    _a.put(lambda, a);
+    _residual.put(lambda, residual);
+  }
+
+  /**
+   * Returns current + gamma * (current - previous) for each key of current, where gamma is
+   * looked up by the lambda of the key (0 if the lambda is not there) and a missing
+   * previous model is 0.
+   */
+  static Map<String, LinearModel> extrapolate(Map<String, LinearModel> current,
+                                              Map<String, LinearModel> previous,
+                                              Map<String, Double> gamma)
+  {
+    Map<String, LinearModel> result = new HashMap<String, LinearModel>();
+    for (String key : current.keySet())
+    {
+      Double g = gamma.get(Util.getLambda(key));
+      result.put(key, extrapolate(current.get(key), previous.get(key), (g == null ? 0 : g)));
+    }
+    return result;
+  }
+
+  static LinearModel extrapolate(LinearModel current, LinearModel previous, double gamma)
+  {
+    LinearModel result = current.copy();
+    if (gamma != 0)
+    {
+      result.linearCombine(1.0, gamma, current);
+      if (previous != null)
+      {
+        result.linearCombine(1.0, -gamma, previous);
+      }
+    }
+    return result;
+  }
+}
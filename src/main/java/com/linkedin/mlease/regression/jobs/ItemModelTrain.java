@@ -98,6 +98,7 @@ public class ItemModelTrain extends AbstractAvroJob
                       Pair.getPairSchema(Schema.create(Type.STRING),
                                          RegressionPrepareOutput.SCHEMA$),
                       LinearModelWithVarAvro.SCHEMA$);
+    RegressionPrepareDataModel.setDataModel(conf);
     // set up conf
     String interceptPriorMeanMap = props.getString(INTERCEPT_PRIOR_MEAN_MAP,"");
     if (!interceptPriorMeanMap.equals(""))
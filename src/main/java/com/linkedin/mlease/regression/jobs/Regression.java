@@ -22,12 +22,17 @@ import org.apache.log4j.Logger;
 
 import com.linkedin.mapred.AbstractAvroJob;
 import com.linkedin.mapred.JobConfig;
+import com.linkedin.mlease.utils.Util;
 
 public class Regression extends AbstractAvroJob
 {
   private static final Logger _log = Logger.getLogger(Regression.class);
   public static final String OUTPUT_BASE_PATH        = "output.base.path";
   public static final String TEST_PATH               = "test.path";
+  // run the ADMM iterations in this JVM (RegressionAdmmLocalTrain) instead of as MapReduce jobs
+  public static final String LOCAL_TRAIN             = "local.train";
+  // continue the ADMM iterations of an earlier run of the same output.base.path
+  public static final String RESUME                  = "resume";
   public Regression(String jobId, JobConfig config)
   {
     super(jobId, config);
@@ -39,24 +44,46 @@ public class Regression extends AbstractAvroJob
     JobConfig config = super.getJobConfig();
     Path outBasePath = new Path(config.get(OUTPUT_BASE_PATH));
     JobConf conf = super.createJobConf();
-    if (config.getBoolean("force.output.overwrite", false))
+    FileSystem fs = outBasePath.getFileSystem(conf);
+    boolean resume = config.getBoolean(RESUME, false);
+    if (config.getBoolean(LOCAL_TRAIN, false))
+    {
+      // fail before anything is deleted or prepared
+      RegressionAdmmLocalTrain.readOptions(config);
+    }
+    if (config.getBoolean("force.output.overwrite", false) && !resume)
     {
-      FileSystem fs = outBasePath.getFileSystem(conf);
       fs.delete(outBasePath, true);
     }
     
     String prepareOutputPath = outBasePath + "/tmp-data";
-    // first run the preparation job
-    JobConfig configPrepare = JobConfig.clone(config);
-    configPrepare.put(AbstractAvroJob.OUTPUT_PATH, prepareOutputPath);
-    RegressionPrepare regressionPrepareJob = new RegressionPrepare("Regression-Prepare", 
-                                                                   configPrepare);
-    regressionPrepareJob.run();
+    // first run the preparation job, unless a resumed run has its output already
+    Path preparePath = new Path(prepareOutputPath);
+    if (resume && fs.exists(preparePath) && !Util.findPartFiles(conf, preparePath).isEmpty())
+    {
+      _log.info("Resuming with the prepared data in " + prepareOutputPath);
+    }
+    else
+    {
+      JobConfig configPrepare = JobConfig.clone(config);
+      configPrepare.put(AbstractAvroJob.OUTPUT_PATH, prepareOutputPath);
+      RegressionPrepare regressionPrepareJob = new RegressionPrepare("Regression-Prepare", 
+                                                                     configPrepare);
+      regressionPrepareJob.run();
+    }
     
     // now start running the regression train using admm
     JobConfig configTrain = JobConfig.clone(config);
     configTrain.put(AbstractAvroJob.INPUT_PATHS, prepareOutputPath);
-    RegressionAdmmTrain regressionAdmmTrainJob = new RegressionAdmmTrain("Regression-Admm-Train", configTrain);
+    AbstractAvroJob regressionAdmmTrainJob;
+    if (config.getBoolean(LOCAL_TRAIN, false))
+    {
+      regressionAdmmTrainJob = new RegressionAdmmLocalTrain("Regression-Admm-Local-Train", configTrain);
+    }
+    else
+    {
+      regressionAdmmTrainJob = new RegressionAdmmTrain("Regression-Admm-Train", configTrain);
+    }
     regressionAdmmTrainJob.run();
     
     // now test
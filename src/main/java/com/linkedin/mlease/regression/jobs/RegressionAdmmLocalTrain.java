@@ -0,0 +1,549 @@
+/**
+ * Copyright 2014 LinkedIn Corp. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.linkedin.mlease.regression.jobs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.mutable.MutableFloat;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.log4j.Logger;
+
+import com.linkedin.mapred.AbstractAvroJob;
+import com.linkedin.mapred.AvroHdfsFileReader;
+import com.linkedin.mapred.JobConfig;
+import com.linkedin.mlease.models.LinearModel;
+import com.linkedin.mlease.models.ScoringBatch;
+import com.linkedin.mlease.regression.consumers.ReadPartitionDatasetConsumer;
+import com.linkedin.mlease.regression.liblinearfunc.LibLinear;
+import com.linkedin.mlease.regression.liblinearfunc.LibLinearDataset;
+import com.linkedin.mlease.utils.LinearModelUtils;
+import com.linkedin.mlease.utils.Util;
+
+/**
+ * Runs the same ADMM as RegressionAdmmTrain inside a single JVM. The partitions written
+ * by RegressionPrepare are loaded into memory once, the x-update of every
+ * (lambda, partition) pair runs on a thread pool and z and u are updated in memory. It
+ * writes the same final-model, best-model and sample-test-loglik outputs.
+ */
+public class RegressionAdmmLocalTrain extends AbstractAvroJob
+{
+  public static final Logger _logger                 = Logger.getLogger(RegressionAdmmLocalTrain.class);
+
+  public RegressionAdmmLocalTrain(String jobId, JobConfig config)
+  {
+    super(jobId, config);
+  }
+
+  @Override
+  public void run() throws Exception
+  {
+    _logger.info("Now running Regression Train using in-process ADMM...");
+    JobConfig props = super.getJobConfig();
+    String outBasePath = props.getString(RegressionAdmmTrain.OUTPUT_BASE_PATH);
+    JobConf conf = super.createJobConf();
+
+    // Various configs
+    RegressionAdmmTrain.AdmmOptions options = readOptions(props);
+    FastAdmm fast = new FastAdmm(options.fastAdmmRestartEta);
+    boolean shortFeatureIndex = props.getBoolean(RegressionAdmmTrain.SHORT_FEATURE_INDEX, false);
+    int hashingBits = props.getInt(RegressionAdmmTrain.FEATURE_HASHING_BITS, 0);
+    boolean hashingCollisions = props.getBoolean(RegressionAdmmTrain.FEATURE_HASHING_COLLISIONS, false);
+    double epsilon = props.getDouble(RegressionAdmmTrain.EPSILON, 0.0001);
+    // number of threads running the x-updates, default is the number of available processors
+    int nthreads = props.getInt(RegressionAdmmTrain.NUM_THREADS, Runtime.getRuntime().availableProcessors());
+    // lambdas that have converged under residual.stopping, they are not fitted any more
+    Set<String> converged = new HashSet<String>();
+    // lambdas dropped by successive halving, they are not fitted any more either
+    Set<String> dropped = new HashSet<String>();
+
+    // lambda, rho and z
+    Map<Float, Float> lambdaRho = RegressionAdmmTrain.readLambdaRho(props);
+    List<Float> lambdas = new ArrayList<Float>(lambdaRho.keySet());
+    Collections.sort(lambdas);
+    Map<String, LinearModel> z = new HashMap<String, LinearModel>();
+    for (Float lambda : lambdas)
+    {
+      z.put(String.valueOf(lambda), new LinearModel());
+    }
+    Map<String, Float> lambdaMap =
+        RegressionAdmmTrain.readLambdaMap(conf, props.getString(RegressionAdmmTrain.LAMBDA_MAP, ""));
+
+    String testPath =
+        RegressionAdmmTrain.getSampleTestPath(conf, props.getString(RegressionAdmmTrain.TEST_PATH, ""), outBasePath);
+    boolean testLoglikPerIter = (testPath != null);
+    if (!options.halvingRungs.isEmpty() && !testLoglikPerIter)
+    {
+      throw new IOException(RegressionAdmmTrain.SUCCESSIVE_HALVING_RUNGS + " needs the sample test loglik of " + RegressionAdmmTrain.TEST_PATH);
+    }
+    ScoringBatch testBatch = null;
+    if (testLoglikPerIter)
+    {
+      testBatch =
+          RegressionAdmmTrain.readSampleTest(conf,
+                                             props.getString(RegressionAdmmTrain.TEST_PATH, ""),
+                                             testPath,
+                                             props.getBoolean(RegressionAdmmTrain.TEST_LOGLIK_SAMPLING, false),
+                                             options.ignoreValue);
+    }
+    MutableFloat bestTestLoglik = new MutableFloat(-9999999);
+
+    // load every partition into memory once
+    ReadPartitionDatasetConsumer datasetConsumer =
+        new ReadPartitionDatasetConsumer(options.ignoreValue,
+                                         shortFeatureIndex,
+                                         hashingBits,
+                                         hashingCollisions);
+    AvroHdfsFileReader reader = new AvroHdfsFileReader(conf, true);
+    for (String inputPath : props.getStringList(INPUT_PATHS))
+    {
+      reader.build(inputPath, datasetConsumer);
+    }
+    datasetConsumer.done();
+    Map<Integer, LibLinearDataset> partitions = datasetConsumer.get();
+    if (partitions.size() != options.nblocks)
+    {
+      throw new IOException("Expected " + options.nblocks + " partitions in the input but found "
+          + partitions.size() + "!");
+    }
+    _logger.info("Loaded " + partitions.size() + " partitions, running the x-updates with "
+        + nthreads + " threads.");
+    if (hashingBits > 0 && hashingCollisions)
+    {
+      for (Map.Entry<Integer, LibLinearDataset> entry : partitions.entrySet())
+      {
+        _logger.info("Feature hashing: " + entry.getValue().getNumHashCollisions()
+            + " feature occurrences collided with another feature in partition "
+            + entry.getKey());
+      }
+    }
+    // number of partitions of each feature under general.consensus, null otherwise
+    Map<String, Integer> featureCounts = null;
+    if (options.generalConsensus)
+    {
+      featureCounts = new HashMap<String, Integer>();
+      for (LibLinearDataset dataset : partitions.values())
+      {
+        for (int index = 1; index <= dataset.nFeatures(); index++)
+        {
+          String name = dataset.getFeatureName(index);
+          if (!LibLinearDataset.INTERCEPT_NAME.equals(name))
+          {
+            Integer count = featureCounts.get(name);
+            featureCounts.put(name, (count == null ? 1 : count + 1));
+          }
+        }
+      }
+    }
+
+    ExecutorService pool = Executors.newFixedThreadPool(nthreads);
+    // u for each lambda#partition, empty before the first iteration
+    Map<String, LinearModel> u = new HashMap<String, LinearModel>();
+    // z and u given to the x-update, they are z and u themselves unless fast.admm=true
+    Map<String, LinearModel> zhat = null;
+    Map<String, LinearModel> uhat = u;
+    try
+    {
+      // Initialize z by mean model
+      if (options.initializeBoostRate > 0 && options.reg == 2)
+      {
+        _logger.info("Now start mean model initializing......");
+        double initEpsilon = props.getDouble(RegressionAdmmTrain.LIBLINEAR_EPSILON, 0.01);
+        Map<String, Double> priorVar = new HashMap<String, Double>();
+        for (String k : lambdaMap.keySet())
+        {
+          priorVar.put(k, 1.0 / lambdaMap.get(k));
+        }
+        if (!options.penalizeIntercept)
+        {
+          priorVar.put(LibLinearDataset.INTERCEPT_NAME, 100000.0); // very large variance for intercept
+        }
+        Map<String, Future<LinearModel>> futures = new LinkedHashMap<String, Future<LinearModel>>();
+        for (Float lambda : lambdas)
+        {
+          for (Integer partitionID : partitions.keySet())
+          {
+            futures.put(String.valueOf(lambda) + "#" + String.valueOf(partitionID),
+                        pool.submit(new XUpdate(partitions.get(partitionID),
+                                                null,
+                                                null,
+                                                priorVar,
+                                                1.0 / lambda,
+                                                "epsilon=" + String.valueOf(initEpsilon))));
+          }
+        }
+        z = meanModel(getModels(futures), options.nblocks);
+        if (testLoglikPerIter)
+        {
+          RegressionAdmmTrain.updateLogLikBestModel(conf, 0, z, testBatch, bestTestLoglik, outBasePath, options.numClickReplicates);
+        }
+      }
+
+      double mindiff = 99999999;
+      float liblinearEpsilon = 0.01f;
+      zhat = (options.fastAdmm ? RegressionAdmmTrain.copyModels(z) : z);
+      for (int i = 1; i <= options.niter; i++)
+      {
+        _logger.info("Now starting iteration " + String.valueOf(i));
+        long startTime = System.currentTimeMillis();
+        float rhoAdaptRate = 1.0f;
+        if (i == 1)
+        {
+          if (options.initializeBoostRate > 0 && options.reg == 2)
+          {
+            rhoAdaptRate = options.initializeBoostRate;
+          }
+        }
+        else if (options.rhoAdaptCoefficient > 0)
+        {
+          rhoAdaptRate = (float) Math.exp(-(i - 1) * options.rhoAdaptCoefficient);
+        }
+        // under inexact.admm the epsilon is set from the residuals of the last iteration
+        if (!options.inexactAdmm && i > 1 && mindiff < 0.001 && !options.aggressiveLiblinearEpsilonDecay) // need to get a more accurate estimate from liblinear
+        {
+          liblinearEpsilon = liblinearEpsilon / 10;
+        }
+        else if (!options.inexactAdmm && options.aggressiveLiblinearEpsilonDecay && i > 5)
+        {
+          liblinearEpsilon = liblinearEpsilon / 10;
+        }
+        _logger.info("Liblinear Epsilon for iter = "
+            + String.valueOf(i) + " is: " + String.valueOf(liblinearEpsilon));
+        String option = "epsilon=" + String.valueOf(liblinearEpsilon) + options.liblinearBudget;
+
+        // x-update for every lambda and partition
+        Map<String, Future<LinearModel>> futures = new LinkedHashMap<String, Future<LinearModel>>();
+        Map<Float, Float> activeLambdaRho = new HashMap<Float, Float>();
+        for (Float lambda : lambdas)
+        {
+          if (converged.contains(String.valueOf(lambda)) || dropped.contains(String.valueOf(lambda)))
+          {
+            continue;
+          }
+          activeLambdaRho.put(lambda, lambdaRho.get(lambda));
+          LinearModel initvalue = zhat.get(String.valueOf(lambda));
+          Map<String, Double> initvaluemap = initvalue.toMap(LibLinearDataset.INTERCEPT_NAME);
+          double rho = lambdaRho.get(lambda) * (double) rhoAdaptRate;
+          for (Integer partitionID : partitions.keySet())
+          {
+            String key = String.valueOf(lambda) + "#" + String.valueOf(partitionID);
+            // Compute z minus u
+            LinearModel priormean = uhat.containsKey(key) ? uhat.get(key).copy() : new LinearModel();
+            priormean.linearCombine(-1, 1, initvalue);
+            Map<String, Double> thisinitvaluemap = initvaluemap;
+            Map<String, Double> priormeanmap = priormean.toMap(LibLinearDataset.INTERCEPT_NAME);
+            if (options.generalConsensus)
+            {
+              // x only has the features of the partition
+              thisinitvaluemap = new HashMap<String, Double>(initvaluemap);
+              RegressionAdmmTrain.retainFeatures(thisinitvaluemap, partitions.get(partitionID));
+              RegressionAdmmTrain.retainFeatures(priormeanmap, partitions.get(partitionID));
+            }
+            futures.put(key, pool.submit(new XUpdate(partitions.get(partitionID),
+                                                     thisinitvaluemap,
+                                                     priormeanmap,
+                                                     null,
+                                                     1.0 / rho,
+                                                     option)));
+          }
+        }
+        Map<String, LinearModel> x = getModels(futures);
+
+        // compute z and u given x
+        Map<String, LinearModel> xbar = meanModel(x, options.nblocks);
+        Map<String, LinearModel> ubar = meanModel(uhat, options.nblocks);
+        if (options.generalConsensus)
+        {
+          RegressionAdmmTrain.toPartitionMean(xbar, featureCounts, options.nblocks);
+          RegressionAdmmTrain.toPartitionMean(ubar, featureCounts, options.nblocks);
+        }
+        Map<String, LinearModel> lastz = RegressionAdmmTrain.copyModels(z);
+        Map<String, LinearModel> zPrev = (options.fastAdmm ? zhat : lastz);
+        RegressionAdmmTrain.updateZ(z,
+                                    RegressionAdmmTrain.overRelax(xbar, zPrev, options.overRelaxation),
+                                    ubar,
+                                    lambdaRho,
+                                    lambdaMap,
+                                    options.nblocks,
+                                    featureCounts,
+                                    options.reg,
+                                    options.penalizeIntercept);
+        Map<String, Double> xSumSquaredNorm = new HashMap<String, Double>();
+        for (String key : x.keySet())
+        {
+          String lambda = Util.getLambda(key);
+          Double sum = xSumSquaredNorm.get(lambda);
+          xSumSquaredNorm.put(lambda, (sum == null ? 0 : sum) + x.get(key).squaredNorm());
+        }
+        Map<String, Double> uSumSquaredNorm = new HashMap<String, Double>();
+        for (String key : uhat.keySet())
+        {
+          String lambda = Util.getLambda(key);
+          Double sum = uSumSquaredNorm.get(lambda);
+          uSumSquaredNorm.put(lambda, (sum == null ? 0 : sum) + uhat.get(key).squaredNorm());
+        }
+        Map<String, double[]> residuals =
+            RegressionAdmmTrain.residuals(z, zPrev, xbar, xSumSquaredNorm, lambdaRho, options.nblocks, featureCounts);
+        Map<String, double[]> tolerances =
+            RegressionAdmmTrain.tolerances(z, residuals.keySet(), xSumSquaredNorm, uSumSquaredNorm, lambdaRho, options.nblocks, featureCounts, options.epsilonAbs, options.epsilonRel);
+        Set<String> convergedNow = new HashSet<String>();
+        for (String lambda : residuals.keySet())
+        {
+          if (residuals.get(lambda)[0] <= tolerances.get(lambda)[0]
+              && residuals.get(lambda)[1] <= tolerances.get(lambda)[1])
+          {
+            convergedNow.add(lambda);
+          }
+        }
+        Map<String, Double> uScale = null;
+        if (options.residualBalancing)
+        {
+          uScale = RegressionAdmmTrain.balanceRho(lambdaRho, residuals, options.balancingMu, options.balancingTau);
+        }
+        // u = u + alpha * x + (1 - alpha) * zPrev - z, rescaled when rho changed; with
+        // fast.admm=true it is uhat + x - z
+        Map<String, LinearModel> newu = new HashMap<String, LinearModel>();
+        for (String key : x.keySet())
+        {
+          String lambda = Util.getLambda(key);
+          LinearModel thisu = uhat.containsKey(key) ? uhat.get(key).copy() : new LinearModel();
+          thisu.linearCombine(1.0, 1.0, x.get(key));
+          thisu.linearCombine(1.0, -1.0, z.get(lambda));
+          if (options.overRelaxation != 1.0)
+          {
+            LinearModel relaxation = x.get(key).copy();
+            relaxation.linearCombine(1.0, -1.0, zPrev.get(lambda));
+            thisu.linearCombine(1.0, options.overRelaxation - 1, relaxation);
+          }
+          if (uScale != null && uScale.get(lambda) != 1.0)
+          {
+            thisu.rescale(uScale.get(lambda));
+          }
+          if (options.generalConsensus)
+          {
+            thisu.getCoefficients().keySet().retainAll(x.get(key).getCoefficients().keySet());
+          }
+          newu.put(key, thisu);
+        }
+        if (options.fastAdmm)
+        {
+          Map<String, Double> momentum = fast.momentum(residuals, lambdaRho);
+          zhat = FastAdmm.extrapolate(z, lastz, momentum);
+          uhat = FastAdmm.extrapolate(newu, u, momentum);
+        }
+        else
+        {
+          uhat = newu;
+        }
+        u = newu;
+        // Output max difference between last z and this z
+        mindiff = 99999999;
+        double maxdiff = 0;
+        Map<String, Double> zdiff = RegressionAdmmTrain.zDifference(lastz, z);
+        for (double diff : zdiff.values())
+        {
+          if (mindiff > diff)
+            mindiff = diff;
+          if (maxdiff < diff)
+            maxdiff = diff;
+        }
+        RegressionAdmmTrain.writeConvergenceReport(conf,
+                                                   outBasePath + "/convergence-report/iteration-" + i + ".avro",
+                                                   i,
+                                                   activeLambdaRho,
+                                                   residuals,
+                                                   tolerances,
+                                                   convergedNow,
+                                                   zdiff,
+                                                   liblinearEpsilon,
+                                                   System.currentTimeMillis() - startTime);
+        if (options.inexactAdmm)
+        {
+          liblinearEpsilon =
+              RegressionAdmmTrain.inexactEpsilon(residuals, tolerances, options.inexactMinEpsilon, options.inexactMaxEpsilon, liblinearEpsilon);
+        }
+        if (options.residualStopping)
+        {
+          for (String lambda : convergedNow)
+          {
+            _logger.info("Lambda=" + lambda + " has converged at iteration " + i);
+          }
+          converged.addAll(convergedNow);
+        }
+        // Output testloglik and update best model
+        if (testLoglikPerIter)
+        {
+          Map<String, Double> loglik =
+              RegressionAdmmTrain.updateLogLikBestModel(conf, i, z, testBatch, bestTestLoglik, outBasePath, options.numClickReplicates);
+          if (options.halvingRungs.contains(i))
+          {
+            dropped.addAll(RegressionAdmmTrain.halveLambdas(i, loglik, lambdaRho.keySet(), converged, dropped, options.halvingEta));
+          }
+        }
+        if (options.residualStopping)
+        {
+          if (converged.size() + dropped.size() == lambdas.size())
+          {
+            break;
+          }
+        }
+        else if (maxdiff < epsilon && liblinearEpsilon <= 0.00001)
+        {
+          break;
+        }
+      }
+    }
+    finally
+    {
+      pool.shutdown();
+    }
+
+    // write z into file
+    LinearModelUtils.writeLinearModel(conf, outBasePath + "/final-model/part-r-00000.avro", z);
+    if (props.getBoolean(RegressionAdmmTrain.REMOVE_TMP_DIR, false))
+    {
+      FileSystem fs = FileSystem.get(conf);
+      fs.delete(new Path(outBasePath + "/tmp-data"), true);
+    }
+  }
+
+  /**
+   * Reads the options of run() and rejects the ones of RegressionAdmmTrain this engine does
+   * not implement, rather than ignoring them: with resume=true the output is kept but the
+   * iterations would start over, and with regularization.path=true num.iters would not be
+   * per lambda. Regression calls it before the prepare job when local.train=true.
+   */
+  static RegressionAdmmTrain.AdmmOptions readOptions(JobConfig props) throws IOException
+  {
+    RegressionAdmmTrain.AdmmOptions options = new RegressionAdmmTrain.AdmmOptions(props);
+    List<String> unsupported = new ArrayList<String>();
+    if (options.regularizationPath)
+      unsupported.add(RegressionAdmmTrain.REGULARIZATION_PATH);
+    if (!options.sampleFractions.isEmpty())
+      unsupported.add(RegressionAdmmTrain.PROGRESSIVE_SAMPLING_FRACTIONS);
+    if (props.getBoolean(RegressionAdmmTrain.RESUME, false))
+      unsupported.add(RegressionAdmmTrain.RESUME);
+    if (options.partialBarrierFraction < 1)
+      unsupported.add(RegressionAdmmTrain.PARTIAL_BARRIER_FRACTION);
+    if (options.dualUpdateInTasks)
+      unsupported.add(RegressionAdmmTrain.DUAL_UPDATE_IN_TASKS);
+    if (options.distributedZUpdate)
+      unsupported.add(RegressionAdmmTrain.DISTRIBUTED_Z_UPDATE);
+    if (options.zDeltaBroadcast)
+      unsupported.add(RegressionAdmmTrain.Z_DELTA_BROADCAST);
+    if (options.warmStartSolver)
+      unsupported.add(RegressionAdmmTrain.WARM_START_SOLVER);
+    if (options.persistPartitionShards)
+      unsupported.add(RegressionAdmmTrain.PERSIST_PARTITION_SHARDS);
+    if (!unsupported.isEmpty())
+    {
+      throw new IOException(StringUtils.join(unsupported, ", ") + " cannot be used together with "
+          + Regression.LOCAL_TRAIN);
+    }
+    return options;
+  }
+
+  /**
+   * Waits for the x-updates and returns the fitted models by key.
+   */
+  private static Map<String, LinearModel> getModels(Map<String, Future<LinearModel>> futures) throws IOException,
+      InterruptedException
+  {
+    Map<String, LinearModel> models = new HashMap<String, LinearModel>();
+    for (String key : futures.keySet())
+    {
+      try
+      {
+        models.put(key, futures.get(key).get());
+      }
+      catch (ExecutionException e)
+      {
+        throw new IOException("Model fitting error for " + key + "!", e.getCause());
+      }
+    }
+    return models;
+  }
+
+  /**
+   * Averages the models of all partitions for each lambda, same as MeanLinearModelConsumer
+   * does for the models written by the reducers.
+   */
+  private static Map<String, LinearModel> meanModel(Map<String, LinearModel> models, int nblocks)
+  {
+    Map<String, LinearModel> result = new HashMap<String, LinearModel>();
+    for (String key : models.keySet())
+    {
+      String lambda = Util.getLambda(key);
+      if (!result.containsKey(lambda))
+      {
+        result.put(lambda, new LinearModel());
+      }
+      result.get(lambda).linearCombine(1.0, 1.0 / nblocks, models.get(key));
+    }
+    return result;
+  }
+
+  /**
+   * A single liblinear fit of one partition.
+   */
+  private static class XUpdate implements Callable<LinearModel>
+  {
+    private final LibLinearDataset    _dataset;
+    private final Map<String, Double> _initValue;
+    private final Map<String, Double> _priorMean;
+    private final Map<String, Double> _priorVar;
+    private final double              _defaultPriorVar;
+    private final String              _option;
+
+    XUpdate(LibLinearDataset dataset,
+            Map<String, Double> initValue,
+            Map<String, Double> priorMean,
+            Map<String, Double> priorVar,
+            double defaultPriorVar,
+            String option)
+    {
+      _dataset = dataset;
+      _initValue = initValue;
+      _priorMean = priorMean;
+      _priorVar = priorVar;
+      _defaultPriorVar = defaultPriorVar;
+      _option = option;
+    }
+
+    @Override
+    public LinearModel call() throws Exception
+    {
+      LibLinear liblinear = new LibLinear();
+      liblinear.train(_dataset, _initValue, _priorMean, _priorVar, _defaultPriorVar, _option);
+      return liblinear.getLinearModel();
+    }
+  }
+}
@@ -17,11 +17,19 @@ package com.linkedin.mlease.regression.jobs;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.avro.Schema;
 import org.apache.avro.Schema.Type;
@@ -41,6 +49,8 @@ import org.apache.commons.lang.mutable.MutableFloat;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.Partitioner;
 import org.apache.hadoop.mapred.Reporter;
@@ -48,14 +58,24 @@ import org.apache.log4j.Logger;
 
 
 import com.linkedin.mlease.models.LinearModel;
+import com.linkedin.mlease.models.ScoringBatch;
 import com.linkedin.mlease.avro.LinearModelAvro;
+import com.linkedin.mlease.regression.avro.AdmmCheckpoint;
+import com.linkedin.mlease.regression.avro.AdmmCheckpointLambda;
+import com.linkedin.mlease.regression.avro.AdmmConvergenceReport;
+import com.linkedin.mlease.regression.avro.AdmmDualState;
+import com.linkedin.mlease.regression.avro.AdmmFeatureTerm;
+import com.linkedin.mlease.regression.avro.AdmmSolverState;
+import com.linkedin.mlease.regression.avro.AdmmZUpdateStats;
 import com.linkedin.mlease.regression.avro.LambdaRhoMap;
+import com.linkedin.mlease.regression.avro.RegressionPartitionShard;
 import com.linkedin.mlease.regression.avro.RegressionPrepareOutput;
 import com.linkedin.mlease.regression.avro.RegressionTrainOutput;
 import com.linkedin.mlease.regression.avro.SampleTestLoglik;
-import com.linkedin.mlease.regression.consumers.FindLinearModelConsumer;
+import com.linkedin.mlease.regression.avro.feature;
 import com.linkedin.mlease.regression.consumers.ReadLambdaMapConsumer;
 import com.linkedin.mlease.regression.consumers.ReadLambdaRhoConsumer;
+import com.linkedin.mlease.regression.consumers.ReadLinearModelConsumer;
 import com.linkedin.mlease.regression.liblinearfunc.LibLinear;
 import com.linkedin.mlease.regression.liblinearfunc.LibLinearBinaryDataset;
 import com.linkedin.mlease.regression.liblinearfunc.LibLinearDataset;
@@ -63,6 +83,7 @@ import com.linkedin.mlease.utils.LinearModelUtils;
 import com.linkedin.mlease.utils.Util;
 import com.linkedin.mapred.AbstractAvroJob;
 import com.linkedin.mapred.AvroDistributedCacheFileReader;
+import com.linkedin.mapred.AvroFileReader;
 import com.linkedin.mapred.AvroHdfsFileReader;
 import com.linkedin.mapred.AvroHdfsFileWriter;
 import com.linkedin.mapred.AvroUtils;
@@ -97,10 +118,14 @@ public class RegressionAdmmTrain extends AbstractAvroJob
   public static final String AGGRESSIVE_LIBLINEAR_EPSILON_DECAY  = "aggressive.liblinear.epsilon.decay";
   // whether to do test-loglik for every iteration?
   public static final String TEST_LOGLIK_PER_ITER    = "test.loglik.per.iter";      
+  // default false, when true the sample test set is a uniform sample of all the files under test.path
+  // instead of the first records of the first file
+  public static final String TEST_LOGLIK_SAMPLING    = "test.loglik.sampling";
   // default 1, when >1 it means it replicates the clicks by several times to make sure we have better consensus
   public static final String NUM_CLICK_REPLICATES    = "num.click.replicates";
   //initialize.boost.rate: default is 0; if 0  there is no initialization; 
   //if >0, it will do mean model initialization and boost rho to rho*initilize.boost.rate  
+  //(L2 only); the initialization is iteration 0 of the ADMM jobs, under <output.base.path>/iter-0
   public static final String INITIALIZE_BOOST_RATE      = "initialize.boost.rate";
   //rho.adapt.coefficient: default is 0; if 0 not to adapt rho for each iteration; if > 0, 
   //it will   use rho.adapt.coefficient as decay parameter for exponential 
@@ -109,6 +134,99 @@ public class RegressionAdmmTrain extends AbstractAvroJob
   public static final String RHO_ADAPT_COEFFICIENT = "rho.adapt.coefficient";
   //use it to pass actual rho adaptive rate to reducer at each iteration
   public static final String RHO_ADAPT_RATE = "rho.adapt.rate";
+  //shared.partition.dataset: default is false; if true the records are sent once to the reducer of their
+  //partition, which builds the dataset once and fits all the lambdas from it
+  public static final String SHARED_PARTITION_DATASET = "shared.partition.dataset";
+  //number of threads a reducer uses to fit the lambdas of its partition, default is 1
+  public static final String NUM_THREADS             = "num.threads";
+  //persist.partition.shards: default is false; if true the dataset of each partition is written once
+  //as an indexed shard and the iterations are map-only jobs that load the shards
+  public static final String PERSIST_PARTITION_SHARDS = "persist.partition.shards";
+  //rho.residual.balancing: default is false; if true rho of each lambda is multiplied by tau when the
+  //primal residual is mu times larger than the dual residual, and divided by tau in the opposite case
+  public static final String RHO_RESIDUAL_BALANCING  = "rho.residual.balancing";
+  public static final String RHO_BALANCING_MU        = "rho.residual.balancing.mu";
+  public static final String RHO_BALANCING_TAU       = "rho.residual.balancing.tau";
+  //over.relaxation: default is 1 (plain ADMM); x is replaced by alpha*x + (1-alpha)*z in the z and u
+  //updates, values in [1.5, 1.8] usually converge faster
+  public static final String OVER_RELAXATION         = "over.relaxation";
+  //fast.admm: default is false; if true z and u are extrapolated between iterations (fast ADMM), the
+  //iterates restart from the ones before when the combined residual does not drop below fast.admm.restart.eta times the last one
+  public static final String FAST_ADMM               = "fast.admm";
+  public static final String FAST_ADMM_RESTART_ETA   = "fast.admm.restart.eta";
+  //residual.stopping: default is false; if true a lambda has converged when its primal and dual
+  //residuals are below sqrt(num.blocks*p)*epsilon.abs + epsilon.rel*(norm of x, z or rho*u), it is not
+  //fitted in later iterations and the job stops when all lambdas have converged
+  public static final String RESIDUAL_STOPPING       = "residual.stopping";
+  public static final String EPSILON_ABS             = "epsilon.abs";
+  public static final String EPSILON_REL             = "epsilon.rel";
+  //partial.barrier.fraction: default is 1; if < 1 an iteration kills its remaining tasks once this fraction
+  //of them has completed, and the x of the missing partitions is taken from the last iteration. After a
+  //partition has been stale for partial.barrier.max.delay (default 2) iterations the next one waits for all
+  public static final String PARTIAL_BARRIER_FRACTION  = "partial.barrier.fraction";
+  public static final String PARTIAL_BARRIER_MAX_DELAY = "partial.barrier.max.delay";
+  //resume: default is false; if true the iterations continue after the last iteration that has a
+  //checkpoint under output.base.path, every complete iteration writes one into iter-N/checkpoint
+  public static final String RESUME                  = "resume";
+  //general.consensus: default is false; if true each partition only fits the features that appear in it,
+  //z of a feature is the consensus of these partitions only, and each task reads only the u and z of its
+  //features (iter-N/u and iter-N/init-value have one file per partition) instead of the whole of them
+  public static final String GENERAL_CONSENSUS       = "general.consensus";
+  //dual.update.in.tasks: default is false; if true each task keeps the state of the u-update of its
+  //lambda#partition next to its output (iter-N/model/_u-state), instead of the driver computing u from
+  //u+x and broadcasting it. The tasks then only output x and the driver only sends z
+  public static final String DUAL_UPDATE_IN_TASKS    = "dual.update.in.tasks";
+  //distributed.z.update: default is false; if true the z-update runs as a MapReduce job keyed by
+  //lambda#feature with z.update.num.reducers reducers (default num.blocks), which writes z in shards to
+  //iter-N/z, so that the driver never holds z. Needs dual.update.in.tasks
+  public static final String DISTRIBUTED_Z_UPDATE    = "distributed.z.update";
+  public static final String Z_UPDATE_NUM_REDUCERS   = "z.update.num.reducers";
+  //z.delta.broadcast: default is false; if true z is broadcast as a base, written again only when the
+  //change grows beyond z.delta.rebase.fraction (default 0.5) of its coefficients, plus the coefficients
+  //that moved by more than z.delta.tolerance (default 1e-6) since the base. The others keep their base value
+  public static final String Z_DELTA_BROADCAST       = "z.delta.broadcast";
+  public static final String Z_DELTA_TOLERANCE       = "z.delta.tolerance";
+  public static final String Z_DELTA_REBASE_FRACTION = "z.delta.rebase.fraction";
+  //successive.halving.rungs: default is empty; after each of these iterations only the best
+  //1/successive.halving.eta (default 2) of the lambdas still fitted, by their sample test loglik, are
+  //fitted in later iterations, the others keep their z. Needs the sample test loglik of test.path
+  public static final String SUCCESSIVE_HALVING_RUNGS = "successive.halving.rungs";
+  public static final String SUCCESSIVE_HALVING_ETA   = "successive.halving.eta";
+  //regularization.path: default is false; if true the lambdas are fitted one after the other, from the
+  //largest to the smallest, each one starting from the z, u and rho the last one converged with. num.iters
+  //is then the max number of iterations of each lambda. Needs residual.stopping
+  public static final String REGULARIZATION_PATH     = "regularization.path";
+  //progressive.sampling.fractions: default is empty; e.g. 0.1,0.25,0.5 fits the first iterations on these
+  //fractions of the records of each partition, sampled by record hash, with their weights scaled by
+  //1/fraction. The next fraction is used once the residuals of every lambda fitted are below
+  //progressive.sampling.tolerance.factor (default 10) times their tolerances, or after
+  //progressive.sampling.max.iters (default 3) iterations on the fraction
+  public static final String PROGRESSIVE_SAMPLING_FRACTIONS        = "progressive.sampling.fractions";
+  public static final String PROGRESSIVE_SAMPLING_TOLERANCE_FACTOR = "progressive.sampling.tolerance.factor";
+  public static final String PROGRESSIVE_SAMPLING_MAX_ITERS        = "progressive.sampling.max.iters";
+  //inexact.admm: default is false; if true the liblinear epsilon of an iteration follows how far the last one
+  //was from convergence, i.e. inexact.admm.min.epsilon (default 1e-5) times the largest ratio of a residual
+  //to its tolerance, capped at inexact.admm.max.epsilon (default 0.01), instead of being divided by 10 on mindiff
+  public static final String INEXACT_ADMM             = "inexact.admm";
+  public static final String INEXACT_ADMM_MIN_EPSILON = "inexact.admm.min.epsilon";
+  public static final String INEXACT_ADMM_MAX_EPSILON = "inexact.admm.max.epsilon";
+  //liblinear.max.iter, liblinear.max.cg.iter and liblinear.max.time: default is no limit; caps on the Newton
+  //iterations of each x-update, the conjugate gradient iterations of each Newton iteration, and the seconds of each x-update
+  public static final String LIBLINEAR_MAX_ITER       = "liblinear.max.iter";
+  public static final String LIBLINEAR_MAX_CG_ITER    = "liblinear.max.cg.iter";
+  public static final String LIBLINEAR_MAX_TIME       = "liblinear.max.time";
+  //liblinear.threads: default is 1; number of threads each x-update splits the records of its partition over,
+  //a reducer runs num.threads * liblinear.threads threads
+  public static final String LIBLINEAR_THREADS        = "liblinear.threads";
+  //warm.start.solver: default is false; if true each task keeps the x, the trust region radius and the
+  //gradient at 0 of the x-update of its lambda#partition next to its output (iter-N/model/_solver-state),
+  //and the next iteration starts liblinear from them instead of from z
+  public static final String WARM_START_SOLVER        = "warm.start.solver";
+  //feature.hashing.bits: default is 0 (off); when > 0 the features of a partition are indexed by that many bits
+  //of a hash of their name and term instead of a dictionary of the names, features with the same hash share
+  //their coefficient. feature.hashing.collisions: default is false; if true the tasks count and log the collisions
+  public static final String FEATURE_HASHING_BITS       = "feature.hashing.bits";
+  public static final String FEATURE_HASHING_COLLISIONS = "feature.hashing.collisions";
   /**
    * Not for config, but for defining constant strings
    */
@@ -116,10 +234,26 @@ public class RegressionAdmmTrain extends AbstractAvroJob
   public static final String INTERCEPT_KEY           = "intercept.key";
   public static final String U_PATH                  = "u.path";
   public static final String INIT_VALUE_PATH         = "init.value.path";
+  public static final String Z_BASE_PATH             = "z.base.path";
+  public static final String SAMPLE_FRACTION         = "sample.fraction";
+  // true in iteration 0, which fits each partition alone to initialize z
+  public static final String INIT_FIT                = "init.fit";
+  // the liblinear options of liblinear.max.iter, liblinear.max.cg.iter, liblinear.max.time and liblinear.threads
+  public static final String LIBLINEAR_BUDGET        = "liblinear.budget";
+  public static final String DUAL_STATE_PATH         = "dual.state.path";
+  // dir of the u-update states of the tasks, under their output dir
+  public static final String DUAL_STATE_DIR          = "_u-state";
+  public static final String SOLVER_STATE_PATH       = "solver.state.path";
+  // dir of the x-update states of the tasks, under their output dir
+  public static final String SOLVER_STATE_DIR        = "_solver-state";
+  // dir of the residual sums of the reducers of the distributed z-update, under its output dir
+  public static final String Z_UPDATE_STATS_DIR      = "_stats";
   public static final String REPORT_FREQUENCY        = "report.frequency";
   public static final String LAMBDA_RHO_MAP          = "lambda.rho.map";   
   // max number of test events
   public static final long   MAX_NTEST_EVENTS        = 1000000;                          
+  // how often the tasks are checked under partial.barrier.fraction
+  public static final long   PARTIAL_BARRIER_POLL_MILLIS = 5000;
   
 
   public RegressionAdmmTrain(String jobId, JobConfig config)
@@ -135,362 +269,121 @@ public class RegressionAdmmTrain extends AbstractAvroJob
     JobConf conf = super.createJobConf();
     
     // Various configs
-    int nblocks = props.getInt(NUM_BLOCKS);
-    int niter = props.getInt(NUM_ITERS, 10);
-    //Aggressive decay of liblinear_epsilon
-    boolean aggressiveLiblinearEpsilonDecay = props.getBoolean(AGGRESSIVE_LIBLINEAR_EPSILON_DECAY,false); 
-    // Getting the value of the regularizer L1/L2
-    int reg = props.getInt(REGULARIZER);
-    if((reg!=1) && (reg!=2))
-    {
-      throw new IOException("Only L1 and L2 regularization supported!");
-    }
-    int numClickReplicates = props.getInt(NUM_CLICK_REPLICATES, 1);
-    boolean ignoreValue = props.getBoolean(BINARY_FEATURE, false);  
-    float initializeBoostRate = props.getFloat(INITIALIZE_BOOST_RATE, 0);
-    float rhoAdaptCoefficient = props.getFloat(RHO_ADAPT_COEFFICIENT, 0);
+    AdmmOptions options = new AdmmOptions(props);
+    FastAdmm fast = new FastAdmm(options.fastAdmmRestartEta);
     
     // handling lambda and rho
-    // initialize z and u and compute z-u and write to hadoop
-    Map<String, LinearModel> z = new HashMap<String, LinearModel>(); // lambda ->
     List<String> lambdastr = props.getStringList(LAMBDA, ",");
-    List<String> rhostr = props.getStringList(RHO, null, ",");
-    if (rhostr != null)
-    {
-      if (rhostr.size() != lambdastr.size())
-        throw new IOException("The number of rho's should be exactly the same as the number of lambda's. OR: don't claim rho!");
-    }
-    Map<Float, Float> lambdaRho = new HashMap<Float, Float>();
-    for (int j = 0; j < lambdastr.size(); j++)
-    {
-      float lambda = Float.parseFloat(lambdastr.get(j));
-      float rho;
-      if (rhostr != null)
-      {
-        rho = Float.parseFloat(rhostr.get(j));
-      }
-      else
-      {
-        if (lambda <= 100)
-        {
-          rho = 1;
-        }
-        else
-        {
-          rho = 10;
-        }
-      }
-      lambdaRho.put(lambda, rho);
-      z.put(String.valueOf(lambda), new LinearModel());     
-    }
+    Map<Float, Float> lambdaRho = readLambdaRho(props);
 
     // Get specific lambda treatment for some features
     String lambdaMapPath = props.getString(LAMBDA_MAP, "");
-    Map<String, Float> lambdaMap = new HashMap<String, Float>();
-    if (!lambdaMapPath.equals(""))
-    {
-      AvroHdfsFileReader reader = new AvroHdfsFileReader(conf);
-      ReadLambdaMapConsumer consumer = new ReadLambdaMapConsumer();
-      reader.build(lambdaMapPath, consumer);
-      consumer.done();
-      lambdaMap = consumer.get();
-    }
-    _logger.info("Lambda Map has size = " + String.valueOf(lambdaMap.size()));
-    // Write lambda_rho mapping into file
-    String rhoPath = outBasePath + "/lambda-rho/part-r-00000.avro";
-    writeLambdaRho(conf, rhoPath, lambdaRho);
+    Map<String, Float> lambdaMap = readLambdaMap(conf, lambdaMapPath);
     
     // test-loglik computation
     boolean testLoglikPerIter = props.getBoolean(TEST_LOGLIK_PER_ITER, false);
-    DataFileWriter<GenericRecord> testRecordWriter = null;
     // test if the test file exists
-    String testPath = props.getString(TEST_PATH, "");
-    testLoglikPerIter = Util.checkPath(testPath);
-    if (testLoglikPerIter)
+    String testPath = null;
+    if (options.distributedZUpdate)
     {
-      List<Path> testPathList =
-          AvroUtils.enumerateFiles(conf, new Path(testPath));
-      if (testPathList.size() > 0)
-      {
-        testPath = testPathList.get(0).toString();
-        _logger.info("Sample test path = " + testPath);
-      
-        AvroHdfsFileWriter<GenericRecord> writer =
-            new AvroHdfsFileWriter<GenericRecord>(conf, outBasePath
-                + "/sample-test-loglik/write-test-00000.avro", SampleTestLoglik.SCHEMA$);
-        testRecordWriter = writer.get();
-      }
+      // the driver does not have z to score
+      _logger.info("No test loglik per iteration with " + DISTRIBUTED_Z_UPDATE);
     }
-    if (testRecordWriter == null)
+    else
     {
-      testLoglikPerIter = false;
-      _logger.info("test.loglik.per.iter=false or test path doesn't exist or is empty! So we will not output test loglik per iteration.");
+      testPath = getSampleTestPath(conf, props.getString(TEST_PATH, ""), outBasePath);
     }
-    else
+    testLoglikPerIter = (testPath != null);
+    if (!options.halvingRungs.isEmpty() && !testLoglikPerIter)
     {
-      testRecordWriter.close();
+      throw new IOException(SUCCESSIVE_HALVING_RUNGS + " needs the sample test loglik of " + TEST_PATH);
     }
-    
-    MutableFloat bestTestLoglik = new MutableFloat(-9999999);
-    //Initialize z by mean model 
-    if (initializeBoostRate  > 0 && reg==2)
+    ScoringBatch testBatch = null;
+    if (testLoglikPerIter)
     {
-      _logger.info("Now start mean model initializing......");
-      // Different paths for L1 vs L2 set from job file
-      String initalModelPath;
-      initalModelPath = outBasePath + "/initialModel";
-
-      Path initalModelPathFromNaiveTrain = new Path(outBasePath, "models");  
-      JobConfig propsIni = JobConfig.clone(props);
-      if (!propsIni.containsKey(LIBLINEAR_EPSILON))
-      {
-        propsIni.put(LIBLINEAR_EPSILON, 0.01);
-      }
-      propsIni.put(RegressionNaiveTrain.HEAVY_PER_ITEM_TRAIN, "true");
-      propsIni.put(LAMBDA_MAP, lambdaMapPath);
-      propsIni.put(REMOVE_TMP_DIR, "false");
-      
-      // run job
-      RegressionNaiveTrain initializationJob = new RegressionNaiveTrain(super.getJobId()+"_ADMMInitialization",propsIni);
-      initializationJob.run();
-      
-      FileSystem fs = initalModelPathFromNaiveTrain.getFileSystem(conf);
-      if (fs.exists(new Path(initalModelPath)))
-      {
-        fs.delete(new Path(initalModelPath),true);
-      }
-      fs.rename(initalModelPathFromNaiveTrain, new Path(initalModelPath));
-      // set up lambda
-      Set<Float> lambdaSet = new HashSet<Float>();
-      for (String l : lambdastr)
-      {
-        lambdaSet.add(Float.parseFloat(l));
-      }
-      // Compute Mean model as initial model
-      z = LinearModelUtils.meanModel(conf, initalModelPath, nblocks, lambdaSet.size(), true);      
+      testBatch = readSampleTest(conf,
+                                 props.getString(TEST_PATH, ""),
+                                 testPath,
+                                 props.getBoolean(TEST_LOGLIK_SAMPLING, false),
+                                 options.ignoreValue);
+    }
 
-      if (testLoglikPerIter)
-      {       
-        updateLogLikBestModel(conf, 0,  z, testPath, ignoreValue, bestTestLoglik, outBasePath, numClickReplicates);
-      }     
+    // initialize z and u
+    AdmmState state = new AdmmState(options, outBasePath, lambdaRho, lambdaMapPath, lambdaMap, testBatch);
+    // Write lambda_rho mapping into file
+    writeLambdaRho(conf, state.rhoPath, lambdaRho);
+    int maxIter = (options.regularizationPath ? options.niter * state.pathLambdas.size() : options.niter);
+    // the last complete iteration of an earlier run, 0 if there is none to resume from
+    int lastIter = 0;
+    if (props.getBoolean(RESUME, false))
+    {
+      lastIter = findLastCheckpoint(conf, outBasePath, maxIter);
     }
-    
-    double mindiff = 99999999;
-    float liblinearEpsilon = 0.01f;   
-    int i;
-    for (i = 1; i <= niter; i++)
+    // with initialize.boost.rate, iteration 0 fits each partition alone on the same
+    // partitioned data and z starts from the mean of these fits
+    boolean initFit = (options.initializeBoostRate > 0 && options.reg == 2 && lastIter == 0);
+    float initEpsilon = props.getFloat(LIBLINEAR_EPSILON, 0.01f);
+    if (props.getBoolean(RESUME, false))
     {
-      _logger.info("Now starting iteration " + String.valueOf(i));
-      // set up configuration
-      props.put(AbstractAvroJob.OUTPUT_PATH, outBasePath + "/iter-" + String.valueOf(i));
-      conf =
-          createJobConf(AdmmMapper.class,
-                        AdmmReducer.class,
-                        Pair.getPairSchema(Schema.create(Type.INT),
-                                           RegressionPrepareOutput.SCHEMA$),
-                                           RegressionTrainOutput.SCHEMA$);
-      conf.setPartitionerClass(AdmmPartitioner.class);
-      //AvroUtils.setSpecificReducerInput(conf, true);
-      conf.setInt(NUM_BLOCKS, nblocks);
-      //Added for L1/L2
-      conf.setInt(REGULARIZER, reg);
-      conf.setLong(REPORT_FREQUENCY, props.getLong(REPORT_FREQUENCY, 1000000));
-      //boolean ignoreValue = props.getBoolean(BINARY_FEATURE, false);
-      conf.setBoolean(BINARY_FEATURE, ignoreValue);
-      conf.setBoolean(SHORT_FEATURE_INDEX, props.getBoolean(SHORT_FEATURE_INDEX, false));
+      // the iterations the failed run got into, their jobs write to the same paths
+      deleteIterations(conf, outBasePath, (initFit ? 0 : lastIter + 1), maxIter);
+    }
 
-      boolean penalizeIntercept = props.getBoolean(PENALIZE_INTERCEPT, false);
-      String interceptKey = props.getString(INTERCEPT_KEY, LibLinearDataset.INTERCEPT_NAME);
-      conf.set(INTERCEPT_KEY, interceptKey);
-      //int schemaType = props.getInt(SCHEMA_TYPE, 1);
+    // Index the partitions once, the iterations then only load them
+    Path shards = new Path(state.shardPath);
+    if (options.persistPartitionShards
+        && !(lastIter > 0 && shards.getFileSystem(conf).exists(shards)
+            && !Util.findPartFiles(conf, shards).isEmpty()))
+    {
+      writePartitionShards(props, state.shardPath, state.rhoPath, options.nblocks, options.ignoreValue);
+    }
 
-      // compute and store u into file
-      // u = uplusx - z
-      String uPath = outBasePath + "/iter-" + String.valueOf(i) + "/u/part-r-00000.avro";
-      if (i == 1)
+    if (lastIter > 0)
+    {
+      restoreCheckpoint(conf, options, state, fast, lastIter);
+    }
+    int i;
+    for (i = (initFit ? 0 : lastIter + 1); i <= maxIter; i++)
+    {
+      AdmmIteration iteration = new AdmmIteration(options, state, i);
+      conf = createIterationConf(props, options, state, iteration);
+      writeU(conf, options, state, iteration);
+      writeZ(conf, options, state, iteration);
+      setIterationInputs(conf, options, state, iteration, initEpsilon);
+      runXUpdate(conf, options, state, iteration, lastIter);
+      if (i == 0)
       {
-        LinearModelUtils.writeLinearModel(conf, uPath, new HashMap<String, LinearModel>());
-        if (initializeBoostRate > 0 && reg==2)
+        // Compute Mean model as initial model
+        state.z = LinearModelUtils.meanModel(conf, iteration.outpath, options.nblocks, lambdaRho.size(), true);
+        state.zhat = (options.fastAdmm ? copyModels(state.z) : state.z);
+        if (testLoglikPerIter)
         {
-          
-          conf.setFloat(RHO_ADAPT_RATE, initializeBoostRate);
+          updateLogLikBestModel(conf, 0, state.z, testBatch, state.bestTestLoglik, outBasePath, options.numClickReplicates);
         }
+        _logger.info("Mean model initialization took " + (System.currentTimeMillis() - iteration.startTime) + " ms");
+        continue;
       }
-      else
-      {
-          String uplusxPath = outBasePath + "/iter-" + String.valueOf(i - 1) + "/model";
-          computeU(conf, uPath, uplusxPath, z);
-        if(rhoAdaptCoefficient > 0)
-        {
-          float curRhoAdaptRate = (float) Math.exp(-(i-1)*rhoAdaptCoefficient);
-          conf.setFloat(RHO_ADAPT_RATE, curRhoAdaptRate);
-        }        
-      }
-      // write z into file
-      String zPath = outBasePath + "/iter-" + String.valueOf(i) + "/init-value/part-r-00000.avro";
-      LinearModelUtils.writeLinearModel(conf, zPath, z);
-
-      // run job
-      String outpath = outBasePath + "/iter-" + String.valueOf(i) + "/model";
-      conf.set(U_PATH, uPath);
-      conf.set(INIT_VALUE_PATH, zPath);
-      conf.set(LAMBDA_RHO_MAP, rhoPath);
-      if (i > 1 && mindiff < 0.001 && !aggressiveLiblinearEpsilonDecay) // need to get a more accurate estimate from liblinear
-      {
-        liblinearEpsilon = liblinearEpsilon / 10;
-      }
-      else if(aggressiveLiblinearEpsilonDecay && i > 5)
-      {
-          liblinearEpsilon = liblinearEpsilon / 10;
-      }
-      conf.setFloat(LIBLINEAR_EPSILON, liblinearEpsilon);
-       //Added for logging aggressive decay
-      _logger.info("Liblinear Epsilon for iter = " 
-          + String.valueOf(i) + " is: " + String.valueOf(liblinearEpsilon));
-      _logger.info("aggressiveLiblinearEpsilonDecay="+aggressiveLiblinearEpsilonDecay);
-      AvroOutputFormat.setOutputPath(conf, new Path(outpath));
-      AvroUtils.addAvroCacheFiles(conf, new Path(uPath));
-      AvroUtils.addAvroCacheFiles(conf, new Path(zPath));
-      AvroUtils.addAvroCacheFiles(conf, new Path(rhoPath));
-      conf.setNumReduceTasks(nblocks * lambdastr.size());
-      AvroJob.setInputSchema(conf, RegressionPrepareOutput.SCHEMA$);
-      AvroUtils.runAvroJob(conf);
       // Load the result from the last iteration
       // compute z and u given x
-      
-      
-      Map<String, LinearModel> xbar =
-          LinearModelUtils.meanModel(conf, outpath, nblocks, lambdaRho.size(), true);
-      Map<String, LinearModel> ubar = LinearModelUtils.meanModel(conf, uPath, nblocks, lambdaRho.size(), false);
-      Map<String, LinearModel> lastz = new HashMap<String, LinearModel>();
-      for (String k : z.keySet())
-      {
-        lastz.put(k, z.get(k).copy());
-      }
-      for (String lambda : xbar.keySet())
-      {
-        LinearModel thisz = z.get(lambda);
-        thisz.clear();
-        float l = Float.parseFloat(lambda);
-        float r = lambdaRho.get(l);
-        double weight;
-        //L2 regularization
-        if(reg==2) 
-         {
-            _logger.info("Running code for regularizer = " + String.valueOf(reg));
-            weight = nblocks * r / (l + nblocks * r);
-            Map<String, Double> weightmap = new HashMap<String, Double>();
-              for (String k : lambdaMap.keySet())
-              {
-                 weightmap.put(k, nblocks * r / (lambdaMap.get(k) + nblocks * r + 0.0));
-              }
-              thisz.linearCombine(1.0, weight, xbar.get(lambda), weightmap);
-              if (!ubar.isEmpty())
-              {
-                  thisz.linearCombine(1.0, weight, ubar.get(lambda), weightmap);
-              }
-              if (!penalizeIntercept)
-              {
-                 if (ubar.isEmpty())
-                 {
-                      thisz.setIntercept(xbar.get(lambda).getIntercept());
-                 }
-                 else
-                 {
-                      thisz.setIntercept(xbar.get(lambda).getIntercept()
-                             + ubar.get(lambda).getIntercept());
-                 }
-              }
-              z.put(lambda, thisz);
-          }
-          else
-        {
-          // L1 regularization
-
-          _logger.info("Running code for regularizer = " + String.valueOf(reg));
-          weight = l / (r * nblocks + 0.0);
-          Map<String, Double> weightmap = new HashMap<String, Double>();
-          for (String k : lambdaMap.keySet())
-          {
-            weightmap.put(k, lambdaMap.get(k) / (r * nblocks + 0.0));
-          }
-          // LinearModel thisz = new LinearModel();
-          thisz.linearCombine(1.0, 1.0, xbar.get(lambda));
-          if (!ubar.isEmpty())
-          {
-            thisz.linearCombine(1.0, 1.0, ubar.get(lambda));
-          }
-          // Iterative Thresholding
-          Map<String, Double> thisCoefficients = thisz.getCoefficients();
-          for (String k : thisCoefficients.keySet())
-          {
-            double val = thisCoefficients.get(k);
-            if (val > weight)
-            {
-              thisCoefficients.put(k, val - weight);
-            }
-            else if (val < -weight)
-            {
-              thisCoefficients.put(k, val + weight);
-            }
-          }
-          thisz.setCoefficients(thisCoefficients);
-          if (!penalizeIntercept)
-          {
-            if (ubar.isEmpty())
-            {
-              thisz.setIntercept(xbar.get(lambda).getIntercept());
-            }
-            else
-            {
-              thisz.setIntercept(xbar.get(lambda).getIntercept()
-                  + ubar.get(lambda).getIntercept());
-            }
-          }
-          z.put(lambda, thisz);
-        }
-      }
-      xbar.clear();
-      ubar.clear();
-      // Output max difference between last z and this z
-      mindiff = 99999999;
-      double maxdiff = 0;
-      for (String k : z.keySet())
-      {
-        LinearModel tmp = lastz.get(k);
-        if (tmp == null)
-          tmp = new LinearModel();
-        tmp.linearCombine(1, -1, z.get(k));
-        double diff = tmp.maxAbsValue();
-        _logger.info("For lambda=" + k + ": Max Difference between last z and this z = "
-            + String.valueOf(diff));
-        tmp.clear();
-        if (mindiff > diff)
-          mindiff = diff;
-        if (maxdiff < diff)
-          maxdiff = diff;
-      }
-      double epsilon = props.getDouble(EPSILON, 0.0001);
+      ZUpdateResult update = zUpdate(props, conf, options, state, iteration);
+      double maxdiff = endIteration(conf, options, state, iteration, update, fast);
+      writeIterationCheckpoint(conf, options, state, i, fast);
       // remove tmp files?
       if (props.getBoolean(REMOVE_TMP_DIR, false) && i >= 2)
       {
         FileSystem fs = FileSystem.get(conf);
         fs.delete(new Path(outBasePath + "/iter-" + String.valueOf(i - 1)), true);
       }
-      // Output testloglik and update best model
-      if (testLoglikPerIter)
+
+      double epsilon = props.getDouble(EPSILON, 0.0001);
+      if (options.residualStopping)
       {
-        updateLogLikBestModel(conf,
-                              i,
-                              z,
-                              testPath,
-                              ignoreValue,
-                              bestTestLoglik,
-                              outBasePath,
-                              numClickReplicates);
+        if (state.converged.size() + state.dropped.size() == lambdaRho.size())
+        {
+          break;
+        }
       }
-
-      if (maxdiff < epsilon && liblinearEpsilon <= 0.00001)
+      else if (maxdiff < epsilon && state.liblinearEpsilon <= 0.00001 && iteration.sampleFraction >= 1)
       {
         break;
       }
@@ -498,16 +391,19 @@ public class RegressionAdmmTrain extends AbstractAvroJob
 
     // write z into file
     String zPath = outBasePath + "/final-model/part-r-00000.avro";
-    LinearModelUtils.writeLinearModel(conf, zPath, z);
+    if (state.lastZPath != null)
+    {
+      writeConsensusModel(conf, state.lastZPath, zPath);
+    }
+    else
+    {
+      LinearModelUtils.writeLinearModel(conf, zPath, state.z);
+    }
     // remove tmp files?
     if (props.getBoolean(REMOVE_TMP_DIR, false))
     {
       FileSystem fs = FileSystem.get(conf);
-      Path initalModelPath = new Path(outBasePath + "/initialModel");
-      if (fs.exists(initalModelPath))
-      {
-        fs.delete(initalModelPath, true);
-      }
+      fs.delete(new Path(outBasePath + "/iter-0"), true);
       for (int j = i - 2; j <= i; j++)
       {
         Path deletepath = new Path(outBasePath + "/iter-" + String.valueOf(j));
@@ -517,205 +413,2980 @@ public class RegressionAdmmTrain extends AbstractAvroJob
         }
       }
       fs.delete(new Path(outBasePath + "/tmp-data"), true);
+      fs.delete(new Path(outBasePath + "/z-base"), true);
+      fs.delete(new Path(state.shardPath), true);
     }
 
   }
 
-  public static class AdmmMapper extends
-  AvroMapper<RegressionPrepareOutput, Pair<Integer, RegressionPrepareOutput>>
+  /**
+   * The options of run(), read from the job config and checked for the ones that cannot be
+   * used together
+   */
+  static class AdmmOptions
   {
-    private ReadLambdaRhoConsumer _lambdaRhoConsumer = new ReadLambdaRhoConsumer();
+    final int           nblocks;
+    final int           niter;
+    final boolean       aggressiveLiblinearEpsilonDecay;
+    final int           reg;
+    final int           numClickReplicates;
+    final boolean       ignoreValue;
+    final float         initializeBoostRate;
+    final float         rhoAdaptCoefficient;
+    final boolean       penalizeIntercept;
+    final boolean       sharedPartitionDataset;
+    final boolean       persistPartitionShards;
+    final boolean       residualBalancing;
+    final double        balancingMu;
+    final double        balancingTau;
+    final double        overRelaxation;
+    final boolean       fastAdmm;
+    final double        fastAdmmRestartEta;
+    final boolean       generalConsensus;
+    final boolean       dualUpdateInTasks;
+    final boolean       distributedZUpdate;
+    final boolean       zDeltaBroadcast;
+    final double        zDeltaTolerance;
+    final double        zDeltaRebaseFraction;
+    final boolean       residualStopping;
+    final double        epsilonAbs;
+    final double        epsilonRel;
+    final Set<Integer>  halvingRungs;
+    final double        halvingEta;
+    final double        partialBarrierFraction;
+    final int           partialBarrierMaxDelay;
+    final List<Float>   sampleFractions;
+    final double        samplingToleranceFactor;
+    final int           samplingMaxIters;
+    final boolean       inexactAdmm;
+    final double        inexactMinEpsilon;
+    final double        inexactMaxEpsilon;
+    final String        liblinearBudget;
+    final boolean       warmStartSolver;
+    final boolean       regularizationPath;
 
-    @Override
-    public void setConf(Configuration conf)
+    AdmmOptions(JobConfig props) throws IOException
     {
-      super.setConf(conf);
-      if (conf == null)
+      nblocks = props.getInt(NUM_BLOCKS);
+      niter = props.getInt(NUM_ITERS, 10);
+      //Aggressive decay of liblinear_epsilon
+      aggressiveLiblinearEpsilonDecay = props.getBoolean(AGGRESSIVE_LIBLINEAR_EPSILON_DECAY,false);
+      // Getting the value of the regularizer L1/L2
+      reg = props.getInt(REGULARIZER);
+      if((reg!=1) && (reg!=2))
       {
-        return;
+        throw new IOException("Only L1 and L2 regularization supported!");
       }
-      AvroDistributedCacheFileReader lambdaRhoReader =
-          new AvroDistributedCacheFileReader(new JobConf(conf));
-      try
+      numClickReplicates = props.getInt(NUM_CLICK_REPLICATES, 1);
+      ignoreValue = props.getBoolean(BINARY_FEATURE, false);
+      initializeBoostRate = props.getFloat(INITIALIZE_BOOST_RATE, 0);
+      rhoAdaptCoefficient = props.getFloat(RHO_ADAPT_COEFFICIENT, 0);
+      penalizeIntercept = props.getBoolean(PENALIZE_INTERCEPT, false);
+      sharedPartitionDataset = props.getBoolean(SHARED_PARTITION_DATASET, false);
+      persistPartitionShards = props.getBoolean(PERSIST_PARTITION_SHARDS, false);
+      residualBalancing = props.getBoolean(RHO_RESIDUAL_BALANCING, false);
+      balancingMu = props.getDouble(RHO_BALANCING_MU, 10);
+      balancingTau = props.getDouble(RHO_BALANCING_TAU, 2);
+      if (residualBalancing && rhoAdaptCoefficient > 0)
       {
-        lambdaRhoReader.build(conf.get(LAMBDA_RHO_MAP), _lambdaRhoConsumer);
-        _lambdaRhoConsumer.done();
+        throw new IOException(RHO_RESIDUAL_BALANCING + " cannot be used together with " + RHO_ADAPT_COEFFICIENT);
       }
-      catch (IOException e)
+      overRelaxation = props.getDouble(OVER_RELAXATION, 1.0);
+      if (overRelaxation <= 0 || overRelaxation >= 2)
       {
-        e.printStackTrace();
+        throw new IOException(OVER_RELAXATION + " has to be in (0, 2)!");
+      }
+      fastAdmm = props.getBoolean(FAST_ADMM, false);
+      if (fastAdmm && (overRelaxation != 1.0 || residualBalancing || rhoAdaptCoefficient > 0))
+      {
+        throw new IOException(FAST_ADMM + " cannot be used together with " + OVER_RELAXATION + ", "
+            + RHO_RESIDUAL_BALANCING + " or " + RHO_ADAPT_COEFFICIENT);
+      }
+      fastAdmmRestartEta = props.getDouble(FAST_ADMM_RESTART_ETA, 0.999);
+      generalConsensus = props.getBoolean(GENERAL_CONSENSUS, false);
+      if (generalConsensus && fastAdmm)
+      {
+        throw new IOException(GENERAL_CONSENSUS + " cannot be used together with " + FAST_ADMM);
+      }
+      partialBarrierFraction = props.getDouble(PARTIAL_BARRIER_FRACTION, 1.0);
+      if (partialBarrierFraction <= 0 || partialBarrierFraction > 1)
+      {
+        throw new IOException(PARTIAL_BARRIER_FRACTION + " has to be in (0, 1]!");
+      }
+      partialBarrierMaxDelay = props.getInt(PARTIAL_BARRIER_MAX_DELAY, 2);
+      dualUpdateInTasks = props.getBoolean(DUAL_UPDATE_IN_TASKS, false);
+      if (dualUpdateInTasks
+          && (fastAdmm || generalConsensus || partialBarrierFraction < 1))
+      {
+        throw new IOException(DUAL_UPDATE_IN_TASKS + " cannot be used together with " + FAST_ADMM + ", "
+            + GENERAL_CONSENSUS + " or " + PARTIAL_BARRIER_FRACTION);
+      }
+      distributedZUpdate = props.getBoolean(DISTRIBUTED_Z_UPDATE, false);
+      if (distributedZUpdate && !dualUpdateInTasks)
+      {
+        throw new IOException(DISTRIBUTED_Z_UPDATE + " needs " + DUAL_UPDATE_IN_TASKS);
+      }
+      zDeltaBroadcast = props.getBoolean(Z_DELTA_BROADCAST, false);
+      if (zDeltaBroadcast && (generalConsensus || distributedZUpdate))
+      {
+        throw new IOException(Z_DELTA_BROADCAST + " cannot be used together with " + GENERAL_CONSENSUS
+            + " or " + DISTRIBUTED_Z_UPDATE);
+      }
+      zDeltaTolerance = props.getDouble(Z_DELTA_TOLERANCE, 0.000001);
+      zDeltaRebaseFraction = props.getDouble(Z_DELTA_REBASE_FRACTION, 0.5);
+      residualStopping = props.getBoolean(RESIDUAL_STOPPING, false);
+      epsilonAbs = props.getDouble(EPSILON_ABS, 0.0001);
+      epsilonRel = props.getDouble(EPSILON_REL, 0.001);
+      halvingRungs = readHalvingRungs(props);
+      halvingEta = props.getDouble(SUCCESSIVE_HALVING_ETA, 2);
+      if (halvingEta <= 1)
+      {
+        throw new IOException(SUCCESSIVE_HALVING_ETA + " has to be > 1!");
+      }
+      sampleFractions = readSampleFractions(props);
+      if (!sampleFractions.isEmpty() && persistPartitionShards)
+      {
+        throw new IOException(PROGRESSIVE_SAMPLING_FRACTIONS + " cannot be used together with " + PERSIST_PARTITION_SHARDS);
+      }
+      samplingToleranceFactor = props.getDouble(PROGRESSIVE_SAMPLING_TOLERANCE_FACTOR, 10);
+      samplingMaxIters = props.getInt(PROGRESSIVE_SAMPLING_MAX_ITERS, 3);
+      inexactAdmm = props.getBoolean(INEXACT_ADMM, false);
+      inexactMinEpsilon = props.getDouble(INEXACT_ADMM_MIN_EPSILON, 0.00001);
+      inexactMaxEpsilon = props.getDouble(INEXACT_ADMM_MAX_EPSILON, 0.01);
+      liblinearBudget = liblinearBudget(props);
+      warmStartSolver = props.getBoolean(WARM_START_SOLVER, false);
+      regularizationPath = props.getBoolean(REGULARIZATION_PATH, false);
+      if (regularizationPath
+          && (!residualStopping || fastAdmm || generalConsensus || dualUpdateInTasks
+              || partialBarrierFraction < 1 || !halvingRungs.isEmpty()))
+      {
+        throw new IOException(REGULARIZATION_PATH + " needs " + RESIDUAL_STOPPING + " and cannot be used together with "
+            + FAST_ADMM + ", " + GENERAL_CONSENSUS + ", " + DUAL_UPDATE_IN_TASKS + ", " + PARTIAL_BARRIER_FRACTION
+            + " or " + SUCCESSIVE_HALVING_RUNGS);
       }
-      _logger.info("lambda file:" + conf.get(LAMBDA_RHO_MAP));
-      _logger.info("Loaded " + String.valueOf(_lambdaRhoConsumer.get().size())
-                   + " lambdas.");
     }
+  }
 
-    @Override
-    public void map(RegressionPrepareOutput data,
-                    AvroCollector<Pair<Integer, RegressionPrepareOutput>> collector,
-                    Reporter reporter) throws IOException
+  /**
+   * The state of run() that one iteration hands over to the next, and that the checkpoint of
+   * each iteration keeps, with the paths of the run
+   */
+  static class AdmmState
+  {
+    final String                   outBasePath;
+    final String                   rhoPath;
+    final String                   shardPath;
+    final String                   lambdaMapPath;
+    final Map<String, Float>       lambdaMap;
+    // the sample test set of test.loglik.per.iter, null without one
+    final ScoringBatch             testBatch;
+    // the lambdas of regularization.path, from the largest to the smallest
+    final List<String>             pathLambdas;
+    // the rho of each lambda, changed by residual balancing and regularization.path
+    final Map<Float, Float>        lambdaRho;
+    Map<String, LinearModel>       z                  = new HashMap<String, LinearModel>();
+    // z given to the x-update, it is z itself unless fast.admm=true
+    Map<String, LinearModel>       zhat;
+    // z given to the last x-update, and the momentum of fast.admm for the u-update
+    Map<String, LinearModel>       zPrev              = null;
+    Map<String, Double>            momentum           = null;
+    // factor to rescale u with after rho changed, null if rho did not change
+    Map<String, Double>            uScale             = null;
+    // lambdas that have converged under residual.stopping, they are not fitted any more
+    final Set<String>              converged          = new HashSet<String>();
+    // lambdas that are not fitted any more without having converged: dropped by successive
+    // halving, or left by regularization.path after num.iters iterations
+    final Set<String>              dropped            = new HashSet<String>();
+    // number of iterations each lambda#partition has been stale for, under partial.barrier.fraction
+    Map<String, Integer>           staleness          = new HashMap<String, Integer>();
+    // mean of the u's of the tasks under dual.update.in.tasks, empty before the first iteration
+    Map<String, LinearModel>       taskUbar           = new HashMap<String, LinearModel>();
+    // z of the last iteration under distributed.z.update, written by its z-update job
+    String                         lastZPath          = null;
+    // the z broadcast in full under z.delta.broadcast, the others are sent as a delta to it
+    Map<String, LinearModel>       zBase              = null;
+    String                         zBasePath          = null;
+    double                         mindiff            = 99999999;
+    float                          liblinearEpsilon   = 0.01f;
+    final MutableFloat             bestTestLoglik     = new MutableFloat(-9999999);
+    // the number of iterations the lambda of regularization.path has run
+    int                            pathIter           = 0;
+    // the fraction of progressive.sampling.fractions in use, and the number of iterations run on it
+    int                            sampleStage        = 0;
+    int                            sampleStageIter    = 0;
+    // the sample fraction of the last iteration, the solver state is only kept on the same data
+    float                          lastSampleFraction;
+
+    AdmmState(AdmmOptions options,
+              String outBasePath,
+              Map<Float, Float> lambdaRho,
+              String lambdaMapPath,
+              Map<String, Float> lambdaMap,
+              ScoringBatch testBatch)
     {
-      Integer key = Integer.parseInt(data.key.toString());
-      for (int i = 0; i < _lambdaRhoConsumer.get().size(); i++)
+      this.outBasePath = outBasePath;
+      rhoPath = outBasePath + "/lambda-rho/part-r-00000.avro";
+      shardPath = outBasePath + "/shards";
+      this.lambdaMapPath = lambdaMapPath;
+      this.lambdaMap = lambdaMap;
+      this.testBatch = testBatch;
+      pathLambdas = pathLambdas(lambdaRho.keySet());
+      this.lambdaRho = lambdaRho;
+      for (Float lambda : lambdaRho.keySet())
       {
-        int newkey = key * _lambdaRhoConsumer.get().size() + i;
-        // String newkey = String.valueOf(lambda)+"#"+key;
-        data.key = String.valueOf(newkey);
-        Pair<Integer, RegressionPrepareOutput> outPair =
-            new Pair<Integer, RegressionPrepareOutput>(newkey, data);
-        collector.collect(outPair);
+        z.put(String.valueOf(lambda), new LinearModel());
       }
+      zhat = (options.fastAdmm ? copyModels(z) : z);
+      lastSampleFraction = (options.sampleFractions.isEmpty() ? 1 : -1);
     }
   }
 
-  public static class AdmmPartitioner implements
-  Partitioner<AvroKey<Integer>, AvroValue<RegressionPrepareOutput>>
+  /**
+   * What iteration i fits and the paths of its u, z and x, set from the state at its start
+   */
+  static class AdmmIteration
   {
-    @Override
-    public void configure(JobConf conf)
-    {
-    }
+    final int                 i;
+    final long                startTime;
+    // the lambda fitted under regularization.path, and the one before it when this is its
+    // first iteration, whose u it starts from
+    final String              pathLambda;
+    final Map<String, String> uHandoff;
+    final float               sampleFraction;
+    // u = uplusx - z, with fast.admm=true uPath holds the extrapolated u and admmUPath the u of ADMM.
+    // With general.consensus=true uPath and zPath are the dirs of the u and z slices of each partition
+    final String              uPath;
+    final String              admmUPath;
+    final String              zPath;
+    // the x-update output
+    final String              outpath;
+    // the rho's of this iteration, without the lambdas that have converged or been dropped
+    final Map<Float, Float>   activeLambdaRho = new HashMap<Float, Float>();
+    // the file of these rho's, when they are not the ones of the whole run
+    String                    rhoPath;
 
-    @Override
-    public int getPartition(AvroKey<Integer> key,
-                            AvroValue<RegressionPrepareOutput> value,
-                            int numPartitions)
+    AdmmIteration(AdmmOptions options, AdmmState state, int i)
     {
-      Integer keyInt = key.datum();
-      if (keyInt < 0 || keyInt >= numPartitions)
+      this.i = i;
+      _logger.info("Now starting iteration " + String.valueOf(i));
+      if (options.regularizationPath && i > 0)
       {
-        throw new RuntimeException("Map key is wrong! key has to be in the range of [0,numPartitions-1].");
+        pathLambda = currentPathLambda(state.pathLambdas, state.converged, state.dropped);
+        int k = state.pathLambdas.indexOf(pathLambda);
+        if (state.pathIter == 0 && k > 0)
+        {
+          uHandoff = new HashMap<String, String>();
+          uHandoff.put(state.pathLambdas.get(k - 1), pathLambda);
+        }
+        else
+        {
+          uHandoff = null;
+        }
+        _logger.info("Fitting lambda=" + pathLambda + " of the regularization path");
       }
-      return keyInt;
+      else
+      {
+        pathLambda = null;
+        uHandoff = null;
+      }
+      sampleFraction =
+          (i > 0 && state.sampleStage < options.sampleFractions.size() ? options.sampleFractions.get(state.sampleStage) : 1);
+      if (sampleFraction < 1)
+      {
+        _logger.info("Fitting on a sample of " + sampleFraction + " of the records");
+      }
+      startTime = System.currentTimeMillis();
+
+      String iterPath = state.outBasePath + "/iter-" + String.valueOf(i);
+      admmUPath = iterPath + "/u-admm/part-r-00000.avro";
+      if (options.generalConsensus)
+      {
+        uPath = iterPath + "/u";
+        zPath = (state.lastZPath != null ? state.lastZPath : iterPath + "/init-value");
+      }
+      else
+      {
+        uPath = iterPath + "/u/part-r-00000.avro";
+        zPath = (state.lastZPath != null ? state.lastZPath : iterPath + "/init-value/part-r-00000.avro");
+      }
+      outpath = iterPath + "/model";
+      for (Float lambda : state.lambdaRho.keySet())
+      {
+        if (!state.converged.contains(String.valueOf(lambda)) && !state.dropped.contains(String.valueOf(lambda))
+            && (pathLambda == null || pathLambda.equals(String.valueOf(lambda))))
+        {
+          activeLambdaRho.put(lambda, state.lambdaRho.get(lambda));
+        }
+      }
+      rhoPath = state.rhoPath;
     }
   }
 
-  public static class AdmmReducer extends
-  AvroReducer<Integer, RegressionPrepareOutput, GenericData.Record>
+  /**
+   * The residuals, tolerances and z difference of each lambda after the z-update of an
+   * iteration. The driver z-update also keeps the means of x and u it computed z from
+   */
+  static class ZUpdateResult
   {
-    String                        _interceptKey;
-    long                          _reportfreq;
-    boolean                       _binaryFeature;
-    boolean                       _shortFeatureIndex;
-    float                         _liblinearEpsilon;
-    String                        _uPath;
-    String                        _initValuePath;
-    JobConf                       _conf;
-    private ReadLambdaRhoConsumer _lambdaRhoConsumer = new ReadLambdaRhoConsumer();
-    private List<Float>           _lambdaOrderedList;
-    private float                _rhoAdaptRate;
+    final Map<String, double[]>    residuals;
+    final Map<String, double[]>    tolerances;
+    final Map<String, Double>      zdiff;
+    final Map<String, LinearModel> xbar;
+    final Map<String, LinearModel> xhat;
+    final Map<String, LinearModel> ubar;
+    final Map<String, LinearModel> lastz;
+
+    ZUpdateResult(Map<String, double[]> residuals,
+                  Map<String, double[]> tolerances,
+                  Map<String, Double> zdiff,
+                  Map<String, LinearModel> xbar,
+                  Map<String, LinearModel> xhat,
+                  Map<String, LinearModel> ubar,
+                  Map<String, LinearModel> lastz)
+    {
+      this.residuals = residuals;
+      this.tolerances = tolerances;
+      this.zdiff = zdiff;
+      this.xbar = xbar;
+      this.xhat = xhat;
+      this.ubar = ubar;
+      this.lastz = lastz;
+    }
+  }
+
+  /**
+   * Restores the state of the run from the checkpoint of iteration lastIter
+   */
+  private void restoreCheckpoint(JobConf conf,
+                                 AdmmOptions options,
+                                 AdmmState state,
+                                 FastAdmm fast,
+                                 int lastIter) throws IOException
+  {
+    String checkpointPath = state.outBasePath + "/iter-" + String.valueOf(lastIter) + "/checkpoint";
+    _logger.info("Now resuming after iteration " + lastIter + " from " + checkpointPath);
+    GenericData.Record checkpoint = readCheckpoint(conf, checkpointPath + "/state.avro");
+    state.liblinearEpsilon = (Float) checkpoint.get("liblinearEpsilon");
+    state.mindiff = (Double) checkpoint.get("mindiff");
+    state.bestTestLoglik.setValue((Float) checkpoint.get("bestTestLoglik"));
+    if (checkpoint.get("pathIter") != null)
+    {
+      state.pathIter = (Integer) checkpoint.get("pathIter");
+    }
+    if (checkpoint.get("sampleStage") != null)
+    {
+      state.sampleStage = (Integer) checkpoint.get("sampleStage");
+      state.sampleStageIter = (Integer) checkpoint.get("sampleStageIter");
+    }
+    for (Object o : (List<?>) checkpoint.get("lambdas"))
+    {
+      GenericData.Record record = (GenericData.Record) o;
+      String lambda = record.get("lambda").toString();
+      if (!state.lambdaRho.containsKey(Float.parseFloat(lambda)))
+      {
+        throw new IOException("Lambda=" + lambda + " of the checkpoint is not in " + LAMBDA + "!");
+      }
+      state.lambdaRho.put(Float.parseFloat(lambda), (Float) record.get("rho"));
+      if ((Boolean) record.get("converged"))
+      {
+        state.converged.add(lambda);
+      }
+      if (Boolean.TRUE.equals(record.get("dropped")))
+      {
+        state.dropped.add(lambda);
+      }
+      if (record.get("uScale") != null)
+      {
+        if (state.uScale == null)
+        {
+          state.uScale = new HashMap<String, Double>();
+        }
+        state.uScale.put(lambda, (Double) record.get("uScale"));
+      }
+      if (record.get("momentum") != null)
+      {
+        if (state.momentum == null)
+        {
+          state.momentum = new HashMap<String, Double>();
+        }
+        state.momentum.put(lambda, (Double) record.get("momentum"));
+      }
+      if (record.get("fastA") != null)
+      {
+        fast.restore(lambda, (Double) record.get("fastA"), (Double) record.get("fastResidual"));
+      }
+    }
+    if (options.distributedZUpdate)
+    {
+      state.lastZPath = state.outBasePath + "/iter-" + String.valueOf(lastIter) + "/z";
+    }
+    else
+    {
+      state.z = readModels(conf, checkpointPath + "/z.avro");
+    }
+    state.zhat = (options.fastAdmm ? readModels(conf, checkpointPath + "/zhat.avro") : state.z);
+    if (options.dualUpdateInTasks && !options.distributedZUpdate)
+    {
+      state.taskUbar = readModels(conf, checkpointPath + "/ubar.avro");
+    }
+    Path zPrevPath = new Path(checkpointPath + "/zprev.avro");
+    if (zPrevPath.getFileSystem(conf).exists(zPrevPath))
+    {
+      state.zPrev = readModels(conf, zPrevPath.toString());
+    }
+  }
+
+  /**
+   * Writes the checkpoint of iteration i, the next one needs the x and u of this one besides
+   */
+  private void writeIterationCheckpoint(JobConf conf,
+                                        AdmmOptions options,
+                                        AdmmState state,
+                                        int i,
+                                        FastAdmm fast) throws IOException
+  {
+    String checkpointPath = state.outBasePath + "/iter-" + String.valueOf(i) + "/checkpoint";
+    if (!options.distributedZUpdate)
+    {
+      LinearModelUtils.writeLinearModel(conf, checkpointPath + "/z.avro", state.z);
+    }
+    if (options.fastAdmm)
+    {
+      LinearModelUtils.writeLinearModel(conf, checkpointPath + "/zhat.avro", state.zhat);
+    }
+    if (state.zPrev != null)
+    {
+      LinearModelUtils.writeLinearModel(conf, checkpointPath + "/zprev.avro", state.zPrev);
+    }
+    if (options.dualUpdateInTasks && !options.distributedZUpdate)
+    {
+      LinearModelUtils.writeLinearModel(conf, checkpointPath + "/ubar.avro", state.taskUbar);
+    }
+    writeCheckpoint(conf,
+                    checkpointPath + "/state.avro",
+                    i,
+                    state.liblinearEpsilon,
+                    state.mindiff,
+                    state.bestTestLoglik.floatValue(),
+                    state.pathIter,
+                    state.sampleStage,
+                    state.sampleStageIter,
+                    state.lambdaRho,
+                    state.converged,
+                    state.dropped,
+                    state.uScale,
+                    state.momentum,
+                    fast);
+  }
+
+  /**
+   * Creates the x-update job of an iteration, on the partition shards or on the prepared data,
+   * with the options of its tasks
+   */
+  private JobConf createIterationConf(JobConfig props,
+                                      AdmmOptions options,
+                                      AdmmState state,
+                                      AdmmIteration iteration) throws Exception
+  {
+    int i = iteration.i;
+    // set up configuration
+    props.put(AbstractAvroJob.OUTPUT_PATH, state.outBasePath + "/iter-" + String.valueOf(i));
+    JobConf conf;
+    if (options.persistPartitionShards)
+    {
+      conf =
+          createJobConf(ShardMapper.class,
+                        RegressionPartitionShard.SCHEMA$,
+                        RegressionTrainOutput.SCHEMA$);
+      FileInputFormat.setInputPaths(conf, new Path(state.shardPath));
+      // one map task per shard file
+      conf.setLong("mapred.min.split.size", Long.MAX_VALUE);
+    }
+    else
+    {
+      conf =
+          createJobConf(AdmmMapper.class,
+                        AdmmReducer.class,
+                        Pair.getPairSchema(Schema.create(Type.INT),
+                                           RegressionPrepareOutput.SCHEMA$),
+                                           RegressionTrainOutput.SCHEMA$);
+      conf.setPartitionerClass(AdmmPartitioner.class);
+      RegressionPrepareDataModel.setDataModel(conf);
+    }
+    //AvroUtils.setSpecificReducerInput(conf, true);
+    conf.setInt(NUM_BLOCKS, options.nblocks);
+    //Added for L1/L2
+    conf.setInt(REGULARIZER, options.reg);
+    conf.setLong(REPORT_FREQUENCY, props.getLong(REPORT_FREQUENCY, 1000000));
+    //boolean ignoreValue = props.getBoolean(BINARY_FEATURE, false);
+    conf.setBoolean(BINARY_FEATURE, options.ignoreValue);
+    conf.setBoolean(SHORT_FEATURE_INDEX, props.getBoolean(SHORT_FEATURE_INDEX, false));
+    conf.setInt(FEATURE_HASHING_BITS, props.getInt(FEATURE_HASHING_BITS, 0));
+    conf.setBoolean(FEATURE_HASHING_COLLISIONS, props.getBoolean(FEATURE_HASHING_COLLISIONS, false));
+    conf.setBoolean(SHARED_PARTITION_DATASET, options.sharedPartitionDataset);
+    conf.setInt(NUM_THREADS, props.getInt(NUM_THREADS, 1));
+    conf.setBoolean(GENERAL_CONSENSUS, options.generalConsensus);
+    conf.setBoolean(DUAL_UPDATE_IN_TASKS, options.dualUpdateInTasks);
+    conf.setBoolean(DISTRIBUTED_Z_UPDATE, options.distributedZUpdate);
+    conf.setFloat(SAMPLE_FRACTION, iteration.sampleFraction);
+    conf.setBoolean(INIT_FIT, i == 0);
+    if (i == 0)
+    {
+      conf.set(LAMBDA_MAP, state.lambdaMapPath);
+      conf.setBoolean(PENALIZE_INTERCEPT, options.penalizeIntercept);
+    }
+    conf.set(LIBLINEAR_BUDGET, options.liblinearBudget);
+    conf.setBoolean(WARM_START_SOLVER, options.warmStartSolver);
+    if (options.warmStartSolver && i > 1 && iteration.sampleFraction == state.lastSampleFraction)
+    {
+      conf.set(SOLVER_STATE_PATH, state.outBasePath + "/iter-" + String.valueOf(i - 1) + "/model/" + SOLVER_STATE_DIR);
+    }
+    state.lastSampleFraction = iteration.sampleFraction;
+    conf.set(OVER_RELAXATION, String.valueOf(options.overRelaxation));
+
+    String interceptKey = props.getString(INTERCEPT_KEY, LibLinearDataset.INTERCEPT_NAME);
+    conf.set(INTERCEPT_KEY, interceptKey);
+    //int schemaType = props.getInt(SCHEMA_TYPE, 1);
+    return conf;
+  }
+
+  /**
+   * Writes the u given to the x-update of an iteration, or points the tasks to the state
+   * they compute it from under dual.update.in.tasks
+   */
+  private void writeU(JobConf conf,
+                      AdmmOptions options,
+                      AdmmState state,
+                      AdmmIteration iteration) throws Exception
+  {
+    int i = iteration.i;
+    // compute and store u into file
+    if (i == 0)
+    {
+      // the partitions are fitted without u and z
+      if (!options.generalConsensus)
+      {
+        LinearModelUtils.writeLinearModel(conf, iteration.uPath, new HashMap<String, LinearModel>());
+      }
+    }
+    else if (options.dualUpdateInTasks)
+    {
+      // the tasks compute u from the state they wrote in the last iteration
+      if (i > 1)
+      {
+        conf.set(DUAL_STATE_PATH, state.outBasePath + "/iter-" + String.valueOf(i - 1) + "/model/" + DUAL_STATE_DIR);
+      }
+      if (i == 1 && options.initializeBoostRate > 0 && options.reg==2)
+      {
+        conf.setFloat(RHO_ADAPT_RATE, options.initializeBoostRate);
+      }
+      else if (i > 1 && options.rhoAdaptCoefficient > 0)
+      {
+        conf.setFloat(RHO_ADAPT_RATE, (float) Math.exp(-(i-1)*options.rhoAdaptCoefficient));
+      }
+    }
+    else if (i == 1 && options.generalConsensus)
+    {
+      // the features of the partitions are not known yet, the x-update keeps its own
+      for (int p = 0; p < options.nblocks; p++)
+      {
+        LinearModelUtils.writeLinearModel(conf, iteration.uPath + "/" + sliceFile(p), new HashMap<String, LinearModel>());
+        LinearModelUtils.writeLinearModel(conf, iteration.zPath + "/" + sliceFile(p), state.zhat);
+      }
+      if (options.initializeBoostRate > 0 && options.reg==2)
+      {
+        conf.setFloat(RHO_ADAPT_RATE, options.initializeBoostRate);
+      }
+    }
+    else if (i == 1)
+    {
+      LinearModelUtils.writeLinearModel(conf, iteration.uPath, new HashMap<String, LinearModel>());
+      if (options.fastAdmm)
+      {
+        LinearModelUtils.writeLinearModel(conf, iteration.admmUPath, new HashMap<String, LinearModel>());
+      }
+      if (options.initializeBoostRate > 0 && options.reg==2)
+      {
+        
+        conf.setFloat(RHO_ADAPT_RATE, options.initializeBoostRate);
+      }
+    }
+    else
+    {
+        String uplusxPath = state.outBasePath + "/iter-" + String.valueOf(i - 1) + "/model";
+      if (options.fastAdmm)
+      {
+        String lastAdmmUPath = state.outBasePath + "/iter-" + String.valueOf(i - 1) + "/u-admm";
+        computeFastU(conf, iteration.uPath, iteration.admmUPath, uplusxPath, lastAdmmUPath, state.z, state.momentum);
+      }
+      else if (options.generalConsensus)
+      {
+        computeSlicedU(conf, iteration.uPath, iteration.zPath, uplusxPath, state.z, state.uScale, options.overRelaxation, state.zPrev, options.nblocks);
+      }
+      else
+      {
+        computeU(conf, iteration.uPath, uplusxPath, state.z, state.uScale, options.overRelaxation, state.zPrev, iteration.uHandoff);
+      }
+      if(options.rhoAdaptCoefficient > 0)
+      {
+        float curRhoAdaptRate = (float) Math.exp(-(i-1)*options.rhoAdaptCoefficient);
+        conf.setFloat(RHO_ADAPT_RATE, curRhoAdaptRate);
+      }        
+    }
+  }
+
+  /**
+   * Writes the z given to the x-update of an iteration: once under distributed.z.update, whose
+   * z-update job writes the next ones, as a delta to a base under z.delta.broadcast, whole otherwise
+   */
+  private void writeZ(JobConf conf,
+                      AdmmOptions options,
+                      AdmmState state,
+                      AdmmIteration iteration) throws IOException
+  {
+    // write z into file
+    if (options.distributedZUpdate)
+    {
+      if (state.lastZPath == null)
+      {
+        writeConsensusZ(conf, iteration.zPath, state.zhat);
+      }
+    }
+    else if (options.zDeltaBroadcast)
+    {
+      // measure the delta on a copy, so that z is not snapped to a base about to be replaced
+      Map<String, LinearModel> delta =
+          (state.zBase == null ? null : zDelta(copyModels(state.zhat), state.zBase, options.zDeltaTolerance));
+      long zSize = 0;
+      long deltaSize = 0;
+      for (String lambda : state.zhat.keySet())
+      {
+        zSize += state.zhat.get(lambda).getCoefficients().size();
+        deltaSize += (delta == null ? 0 : delta.get(lambda).getCoefficients().size());
+      }
+      if (delta == null || deltaSize > options.zDeltaRebaseFraction * zSize)
+      {
+        // the delta is too large, the whole z becomes the base
+        FileSystem fs = FileSystem.get(conf);
+        if (state.zBasePath != null)
+        {
+          fs.delete(new Path(state.zBasePath), true);
+        }
+        state.zBasePath = state.outBasePath + "/z-base/iter-" + String.valueOf(iteration.i) + ".avro";
+        state.zBase = copyModels(state.zhat);
+        LinearModelUtils.writeLinearModel(conf, state.zBasePath, state.zBase);
+        deltaSize = 0;
+        _logger.info("Rebased z at " + state.zBasePath);
+      }
+      delta = zDelta(state.zhat, state.zBase, options.zDeltaTolerance);
+      _logger.info("Broadcasting " + deltaSize + " of the " + zSize + " coefficients of z as a delta to "
+          + state.zBasePath);
+      LinearModelUtils.writeLinearModel(conf, iteration.zPath, delta);
+      conf.set(Z_BASE_PATH, state.zBasePath);
+    }
+    else if (!options.generalConsensus)
+    {
+      LinearModelUtils.writeLinearModel(conf, iteration.zPath, state.zhat);
+    }
+  }
+
+  /**
+   * Sets the inputs of the x-update job of an iteration: its u, z and rho's, the liblinear
+   * epsilon and the number of reducers
+   */
+  private void setIterationInputs(JobConf conf,
+                                  AdmmOptions options,
+                                  AdmmState state,
+                                  AdmmIteration iteration,
+                                  float initEpsilon) throws Exception
+  {
+    int i = iteration.i;
+    conf.set(U_PATH, iteration.uPath);
+    conf.set(INIT_VALUE_PATH, iteration.zPath);
+    // the rho's of this iteration, when they have been changed by residual balancing or
+    // some lambdas have converged or been dropped
+    if (state.uScale != null || !state.converged.isEmpty() || !state.dropped.isEmpty() || options.regularizationPath)
+    {
+      iteration.rhoPath = state.outBasePath + "/iter-" + String.valueOf(i) + "/lambda-rho/part-r-00000.avro";
+      writeLambdaRho(conf, iteration.rhoPath, iteration.activeLambdaRho);
+    }
+    conf.set(LAMBDA_RHO_MAP, iteration.rhoPath);
+    // under inexact.admm the epsilon is set from the residuals of the last iteration
+    if (!options.inexactAdmm)
+    {
+      if (i > 1 && state.mindiff < 0.001 && !options.aggressiveLiblinearEpsilonDecay) // need to get a more accurate estimate from liblinear
+      {
+        state.liblinearEpsilon = state.liblinearEpsilon / 10;
+      }
+      else if(options.aggressiveLiblinearEpsilonDecay && i > 5)
+      {
+          state.liblinearEpsilon = state.liblinearEpsilon / 10;
+      }
+    }
+    conf.setFloat(LIBLINEAR_EPSILON, (i == 0 ? initEpsilon : state.liblinearEpsilon));
+     //Added for logging aggressive decay
+    _logger.info("Liblinear Epsilon for iter = " 
+        + String.valueOf(i) + " is: " + String.valueOf(state.liblinearEpsilon));
+    _logger.info("aggressiveLiblinearEpsilonDecay="+options.aggressiveLiblinearEpsilonDecay);
+    AvroOutputFormat.setOutputPath(conf, new Path(iteration.outpath));
+    if (!options.generalConsensus)
+    {
+      if (!options.dualUpdateInTasks)
+      {
+        AvroUtils.addAvroCacheFiles(conf, new Path(iteration.uPath));
+      }
+      AvroUtils.addAvroCacheFiles(conf, new Path(iteration.zPath));
+    }
+    if (state.zBasePath != null)
+    {
+      AvroUtils.addAvroCacheFiles(conf, new Path(state.zBasePath));
+    }
+    AvroUtils.addAvroCacheFiles(conf, new Path(iteration.rhoPath));
+    if (!options.persistPartitionShards)
+    {
+      if (options.sharedPartitionDataset)
+      {
+        conf.setNumReduceTasks(options.nblocks);
+      }
+      else
+      {
+        conf.setNumReduceTasks(options.nblocks * iteration.activeLambdaRho.size());
+      }
+      AvroJob.setInputSchema(conf, RegressionPrepareOutput.SCHEMA$);
+    }
+  }
+
+  /**
+   * Runs the x-update job of an iteration. Under partial.barrier.fraction it stops waiting
+   * once that fraction of the tasks is done, and the missing partitions keep their x of the
+   * last iteration, unless one has been stale for partial.barrier.max.delay iterations
+   */
+  private void runXUpdate(JobConf conf,
+                          AdmmOptions options,
+                          AdmmState state,
+                          AdmmIteration iteration,
+                          int lastIter) throws Exception
+  {
+    int i = iteration.i;
+    int maxStaleness = 0;
+    for (int delay : state.staleness.values())
+    {
+      maxStaleness = Math.max(maxStaleness, delay);
+    }
+    if (options.partialBarrierFraction >= 1 || i <= lastIter + 1 || maxStaleness >= options.partialBarrierMaxDelay)
+    {
+      AvroUtils.runAvroJob(conf);
+      state.staleness.clear();
+    }
+    else
+    {
+      int killed = AvroUtils.runAvroJob(conf, options.partialBarrierFraction, PARTIAL_BARRIER_POLL_MILLIS);
+      Map<String, Integer> lastStaleness = state.staleness;
+      state.staleness = new HashMap<String, Integer>();
+      if (killed > 0)
+      {
+        Set<String> keys = new HashSet<String>();
+        for (Float lambda : iteration.activeLambdaRho.keySet())
+        {
+          for (int p = 0; p < options.nblocks; p++)
+          {
+            keys.add(String.valueOf(lambda) + "#" + String.valueOf(p));
+          }
+        }
+        String lastOutpath = state.outBasePath + "/iter-" + String.valueOf(i - 1) + "/model";
+        for (String key : fillStaleModels(conf, iteration.outpath, lastOutpath, iteration.uPath, keys))
+        {
+          Integer delay = lastStaleness.get(key);
+          state.staleness.put(key, (delay == null ? 1 : delay + 1));
+        }
+        _logger.info("Iteration " + i + " reuses the last x of " + state.staleness.size() + " partitions: "
+            + state.staleness.keySet());
+      }
+    }
+  }
+
+  /**
+   * The z-update of an iteration: a ZUpdate job under distributed.z.update, the driver otherwise
+   */
+  private ZUpdateResult zUpdate(JobConfig props,
+                                JobConf conf,
+                                AdmmOptions options,
+                                AdmmState state,
+                                AdmmIteration iteration) throws Exception
+  {
+    if (options.distributedZUpdate)
+    {
+      return distributedZUpdate(props, options, state, iteration);
+    }
+    return driverZUpdate(conf, options, state, iteration);
+  }
+
+  /**
+   * Runs the z-update job of an iteration, the next iteration reads z from its output
+   */
+  private ZUpdateResult distributedZUpdate(JobConfig props,
+                                           AdmmOptions options,
+                                           AdmmState state,
+                                           AdmmIteration iteration) throws Exception
+  {
+    String zUpdatePath = state.outBasePath + "/iter-" + String.valueOf(iteration.i) + "/z";
+    Map<String, GenericData.Record> zStats =
+        runZUpdate(props, iteration.outpath, iteration.zPath, zUpdatePath, iteration.rhoPath, state.lambdaMapPath, options.nblocks, options.reg, options.penalizeIntercept);
+    Map<String, double[]> residuals = residuals(zStats, state.lambdaRho, options.nblocks);
+    Map<String, double[]> tolerances = tolerances(zStats, state.lambdaRho, options.nblocks, options.epsilonAbs, options.epsilonRel);
+    Map<String, Double> zdiff = zDifference(zStats);
+    for (Float lambda : state.lambdaRho.keySet())
+    {
+      if (!iteration.activeLambdaRho.containsKey(lambda))
+      {
+        // their z is kept, as zDifference(lastz, z) sees
+        zdiff.put(String.valueOf(lambda), 0.0);
+      }
+    }
+    state.lastZPath = zUpdatePath;
+    return new ZUpdateResult(residuals, tolerances, zdiff, null, null, null, null);
+  }
+
+  /**
+   * Updates z in the driver from the means of the x's and u's of an iteration
+   */
+  private ZUpdateResult driverZUpdate(JobConf conf,
+                                      AdmmOptions options,
+                                      AdmmState state,
+                                      AdmmIteration iteration) throws Exception
+  {
+    Map<String, Double> xSumSquaredNorm = new HashMap<String, Double>();
+    // number of partitions of each feature under general.consensus, null otherwise
+    Map<String, Integer> featureCounts = (options.generalConsensus ? new HashMap<String, Integer>() : null);
+    Map<String, Double> uSumSquaredNorm = new HashMap<String, Double>();
+    Map<String, LinearModel> xbar =
+        LinearModelUtils.meanModel(conf,
+                                   iteration.outpath,
+                                   options.nblocks,
+                                   iteration.activeLambdaRho.size(),
+                                   true,
+                                   xSumSquaredNorm,
+                                   featureCounts,
+                                   uSumSquaredNorm);
+    Map<String, LinearModel> ubar = state.taskUbar;
+    if (!options.dualUpdateInTasks)
+    {
+      ubar = LinearModelUtils.meanModel(conf, iteration.uPath, options.nblocks, iteration.activeLambdaRho.size(), false, uSumSquaredNorm);
+    }
+    if (options.generalConsensus)
+    {
+      toPartitionMean(xbar, featureCounts, options.nblocks);
+      toPartitionMean(ubar, featureCounts, options.nblocks);
+    }
+    Map<String, LinearModel> lastz = copyModels(state.z);
+    state.zPrev = (options.fastAdmm ? state.zhat : lastz);
+    Map<String, LinearModel> xhat = overRelax(xbar, state.zPrev, options.overRelaxation);
+    updateZ(state.z, xhat, ubar, state.lambdaRho, state.lambdaMap, options.nblocks, featureCounts, options.reg, options.penalizeIntercept);
+    Map<String, double[]> residuals =
+        residuals(state.z, state.zPrev, xbar, xSumSquaredNorm, state.lambdaRho, options.nblocks, featureCounts);
+    Map<String, double[]> tolerances =
+        tolerances(state.z, residuals.keySet(), xSumSquaredNorm, uSumSquaredNorm, state.lambdaRho, options.nblocks, featureCounts, options.epsilonAbs, options.epsilonRel);
+    Map<String, Double> zdiff = zDifference(lastz, state.z);
+    return new ZUpdateResult(residuals, tolerances, zdiff, xbar, xhat, ubar, lastz);
+  }
+
+  /**
+   * The bookkeeping after the z-update of an iteration: the lambdas that have converged or
+   * are dropped, the sample fraction, rho, the u of the tasks and the momentum of the next
+   * iteration, the convergence report and the test loglik. Returns the max z difference of
+   * the lambdas fitted
+   */
+  private double endIteration(JobConf conf,
+                              AdmmOptions options,
+                              AdmmState state,
+                              AdmmIteration iteration,
+                              ZUpdateResult update,
+                              FastAdmm fast) throws IOException
+  {
+    int i = iteration.i;
+    Map<String, double[]> residuals = update.residuals;
+    Map<String, double[]> tolerances = update.tolerances;
+    Set<String> convergedNow = new HashSet<String>();
+    for (String lambda : residuals.keySet())
+    {
+      if (residuals.get(lambda)[0] <= tolerances.get(lambda)[0]
+          && residuals.get(lambda)[1] <= tolerances.get(lambda)[1])
+      {
+        convergedNow.add(lambda);
+      }
+    }
+    if (iteration.sampleFraction < 1)
+    {
+      // the lambdas only converge on all the records, the next fraction is used once the
+      // residuals of the sample are close to the tolerances
+      boolean close = true;
+      for (String lambda : residuals.keySet())
+      {
+        if (residuals.get(lambda)[0] > options.samplingToleranceFactor * tolerances.get(lambda)[0]
+            || residuals.get(lambda)[1] > options.samplingToleranceFactor * tolerances.get(lambda)[1])
+        {
+          close = false;
+        }
+      }
+      convergedNow.clear();
+      state.sampleStageIter++;
+      if (close || state.sampleStageIter >= options.samplingMaxIters)
+      {
+        state.sampleStage++;
+        state.sampleStageIter = 0;
+        _logger.info("Iteration " + i + " ends the sample of " + iteration.sampleFraction + " of the records");
+      }
+    }
+    state.uScale = null;
+    if (options.residualBalancing)
+    {
+      state.uScale = balanceRho(state.lambdaRho, residuals, options.balancingMu, options.balancingTau);
+    }
+    if (options.dualUpdateInTasks && !options.distributedZUpdate)
+    {
+      state.taskUbar = nextUbar(update.ubar, update.xhat, state.z, state.uScale);
+    }
+    if (options.fastAdmm)
+    {
+      state.momentum = fast.momentum(residuals, state.lambdaRho);
+      state.zhat = FastAdmm.extrapolate(state.z, update.lastz, state.momentum);
+    }
+    if (update.xbar != null)
+    {
+      update.xbar.clear();
+      update.ubar.clear();
+    }
+    // Output max difference between last z and this z
+    state.mindiff = 99999999;
+    double maxdiff = 0;
+    for (String lambda : update.zdiff.keySet())
+    {
+      if (iteration.pathLambda != null && !iteration.pathLambda.equals(lambda))
+      {
+        // the other lambdas of the path are not fitted
+        continue;
+      }
+      double diff = update.zdiff.get(lambda);
+      if (state.mindiff > diff)
+        state.mindiff = diff;
+      if (maxdiff < diff)
+        maxdiff = diff;
+    }
+    writeConvergenceReport(conf,
+                           state.outBasePath + "/convergence-report/iteration-" + i + ".avro",
+                           i,
+                           iteration.activeLambdaRho,
+                           residuals,
+                           tolerances,
+                           convergedNow,
+                           update.zdiff,
+                           state.liblinearEpsilon,
+                           System.currentTimeMillis() - iteration.startTime);
+    if (options.inexactAdmm)
+    {
+      state.liblinearEpsilon = inexactEpsilon(residuals, tolerances, options.inexactMinEpsilon, options.inexactMaxEpsilon, state.liblinearEpsilon);
+    }
+    if (options.residualStopping)
+    {
+      for (String lambda : convergedNow)
+      {
+        _logger.info("Lambda=" + lambda + " has converged at iteration " + i);
+      }
+      state.converged.addAll(convergedNow);
+    }
+    // Output testloglik and update best model
+    if (state.testBatch != null)
+    {
+      Map<String, Double> loglik =
+          updateLogLikBestModel(conf,
+                                i,
+                                state.z,
+                                state.testBatch,
+                                state.bestTestLoglik,
+                                state.outBasePath,
+                                options.numClickReplicates);
+      if (options.halvingRungs.contains(i))
+      {
+        state.dropped.addAll(halveLambdas(i, loglik, state.lambdaRho.keySet(), state.converged, state.dropped, options.halvingEta));
+      }
+    }
+    if (options.regularizationPath)
+    {
+      String pathLambda = iteration.pathLambda;
+      state.pathIter++;
+      if (!state.converged.contains(pathLambda) && state.pathIter >= options.niter)
+      {
+        _logger.info("Lambda=" + pathLambda + " has not converged after " + options.niter + " iterations");
+        state.dropped.add(pathLambda);
+      }
+      String next = currentPathLambda(state.pathLambdas, state.converged, state.dropped);
+      if (next != null && !next.equals(pathLambda))
+      {
+        // warm start the next lambda from this one, computeU hands its u over
+        state.z.put(next, state.z.get(pathLambda).copy());
+        state.lambdaRho.put(Float.parseFloat(next), state.lambdaRho.get(Float.parseFloat(pathLambda)));
+        state.pathIter = 0;
+        _logger.info("Lambda=" + next + " starts from the z, u and rho of lambda=" + pathLambda);
+      }
+    }
+    return maxdiff;
+  }
+
+  /**
+   * Runs the distributed z-update of an iteration on the x-update output under modelPath and
+   * the z given to it under lastZPath, writes the new z to zPath and returns the sums for the
+   * residuals of each lambda fitted, see ZUpdateReducer.
+   */
+  private Map<String, GenericData.Record> runZUpdate(JobConfig props,
+                                                     String modelPath,
+                                                     String lastZPath,
+                                                     String zPath,
+                                                     String rhoPath,
+                                                     String lambdaMapPath,
+                                                     int nblocks,
+                                                     int reg,
+                                                     boolean penalizeIntercept) throws Exception
+  {
+    _logger.info("Now running the z-update to " + zPath);
+    props.put(AbstractAvroJob.OUTPUT_PATH, zPath);
+    JobConf conf =
+        createJobConf(ZUpdateMapper.class,
+                      ZUpdateReducer.class,
+                      Pair.getPairSchema(Schema.create(Type.STRING), AdmmFeatureTerm.SCHEMA$),
+                      RegressionTrainOutput.SCHEMA$);
+    FileInputFormat.setInputPaths(conf, new Path(modelPath), new Path(lastZPath));
+    AvroJob.setInputSchema(conf, RegressionTrainOutput.SCHEMA$);
+    conf.setInt(NUM_BLOCKS, nblocks);
+    conf.setInt(REGULARIZER, reg);
+    conf.setBoolean(PENALIZE_INTERCEPT, penalizeIntercept);
+    conf.set(LAMBDA_MAP, lambdaMapPath);
+    conf.set(LAMBDA_RHO_MAP, rhoPath);
+    AvroUtils.addAvroCacheFiles(conf, new Path(rhoPath));
+    conf.setNumReduceTasks(props.getInt(Z_UPDATE_NUM_REDUCERS, nblocks));
+    AvroUtils.runAvroJob(conf);
+    return readZUpdateStats(conf, zPath + "/" + Z_UPDATE_STATS_DIR);
+  }
+
+  /**
+   * Runs the job that writes the dataset of each partition as one shard under shardPath.
+   */
+  private void writePartitionShards(JobConfig props,
+                                    String shardPath,
+                                    String rhoPath,
+                                    int nblocks,
+                                    boolean ignoreValue) throws Exception
+  {
+    _logger.info("Now writing the partition shards to " + shardPath);
+    props.put(AbstractAvroJob.OUTPUT_PATH, shardPath);
+    JobConf conf =
+        createJobConf(AdmmMapper.class,
+                      ShardReducer.class,
+                      Pair.getPairSchema(Schema.create(Type.INT),
+                                         RegressionPrepareOutput.SCHEMA$),
+                      RegressionPartitionShard.SCHEMA$);
+    conf.setPartitionerClass(AdmmPartitioner.class);
+    RegressionPrepareDataModel.setDataModel(conf);
+    conf.setBoolean(SHARED_PARTITION_DATASET, true);
+    conf.setBoolean(BINARY_FEATURE, ignoreValue);
+    conf.setBoolean(SHORT_FEATURE_INDEX, props.getBoolean(SHORT_FEATURE_INDEX, false));
+    conf.setInt(FEATURE_HASHING_BITS, props.getInt(FEATURE_HASHING_BITS, 0));
+    conf.setBoolean(FEATURE_HASHING_COLLISIONS, props.getBoolean(FEATURE_HASHING_COLLISIONS, false));
+    conf.set(LAMBDA_RHO_MAP, rhoPath);
+    AvroUtils.addAvroCacheFiles(conf, new Path(rhoPath));
+    conf.setNumReduceTasks(nblocks);
+    AvroJob.setInputSchema(conf, RegressionPrepareOutput.SCHEMA$);
+    AvroUtils.runAvroJob(conf);
+  }
+
+  public static class AdmmMapper extends
+  AvroMapper<RegressionPrepareOutput, Pair<Integer, RegressionPrepareOutput>>
+  {
+    private ReadLambdaRhoConsumer _lambdaRhoConsumer = new ReadLambdaRhoConsumer();
+    private boolean               _sharedPartitionDataset;
+    private float                 _sampleFraction;
+
+    @Override
+    public void setConf(Configuration conf)
+    {
+      super.setConf(conf);
+      if (conf == null)
+      {
+        return;
+      }
+      _sharedPartitionDataset = conf.getBoolean(SHARED_PARTITION_DATASET, false);
+      _sampleFraction = conf.getFloat(SAMPLE_FRACTION, 1);
+      AvroDistributedCacheFileReader lambdaRhoReader =
+          new AvroDistributedCacheFileReader(new JobConf(conf));
+      try
+      {
+        lambdaRhoReader.build(conf.get(LAMBDA_RHO_MAP), _lambdaRhoConsumer);
+        _lambdaRhoConsumer.done();
+      }
+      catch (IOException e)
+      {
+        e.printStackTrace();
+      }
+      _logger.info("lambda file:" + conf.get(LAMBDA_RHO_MAP));
+      _logger.info("Loaded " + String.valueOf(_lambdaRhoConsumer.get().size())
+                   + " lambdas.");
+    }
+
+    @Override
+    public void map(RegressionPrepareOutput data,
+                    AvroCollector<Pair<Integer, RegressionPrepareOutput>> collector,
+                    Reporter reporter) throws IOException
+    {
+      Integer key = Integer.parseInt(data.key.toString());
+      if (_sampleFraction < 1)
+      {
+        if (sampleHash(data) >= _sampleFraction)
+        {
+          return;
+        }
+        // the sample stands for all the records of the partition
+        data.weight = data.weight / _sampleFraction;
+      }
+      if (_sharedPartitionDataset)
+      {
+        collector.collect(new Pair<Integer, RegressionPrepareOutput>(key, data));
+        return;
+      }
+      for (int i = 0; i < _lambdaRhoConsumer.get().size(); i++)
+      {
+        int newkey = key * _lambdaRhoConsumer.get().size() + i;
+        // String newkey = String.valueOf(lambda)+"#"+key;
+        data.key = String.valueOf(newkey);
+        Pair<Integer, RegressionPrepareOutput> outPair =
+            new Pair<Integer, RegressionPrepareOutput>(newkey, data);
+        collector.collect(outPair);
+      }
+    }
+  }
+
+  /**
+   * Returns a number in [0, 1) that only depends on the content of the record, so that the
+   * sample of a fraction is the same in every iteration and contains the one of any smaller
+   * fraction.
+   */
+  static double sampleHash(RegressionPrepareOutput data)
+  {
+    long h = data.response;
+    for (feature f : data.features)
+    {
+      h = h * 31 + f.name.toString().hashCode();
+      h = h * 31 + f.term.toString().hashCode();
+      h = h * 31 + Float.floatToIntBits(f.value);
+    }
+    h = h * 31 + Float.floatToIntBits(data.offset);
+    // the finalizer of MurmurHash3, so that close records do not get close numbers
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb93fe53ce34dL;
+    h ^= h >>> 33;
+    return (h >>> 11) / (double) (1L << 53);
+  }
+
+  public static class AdmmPartitioner implements
+  Partitioner<AvroKey<Integer>, AvroValue<RegressionPrepareOutput>>
+  {
+    @Override
+    public void configure(JobConf conf)
+    {
+    }
+
+    @Override
+    public int getPartition(AvroKey<Integer> key,
+                            AvroValue<RegressionPrepareOutput> value,
+                            int numPartitions)
+    {
+      Integer keyInt = key.datum();
+      if (keyInt < 0 || keyInt >= numPartitions)
+      {
+        throw new RuntimeException("Map key is wrong! key has to be in the range of [0,numPartitions-1].");
+      }
+      return keyInt;
+    }
+  }
+
+  public static class AdmmReducer extends
+  AvroReducer<Integer, RegressionPrepareOutput, GenericData.Record>
+  {
+    boolean                       _binaryFeature;
+    boolean                       _shortFeatureIndex;
+    int                           _hashingBits;
+    boolean                       _hashingCollisions;
+    private boolean               _sharedPartitionDataset;
+    private PartitionTrainer      _trainer;
+
+    @Override
+    public void setConf(Configuration conf)
+    {
+      super.setConf(conf);
+      if (conf == null)
+      {
+        return;
+      }
+      _binaryFeature = conf.getBoolean(BINARY_FEATURE, false);
+      _shortFeatureIndex = conf.getBoolean(SHORT_FEATURE_INDEX, false);
+      _hashingBits = conf.getInt(FEATURE_HASHING_BITS, 0);
+      _hashingCollisions = conf.getBoolean(FEATURE_HASHING_COLLISIONS, false);
+      _sharedPartitionDataset = conf.getBoolean(SHARED_PARTITION_DATASET, false);
+      _trainer = new PartitionTrainer(conf);
+    }
+
+    @Override
+    public void reduce(Integer NumKey,
+                       Iterable<RegressionPrepareOutput> values,
+                       AvroCollector<GenericData.Record> collector,
+                       Reporter reporter) throws IOException
+    {
+      List<Float> lambdas = _trainer.getLambdas();
+      int nlambdas = lambdas.size();
+      int partitionID;
+      if (_sharedPartitionDataset)
+      {
+        // the key is the partition, all lambdas are fitted from the same dataset
+        partitionID = NumKey;
+      }
+      else
+      {
+        lambdas = java.util.Collections.singletonList(lambdas.get(NumKey % nlambdas));
+        partitionID = (int) NumKey / nlambdas;
+      }
+      LibLinearDataset dataset =
+          buildDataset(values, _binaryFeature, _shortFeatureIndex, _hashingBits, _hashingCollisions);
+      _trainer.train(dataset, lambdas, partitionID, collector, reporter);
+    }
+  }
+
+  /**
+   * Writes the dataset of each partition as a shard, once before the iterations.
+   */
+  public static class ShardReducer extends
+  AvroReducer<Integer, RegressionPrepareOutput, RegressionPartitionShard>
+  {
+    boolean _binaryFeature;
+    boolean _shortFeatureIndex;
+    int     _hashingBits;
+    boolean _hashingCollisions;
+
+    @Override
+    public void setConf(Configuration conf)
+    {
+      super.setConf(conf);
+      if (conf == null)
+      {
+        return;
+      }
+      _binaryFeature = conf.getBoolean(BINARY_FEATURE, false);
+      _shortFeatureIndex = conf.getBoolean(SHORT_FEATURE_INDEX, false);
+      _hashingBits = conf.getInt(FEATURE_HASHING_BITS, 0);
+      _hashingCollisions = conf.getBoolean(FEATURE_HASHING_COLLISIONS, false);
+    }
+
+    @Override
+    public void reduce(Integer partitionID,
+                       Iterable<RegressionPrepareOutput> values,
+                       AvroCollector<RegressionPartitionShard> collector,
+                       Reporter reporter) throws IOException
+    {
+      LibLinearDataset dataset =
+          buildDataset(values, _binaryFeature, _shortFeatureIndex, _hashingBits, _hashingCollisions);
+      _logger.info("Partition " + partitionID + " has " + dataset.nInstances()
+          + " instances and " + dataset.nFeatures() + " features");
+      collector.collect(dataset.toShard(String.valueOf(partitionID)));
+    }
+  }
+
+  /**
+   * Map-only x-update: each shard holds a whole partition, all lambdas are fitted from it.
+   */
+  public static class ShardMapper extends
+  AvroMapper<RegressionPartitionShard, GenericData.Record>
+  {
+    boolean                  _binaryFeature;
+    boolean                  _shortFeatureIndex;
+    private PartitionTrainer _trainer;
+
+    @Override
+    public void setConf(Configuration conf)
+    {
+      super.setConf(conf);
+      if (conf == null)
+      {
+        return;
+      }
+      _binaryFeature = conf.getBoolean(BINARY_FEATURE, false);
+      _shortFeatureIndex = conf.getBoolean(SHORT_FEATURE_INDEX, false);
+      _trainer = new PartitionTrainer(conf);
+    }
+
+    @Override
+    public void map(RegressionPartitionShard shard,
+                    AvroCollector<GenericData.Record> collector,
+                    Reporter reporter) throws IOException
+    {
+      LibLinearDataset dataset = newDataset(_binaryFeature, _shortFeatureIndex);
+      dataset.readFromShard(shard);
+      _trainer.train(dataset,
+                     _trainer.getLambdas(),
+                     Integer.parseInt(shard.key.toString()),
+                     collector,
+                     reporter);
+    }
+  }
+
+  /**
+   * Map of the distributed z-update: sends the x and w = u + alpha * x + (1 - alpha) * z of
+   * each lambda#partition output of the x-update, and the z given to it, to lambda#feature.
+   */
+  public static class ZUpdateMapper extends
+  AvroMapper<RegressionTrainOutput, Pair<CharSequence, AdmmFeatureTerm>>
+  {
+    @Override
+    public void map(RegressionTrainOutput output,
+                    AvroCollector<Pair<CharSequence, AdmmFeatureTerm>> collector,
+                    Reporter reporter) throws IOException
+    {
+      String key = output.key.toString();
+      int sep = key.indexOf('#');
+      Map<String, AdmmFeatureTerm> terms = new HashMap<String, AdmmFeatureTerm>();
+      String lambda;
+      if (sep < 0)
+      {
+        // a shard of the z of the lambda
+        lambda = key;
+        for (GenericRecord f : output.model)
+        {
+          findTerm(terms, f).lastz = (Float) f.get("value");
+        }
+      }
+      else
+      {
+        lambda = key.substring(0, sep);
+        for (GenericRecord f : output.model)
+        {
+          AdmmFeatureTerm term = findTerm(terms, f);
+          term.partitions = 1;
+          term.x = (Float) f.get("value");
+          term.xSquared = term.x * term.x;
+        }
+        for (GenericRecord f : output.uplusx)
+        {
+          AdmmFeatureTerm term = findTerm(terms, f);
+          term.partitions = 1;
+          term.w = (Float) f.get("value");
+        }
+        // every output has the intercept
+        findTerm(terms, LibLinearDataset.INTERCEPT_NAME).uSquaredNorm =
+            (output.uSquaredNorm == null ? 0 : output.uSquaredNorm);
+      }
+      for (Map.Entry<String, AdmmFeatureTerm> entry : terms.entrySet())
+      {
+        collector.collect(new Pair<CharSequence, AdmmFeatureTerm>(lambda + "#" + entry.getKey(),
+                                                                  entry.getValue()));
+      }
+    }
+
+    private static AdmmFeatureTerm findTerm(Map<String, AdmmFeatureTerm> terms, GenericRecord feature)
+    {
+      String name = feature.get("name").toString();
+      String term = feature.get("term").toString();
+      if (!"".equals(term))
+      {
+        name = name + "\u0001" + term;
+      }
+      return findTerm(terms, name);
+    }
+
+    private static AdmmFeatureTerm findTerm(Map<String, AdmmFeatureTerm> terms, String name)
+    {
+      AdmmFeatureTerm term = terms.get(name);
+      if (term == null)
+      {
+        term = new AdmmFeatureTerm(0, 0.0, 0.0, 0.0, 0.0, 0.0);
+        terms.put(name, term);
+      }
+      return term;
+    }
+  }
+
+  /**
+   * Reduce of the distributed z-update: computes the z of each lambda#feature as updateZ
+   * does, from the mean of the w's, which is xhat + ubar. The z of the lambdas that are not
+   * fitted any more is kept. Each reducer outputs one record per lambda with the features of
+   * its shard, and the sums of its shard for the residuals under Z_UPDATE_STATS_DIR.
+   */
+  public static class ZUpdateReducer extends
+  AvroReducer<CharSequence, AdmmFeatureTerm, GenericData.Record>
+  {
+    private JobConf                                _conf;
+    private int                                    _nblocks;
+    private int                                    _reg;
+    private boolean                                _penalizeIntercept;
+    private Map<Float, Float>                      _lambdaRho;
+    private Map<String, Float>                     _lambdaMap;
+    // features of z of each lambda in this shard
+    private Map<String, List<GenericData.Record>>  _z     = new HashMap<String, List<GenericData.Record>>();
+    private Map<String, GenericData.Record>        _stats = new HashMap<String, GenericData.Record>();
+    private AvroCollector<GenericData.Record>      _collector;
+
+    @Override
+    public void setConf(Configuration conf)
+    {
+      super.setConf(conf);
+      if (conf == null)
+      {
+        return;
+      }
+      _conf = new JobConf(conf);
+      _nblocks = conf.getInt(NUM_BLOCKS, 1);
+      _reg = conf.getInt(REGULARIZER, 2);
+      _penalizeIntercept = conf.getBoolean(PENALIZE_INTERCEPT, false);
+      ReadLambdaRhoConsumer lambdaRhoConsumer = new ReadLambdaRhoConsumer();
+      try
+      {
+        new AvroDistributedCacheFileReader(_conf).build(conf.get(LAMBDA_RHO_MAP), lambdaRhoConsumer);
+        lambdaRhoConsumer.done();
+        _lambdaMap = readLambdaMap(_conf, conf.get(LAMBDA_MAP, ""));
+      }
+      catch (IOException e)
+      {
+        throw new RuntimeException("Failed to read the lambdas", e);
+      }
+      _lambdaRho = lambdaRhoConsumer.get();
+    }
+
+    @Override
+    public void reduce(CharSequence lambdaFeature,
+                       Iterable<AdmmFeatureTerm> terms,
+                       AvroCollector<GenericData.Record> collector,
+                       Reporter reporter) throws IOException
+    {
+      _collector = collector;
+      String key = lambdaFeature.toString();
+      int sep = key.indexOf('#');
+      String lambda = key.substring(0, sep);
+      String feature = key.substring(sep + 1);
+      int partitions = 0;
+      double x = 0;
+      double xSquared = 0;
+      double w = 0;
+      double lastz = 0;
+      double uSquaredNorm = 0;
+      for (AdmmFeatureTerm term : terms)
+      {
+        partitions += term.partitions;
+        x += term.x;
+        xSquared += term.xSquared;
+        w += term.w;
+        lastz += term.lastz;
+        uSquaredNorm += term.uSquaredNorm;
+      }
+      float l = Float.parseFloat(lambda);
+      Float r = _lambdaRho.get(l);
+      if (r == null)
+      {
+        // the lambda has converged and was not fitted
+        addFeature(lambda, feature, lastz);
+        return;
+      }
+      // the features only in the last z are dropped, as updateZ clears z
+      double z = 0;
+      if (partitions > 0)
+      {
+        z = consensus(l, r, feature, w / _nblocks);
+        addFeature(lambda, feature, z);
+      }
+      GenericData.Record stats = _stats.get(lambda);
+      if (stats == null)
+      {
+        stats = new GenericData.Record(AdmmZUpdateStats.SCHEMA$);
+        stats.put("lambda", lambda);
+        stats.put("xSumSquaredNorm", 0.0);
+        stats.put("zDotXSum", 0.0);
+        stats.put("zSquaredNorm", 0.0);
+        stats.put("zDiffSquaredNorm", 0.0);
+        stats.put("zDiffMax", 0.0);
+        stats.put("uSumSquaredNorm", 0.0);
+        stats.put("zSize", 0L);
+        _stats.put(lambda, stats);
+      }
+      addStat(stats, "xSumSquaredNorm", xSquared);
+      addStat(stats, "zDotXSum", z * x);
+      addStat(stats, "zSquaredNorm", z * z);
+      addStat(stats, "zDiffSquaredNorm", (z - lastz) * (z - lastz));
+      stats.put("zDiffMax", Math.max((Double) stats.get("zDiffMax"), Math.abs(z - lastz)));
+      addStat(stats, "uSumSquaredNorm", uSquaredNorm);
+      if (partitions > 0 && !LibLinearDataset.INTERCEPT_NAME.equals(feature))
+      {
+        stats.put("zSize", (Long) stats.get("zSize") + 1);
+      }
+    }
+
+    /**
+     * z of one feature given the mean of the w's, see updateZ
+     */
+    private double consensus(float l, float r, String feature, double wbar)
+    {
+      boolean intercept = LibLinearDataset.INTERCEPT_NAME.equals(feature);
+      if (intercept && !_penalizeIntercept)
+      {
+        return wbar;
+      }
+      float lk = (!intercept && _lambdaMap.containsKey(feature) ? _lambdaMap.get(feature) : l);
+      if (_reg == 2)
+      {
+        return _nblocks * r / (lk + _nblocks * r + 0.0) * wbar;
+      }
+      // L1, the intercept is not thresholded
+      double threshold = lk / (r * _nblocks + 0.0);
+      if (intercept)
+      {
+        return wbar;
+      }
+      else if (wbar > threshold)
+      {
+        return wbar - threshold;
+      }
+      else if (wbar < -threshold)
+      {
+        return wbar + threshold;
+      }
+      return 0;
+    }
+
+    private void addFeature(String lambda, String name, double value)
+    {
+      List<GenericData.Record> features = _z.get(lambda);
+      if (features == null)
+      {
+        features = new ArrayList<GenericData.Record>();
+        _z.put(lambda, features);
+      }
+      String[] token = name.split("\u0001");
+      GenericData.Record feature =
+          new GenericData.Record(RegressionTrainOutput.SCHEMA$.getField("model").schema().getElementType());
+      feature.put("name", token[0]);
+      feature.put("term", (token.length > 1 ? token[1] : ""));
+      feature.put("value", (float) value);
+      features.add(feature);
+    }
+
+    private static void addStat(GenericData.Record stats, String field, double value)
+    {
+      stats.put(field, (Double) stats.get(field) + value);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      // the collector of the reduce() calls is still open
+      for (String lambda : _z.keySet())
+      {
+        GenericData.Record output = new GenericData.Record(RegressionTrainOutput.SCHEMA$);
+        output.put("key", lambda);
+        output.put("model", _z.get(lambda));
+        output.put("uplusx", new ArrayList<GenericData.Record>());
+        _collector.collect(output);
+      }
+      if (!_stats.isEmpty())
+      {
+        Path path = new Path(FileOutputFormat.getWorkOutputPath(_conf), Z_UPDATE_STATS_DIR + "/stats-"
+            + _conf.getInt("mapred.task.partition", 0) + ".avro");
+        AvroHdfsFileWriter<GenericRecord> writer =
+            new AvroHdfsFileWriter<GenericRecord>(_conf, path.toString(), AdmmZUpdateStats.SCHEMA$);
+        DataFileWriter<GenericRecord> recordWriter = writer.get();
+        for (GenericData.Record stats : _stats.values())
+        {
+          recordWriter.append(stats);
+        }
+        recordWriter.close();
+      }
+    }
+  }
+
+  /**
+   * The x-update of the partitions of a task. rho, u and the init value are read from
+   * the distributed cache.
+   */
+  static class PartitionTrainer
+  {
+    String                        _interceptKey;
+    long                          _reportfreq;
+    float                         _liblinearEpsilon;
+    String                        _liblinearBudget;
+    String                        _uPath;
+    String                        _initValuePath;
+    String                        _zBasePath;
+    JobConf                       _conf;
+    private ReadLambdaRhoConsumer _lambdaRhoConsumer = new ReadLambdaRhoConsumer();
+    private List<Float>           _lambdaOrderedList;
+    private float                 _rhoAdaptRate;
+    private int                   _numThreads;
+    private boolean               _generalConsensus;
+    private boolean               _dualUpdateInTasks;
+    private boolean               _distributedZUpdate;
+    private String                _dualStatePath;
+    private boolean               _warmStartSolver;
+    private String                _solverStatePath;
+    private double                _overRelaxation;
+    // under init.fit, the prior variances of the features of lambda.map and of the intercept
+    private boolean               _initFit;
+    private Map<String, Double>   _initPriorVar = new HashMap<String, Double>();
+    // u and z of the partition being trained, read once per partition instead of once per key
+    private int                      _cachedPartition = -1;
+    private Map<String, LinearModel> _uCache;
+    private Map<String, LinearModel> _initValueCache;
+
+    PartitionTrainer(Configuration conf)
+    {
+      _interceptKey = conf.get(INTERCEPT_KEY, LibLinearDataset.INTERCEPT_NAME);
+      _reportfreq = conf.getLong(REPORT_FREQUENCY, 1000000);
+      _liblinearEpsilon = conf.getFloat(LIBLINEAR_EPSILON, 0.01f);
+      _liblinearBudget = conf.get(LIBLINEAR_BUDGET, "");
+      _rhoAdaptRate = conf.getFloat(RHO_ADAPT_RATE,  1.0f);
+      _numThreads = conf.getInt(NUM_THREADS, 1);
+      _generalConsensus = conf.getBoolean(GENERAL_CONSENSUS, false);
+      _dualUpdateInTasks = conf.getBoolean(DUAL_UPDATE_IN_TASKS, false);
+      _distributedZUpdate = conf.getBoolean(DISTRIBUTED_Z_UPDATE, false);
+      _dualStatePath = conf.get(DUAL_STATE_PATH);
+      _warmStartSolver = conf.getBoolean(WARM_START_SOLVER, false);
+      _solverStatePath = conf.get(SOLVER_STATE_PATH);
+      _overRelaxation = Double.parseDouble(conf.get(OVER_RELAXATION, "1.0"));
+      _initFit = conf.getBoolean(INIT_FIT, false);
+      AvroDistributedCacheFileReader lambdaRhoReader =
+          new AvroDistributedCacheFileReader(new JobConf(conf));
+      try
+      {
+        lambdaRhoReader.build(conf.get(LAMBDA_RHO_MAP), _lambdaRhoConsumer);
+        _lambdaRhoConsumer.done();
+        if (_initFit)
+        {
+          Map<String, Float> lambdaMap = readLambdaMap(new JobConf(conf), conf.get(LAMBDA_MAP, ""));
+          for (String k : lambdaMap.keySet())
+          {
+            _initPriorVar.put(k, 1.0 / lambdaMap.get(k));
+          }
+          if (!conf.getBoolean(PENALIZE_INTERCEPT, false))
+          {
+            _initPriorVar.put(LibLinearDataset.INTERCEPT_NAME, 100000.0); // very large variance for intercept
+          }
+        }
+      }
+      catch (IOException e)
+      {
+        e.printStackTrace();
+      }
+      _uPath = conf.get(U_PATH);
+      _initValuePath = conf.get(INIT_VALUE_PATH);
+      _zBasePath = conf.get(Z_BASE_PATH);
+      _conf = new JobConf(conf);
+      Set<Float> lambdaSet = _lambdaRhoConsumer.get().keySet();
+      _lambdaOrderedList = new ArrayList<Float>(lambdaSet);
+      java.util.Collections.sort(_lambdaOrderedList);
+    }
+
+    /**
+     * All the lambdas in increasing order
+     */
+    List<Float> getLambdas()
+    {
+      return _lambdaOrderedList;
+    }
+
+    /**
+     * Fits the given lambdas on the dataset of the partition and collects one
+     * RegressionTrainOutput per lambda, in the order of the lambdas.
+     */
+    void train(final LibLinearDataset dataset,
+               List<Float> lambdas,
+               final int partitionID,
+               AvroCollector<GenericData.Record> collector,
+               final Reporter reporter) throws IOException
+    {
+      if (!_initFit)
+      {
+        loadPartition(partitionID);
+      }
+      if (_numThreads <= 1 || lambdas.size() == 1)
+      {
+        for (float lambda : lambdas)
+        {
+          collector.collect(train(dataset, lambda, partitionID, reporter));
+        }
+        return;
+      }
+      // fit the lambdas in parallel, the dataset is only read by liblinear
+      ExecutorService pool = Executors.newFixedThreadPool(Math.min(_numThreads, lambdas.size()));
+      try
+      {
+        List<Future<GenericData.Record>> outputs = new ArrayList<Future<GenericData.Record>>();
+        for (final float lambda : lambdas)
+        {
+          outputs.add(pool.submit(new Callable<GenericData.Record>()
+          {
+            @Override
+            public GenericData.Record call() throws Exception
+            {
+              return train(dataset, lambda, partitionID, reporter);
+            }
+          }));
+        }
+        for (Future<GenericData.Record> output : outputs)
+        {
+          collector.collect(output.get());
+        }
+      }
+      catch (InterruptedException e)
+      {
+        throw new IOException("Model fitting error!", e);
+      }
+      catch (ExecutionException e)
+      {
+        throw new IOException("Model fitting error!", e.getCause());
+      }
+      finally
+      {
+        pool.shutdown();
+      }
+    }
+
+    /**
+     * Runs the x-update of one lambda on the dataset of the partition.
+     */
+    private GenericData.Record train(LibLinearDataset dataset,
+                                     float lambda,
+                                     int partitionID,
+                                     Reporter reporter) throws IOException
+    {
+      String key = String.valueOf(lambda) + "#" + String.valueOf(partitionID);
+      if (_initFit)
+      {
+        return initFit(dataset, lambda, key, reporter);
+      }
+      double rho = _lambdaRhoConsumer.get().get(lambda); 
+      if (_rhoAdaptRate!=1.0)
+      {
+        rho = rho* (double) _rhoAdaptRate;
+        _logger.info("Adaptive rate is " + _rhoAdaptRate);
+        _logger.info("Adaptive rho is " + rho);
+      }
+     
+      // get prior mean and init value, copies since they are updated in place
+      LinearModel u = null;
+      if (!_dualUpdateInTasks)
+      {
+        u = findModel(_uCache, key).copy();
+      }
+      LinearModel initvalue = findModel(_initValueCache, Util.getLambda(key)).copy();
+      _logger.info("Loaded initial value of the model, size:"
+          + initvalue.getCoefficients().size());
+      GenericData.Record output = new GenericData.Record(RegressionTrainOutput.SCHEMA$);
+      // Prepare the initial value
+      Map<String, Double> initvaluemap = initvalue.toMap(LibLinearDataset.INTERCEPT_NAME);
+      if (_dualUpdateInTasks)
+      {
+        u = readDualState(key, _lambdaRhoConsumer.get().get(lambda), initvalue);
+      }
+      _logger.info("Loaded u for the key, size:" + u.getCoefficients().size());
+      // Prepare the prior mean
+      LinearModel priormean = u.copy();
+      // Compute z minus u
+      priormean.linearCombine(-1, 1, initvalue);
+      Map<String, Double> priormeanmap = priormean.toMap(LibLinearDataset.INTERCEPT_NAME);
+      if (_generalConsensus)
+      {
+        // x only has the features of the partition
+        retainFeatures(initvaluemap, dataset);
+        retainFeatures(priormeanmap, dataset);
+      }
+      // Run liblinear
+      LibLinear liblinear = new LibLinear();
+      liblinear.setReporter(reporter, _reportfreq);
+      String option = "epsilon=" + String.valueOf(_liblinearEpsilon) + _liblinearBudget;
+      if (_warmStartSolver)
+      {
+        initvaluemap = readSolverState(key, liblinear, initvaluemap);
+      }
+      try
+      {
+        liblinear.train(dataset, initvaluemap, priormeanmap, null, 1.0 / rho, option);
+        LinearModel model = liblinear.getLinearModel();
+        if (_warmStartSolver)
+        {
+          writeSolverState(key, liblinear);
+        }
+        output.put("key", key);
+        output.put("model", model.toAvro(LibLinearDataset.INTERCEPT_NAME));
+        if (_dualUpdateInTasks)
+        {
+          LinearModel w = writeDualState(key, _lambdaRhoConsumer.get().get(lambda), u, model, initvalue);
+          if (_distributedZUpdate)
+          {
+            // the z-update job averages the w's instead of the driver keeping the mean of u
+            output.put("uplusx", w.toAvro(LibLinearDataset.INTERCEPT_NAME));
+          }
+          else
+          {
+            output.put("uplusx", new ArrayList<GenericData.Record>());
+          }
+          output.put("uSquaredNorm", u.squaredNorm());
+        }
+        else
+        {
+          LinearModel uplusx = u;
+          uplusx.linearCombine(1, 1, model);
+          output.put("uplusx", uplusx.toAvro(LibLinearDataset.INTERCEPT_NAME));
+        }
+      }
+      catch (Exception e)
+      {
+        throw new IOException("Model fitting error!", e);
+      }
+      return output;
+    }
+
+    /**
+     * Fits lambda on the dataset of the partition alone, with the prior variance 1 / lambda
+     * instead of 1 / rho around z - u. z starts from the mean of these fits.
+     */
+    private GenericData.Record initFit(LibLinearDataset dataset,
+                                       float lambda,
+                                       String key,
+                                       Reporter reporter) throws IOException
+    {
+      GenericData.Record output = new GenericData.Record(RegressionTrainOutput.SCHEMA$);
+      LibLinear liblinear = new LibLinear();
+      liblinear.setReporter(reporter, _reportfreq);
+      String option = "epsilon=" + String.valueOf(_liblinearEpsilon) + _liblinearBudget;
+      try
+      {
+        liblinear.train(dataset, null, null, _initPriorVar, 1.0 / lambda, option);
+        output.put("key", key);
+        output.put("model", liblinear.getLinearModel().toAvro(LibLinearDataset.INTERCEPT_NAME));
+        output.put("uplusx", new ArrayList<GenericData.Record>());
+      }
+      catch (Exception e)
+      {
+        throw new IOException("Model fitting error!", e);
+      }
+      return output;
+    }
+
+    /**
+     * Reads the u and the init value of all the lambdas of the partition from the files, once
+     * per partition: a task is usually given a single partition, so they are read once per
+     * task. Only the records of the partition are deserialized. The init value does not
+     * depend on the partition unless general.consensus is on.
+     */
+    private void loadPartition(int partitionID) throws IOException
+    {
+      if (partitionID == _cachedPartition)
+      {
+        return;
+      }
+      Set<String> uKeys = new HashSet<String>();
+      Set<String> initValueKeys = new HashSet<String>();
+      for (float lambda : _lambdaOrderedList)
+      {
+        uKeys.add(String.valueOf(lambda) + "#" + String.valueOf(partitionID));
+        initValueKeys.add(String.valueOf(lambda));
+      }
+      String uPath = _uPath;
+      String initValuePath = _initValuePath;
+      AvroFileReader reader;
+      if (_generalConsensus)
+      {
+        // only the slices of this partition, they are not in the distributed cache
+        uPath = _uPath + "/" + sliceFile(partitionID);
+        initValuePath = _initValuePath + "/" + sliceFile(partitionID);
+        reader = new AvroHdfsFileReader(_conf);
+      }
+      else
+      {
+        reader = new AvroDistributedCacheFileReader(_conf);
+      }
+      if (!_dualUpdateInTasks)
+      {
+        ReadLinearModelConsumer uConsumer = new ReadLinearModelConsumer(uKeys);
+        reader.build(uPath, uConsumer);
+        uConsumer.done();
+        _uCache = uConsumer.get();
+      }
+      if (_initValueCache == null || _generalConsensus)
+      {
+        ReadLinearModelConsumer initValueConsumer = new ReadLinearModelConsumer(initValueKeys);
+        reader.build(initValuePath, initValueConsumer);
+        initValueConsumer.done();
+        _initValueCache = initValueConsumer.get();
+        if (_zBasePath != null)
+        {
+          // the init value is a delta to the base, which the distributed cache keeps across iterations
+          ReadLinearModelConsumer baseConsumer = new ReadLinearModelConsumer(initValueKeys);
+          reader.build(_zBasePath, baseConsumer);
+          baseConsumer.done();
+          Map<String, LinearModel> base = baseConsumer.get();
+          for (String lambda : base.keySet())
+          {
+            LinearModel delta = _initValueCache.get(lambda);
+            if (delta != null)
+            {
+              base.get(lambda).getCoefficients().putAll(delta.getCoefficients());
+              base.get(lambda).setIntercept(delta.getIntercept());
+            }
+          }
+          _initValueCache = base;
+        }
+      }
+      _cachedPartition = partitionID;
+    }
+
+    /**
+     * The model of key, or an empty model if the file has none
+     */
+    private static LinearModel findModel(Map<String, LinearModel> models, String key)
+    {
+      LinearModel model = models.get(key);
+      return (model != null ? model : new LinearModel());
+    }
+
+    /**
+     * Returns the u of key for this iteration, (w - z) * last rho / rho where w is the state
+     * the task of key wrote in the last iteration, or an empty model in the first one.
+     */
+    private LinearModel readDualState(String key, float rho, LinearModel z) throws IOException
+    {
+      if (_dualStatePath == null)
+      {
+        return new LinearModel();
+      }
+      Path path = new Path(_dualStatePath, dualStateFile(key));
+      if (!path.getFileSystem(_conf).exists(path))
+      {
+        // e.g. the lambda was not fitted in the last iteration
+        return new LinearModel();
+      }
+      DataFileStream<Object> stream = AvroUtils.getAvroDataStream(_conf, path);
+      GenericData.Record record = (GenericData.Record) stream.next();
+      stream.close();
+      LinearModel u = new LinearModel(LibLinearDataset.INTERCEPT_NAME, (List<?>) record.get("model"));
+      u.linearCombine(1.0, -1.0, z);
+      float lastRho = (Float) record.get("rho");
+      if (lastRho != rho)
+      {
+        u.rescale(lastRho / (double) rho);
+      }
+      return u;
+    }
+
+    /**
+     * Sets the solver state the task of key wrote in the last iteration to liblinear and
+     * returns the x to start from, or returns initvalue when there is none.
+     */
+    private Map<String, Double> readSolverState(String key,
+                                                LibLinear liblinear,
+                                                Map<String, Double> initvalue) throws IOException
+    {
+      liblinear.setSolverState(0, null);
+      if (_solverStatePath == null)
+      {
+        return initvalue;
+      }
+      Path path = new Path(_solverStatePath, solverStateFile(key));
+      if (!path.getFileSystem(_conf).exists(path))
+      {
+        // e.g. the lambda was not fitted in the last iteration
+        return initvalue;
+      }
+      DataFileStream<Object> stream = AvroUtils.getAvroDataStream(_conf, path);
+      GenericData.Record record = (GenericData.Record) stream.next();
+      stream.close();
+      liblinear.setSolverState((Double) record.get("delta"), toDoubleMap(record.get("zeroGradient")));
+      return toDoubleMap(record.get("x"));
+    }
+
+    /**
+     * Writes the solver state of the fit of key with the task output
+     */
+    private void writeSolverState(String key, LibLinear liblinear) throws IOException
+    {
+      Map<String, Double> zeroGradient = liblinear.getZeroGradient();
+      Map<String, Double> x = new HashMap<String, Double>();
+      for (String feature : zeroGradient.keySet())
+      {
+        x.put(feature, liblinear.getParamMap().get(feature));
+      }
+      GenericData.Record record = new GenericData.Record(AdmmSolverState.SCHEMA$);
+      record.put("key", key);
+      record.put("delta", liblinear.getDelta());
+      record.put("x", x);
+      record.put("zeroGradient", zeroGradient);
+      Path path = new Path(FileOutputFormat.getWorkOutputPath(_conf), SOLVER_STATE_DIR + "/" + solverStateFile(key));
+      AvroHdfsFileWriter<GenericRecord> writer =
+          new AvroHdfsFileWriter<GenericRecord>(_conf, path.toString(), AdmmSolverState.SCHEMA$);
+      DataFileWriter<GenericRecord> recordWriter = writer.get();
+      recordWriter.append(record);
+      recordWriter.close();
+    }
+
+    /**
+     * Writes w = u + alpha * x + (1 - alpha) * z of key with the task output and returns it,
+     * where alpha is over.relaxation
+     */
+    private LinearModel writeDualState(String key, float rho, LinearModel u, LinearModel x, LinearModel z) throws IOException
+    {
+      LinearModel w = u.copy();
+      w.linearCombine(1.0, _overRelaxation, x);
+      if (_overRelaxation != 1.0)
+      {
+        w.linearCombine(1.0, 1 - _overRelaxation, z);
+      }
+      GenericData.Record record = new GenericData.Record(AdmmDualState.SCHEMA$);
+      record.put("key", key);
+      record.put("rho", rho);
+      record.put("model", w.toAvro(LibLinearDataset.INTERCEPT_NAME));
+      Path path = new Path(FileOutputFormat.getWorkOutputPath(_conf), DUAL_STATE_DIR + "/" + dualStateFile(key));
+      AvroHdfsFileWriter<GenericRecord> writer =
+          new AvroHdfsFileWriter<GenericRecord>(_conf, path.toString(), AdmmDualState.SCHEMA$);
+      DataFileWriter<GenericRecord> recordWriter = writer.get();
+      recordWriter.append(record);
+      recordWriter.close();
+      return w;
+    }
+  }
+
+  /**
+   * Creates an empty dataset of the configured type.
+   */
+  static LibLinearDataset newDataset(boolean binaryFeature, boolean shortFeatureIndex) throws IOException
+  {
+    if (binaryFeature)
+    {
+      return new LibLinearBinaryDataset(1.0, shortFeatureIndex);
+    }
+    return new LibLinearDataset(1.0);
+  }
+
+  /**
+   * Builds the finished dataset of a partition from its records, with feature hashing of
+   * hashingBits bits when it is > 0.
+   */
+  static LibLinearDataset buildDataset(Iterable<RegressionPrepareOutput> values,
+                                       boolean binaryFeature,
+                                       boolean shortFeatureIndex,
+                                       int hashingBits,
+                                       boolean hashingCollisions) throws IOException
+  {
+    LibLinearDataset dataset = newDataset(binaryFeature, shortFeatureIndex);
+    if (hashingBits > 0)
+    {
+      dataset.setFeatureHashing(hashingBits, hashingCollisions);
+    }
+    for (RegressionPrepareOutput record : values)
+    {
+      dataset.addInstanceAvro(record);
+    }
+    dataset.finish();
+    if (hashingBits > 0 && hashingCollisions)
+    {
+      _logger.info("Feature hashing: " + dataset.getNumHashCollisions()
+          + " feature occurrences collided with another feature");
+    }
+    return dataset;
+  }
+
+  /**
+   * Parses the lambda and (optional) rho lists of the job config into a lambda -> rho map.
+   * When rho is not given, it is 1 for lambda <= 100 and 10 otherwise.
+   */
+  static Map<Float, Float> readLambdaRho(JobConfig props) throws IOException
+  {
+    List<String> lambdastr = props.getStringList(LAMBDA, ",");
+    List<String> rhostr = props.getStringList(RHO, null, ",");
+    if (rhostr != null)
+    {
+      if (rhostr.size() != lambdastr.size())
+        throw new IOException("The number of rho's should be exactly the same as the number of lambda's. OR: don't claim rho!");
+    }
+    Map<Float, Float> lambdaRho = new HashMap<Float, Float>();
+    for (int j = 0; j < lambdastr.size(); j++)
+    {
+      float lambda = Float.parseFloat(lambdastr.get(j));
+      float rho;
+      if (rhostr != null)
+      {
+        rho = Float.parseFloat(rhostr.get(j));
+      }
+      else
+      {
+        if (lambda <= 100)
+        {
+          rho = 1;
+        }
+        else
+        {
+          rho = 10;
+        }
+      }
+      lambdaRho.put(lambda, rho);
+    }
+    return lambdaRho;
+  }
+
+  /**
+   * Reads the feature specific lambda's, an empty path gives an empty map.
+   */
+  static Map<String, Float> readLambdaMap(JobConf conf, String lambdaMapPath) throws IOException
+  {
+    Map<String, Float> lambdaMap = new HashMap<String, Float>();
+    if (!lambdaMapPath.equals(""))
+    {
+      AvroHdfsFileReader reader = new AvroHdfsFileReader(conf);
+      ReadLambdaMapConsumer consumer = new ReadLambdaMapConsumer();
+      reader.build(lambdaMapPath, consumer);
+      consumer.done();
+      lambdaMap = consumer.get();
+    }
+    _logger.info("Lambda Map has size = " + String.valueOf(lambdaMap.size()));
+    return lambdaMap;
+  }
+
+  /**
+   * Returns the test file used for the test-loglik trajectory, or null when there is no
+   * test data. It also makes sure the sample-test-loglik output dir can be written.
+   */
+  static String getSampleTestPath(JobConf conf, String testPath, String outBasePath) throws IOException
+  {
+    DataFileWriter<GenericRecord> testRecordWriter = null;
+    if (Util.checkPath(testPath))
+    {
+      List<Path> testPathList =
+          AvroUtils.enumerateFiles(conf, new Path(testPath));
+      if (testPathList.size() > 0)
+      {
+        testPath = testPathList.get(0).toString();
+        _logger.info("Sample test path = " + testPath);
+      
+        AvroHdfsFileWriter<GenericRecord> writer =
+            new AvroHdfsFileWriter<GenericRecord>(conf, outBasePath
+                + "/sample-test-loglik/write-test-00000.avro", SampleTestLoglik.SCHEMA$);
+        testRecordWriter = writer.get();
+      }
+    }
+    if (testRecordWriter == null)
+    {
+      _logger.info("test.loglik.per.iter=false or test path doesn't exist or is empty! So we will not output test loglik per iteration.");
+      return null;
+    }
+    testRecordWriter.close();
+    return testPath;
+  }
+
+  /**
+   * The z-update of ADMM given the mean of x and the mean of u over the partitions. ubar
+   * is empty in the first iteration.
+   */
+  static void updateZ(Map<String, LinearModel> z,
+                      Map<String, LinearModel> xbar,
+                      Map<String, LinearModel> ubar,
+                      Map<Float, Float> lambdaRho,
+                      Map<String, Float> lambdaMap,
+                      int nblocks,
+                      int reg,
+                      boolean penalizeIntercept)
+  {
+    updateZ(z, xbar, ubar, lambdaRho, lambdaMap, nblocks, null, reg, penalizeIntercept);
+  }
+
+  /**
+   * The z-update of general-form consensus when featureCounts is not null: each feature is
+   * shared by the featureCounts.get(k) partitions it appears in, and xbar and ubar are the
+   * means over these partitions (see toPartitionMean). The intercept is shared by all.
+   */
+  static void updateZ(Map<String, LinearModel> z,
+                      Map<String, LinearModel> xbar,
+                      Map<String, LinearModel> ubar,
+                      Map<Float, Float> lambdaRho,
+                      Map<String, Float> lambdaMap,
+                      int nblocks,
+                      Map<String, Integer> featureCounts,
+                      int reg,
+                      boolean penalizeIntercept)
+  {
+    for (String lambda : xbar.keySet())
+    {
+      LinearModel thisz = z.get(lambda);
+      thisz.clear();
+      float l = Float.parseFloat(lambda);
+      float r = lambdaRho.get(l);
+      double weight;
+      //L2 regularization
+      if(reg==2) 
+       {
+          _logger.info("Running code for regularizer = " + String.valueOf(reg));
+          weight = nblocks * r / (l + nblocks * r);
+          Map<String, Double> weightmap = new HashMap<String, Double>();
+            for (String k : lambdaMap.keySet())
+            {
+               weightmap.put(k, nblocks * r / (lambdaMap.get(k) + nblocks * r + 0.0));
+            }
+            if (featureCounts != null)
+            {
+              Set<String> keys = new HashSet<String>(xbar.get(lambda).getCoefficients().keySet());
+              if (!ubar.isEmpty())
+              {
+                keys.addAll(ubar.get(lambda).getCoefficients().keySet());
+              }
+              for (String k : keys)
+              {
+                int n = featureCount(featureCounts, k, nblocks);
+                float lk = (lambdaMap.containsKey(k) ? lambdaMap.get(k) : l);
+                weightmap.put(k, n * r / (lk + n * r + 0.0));
+              }
+            }
+            thisz.linearCombine(1.0, weight, xbar.get(lambda), weightmap);
+            if (!ubar.isEmpty())
+            {
+                thisz.linearCombine(1.0, weight, ubar.get(lambda), weightmap);
+            }
+            if (!penalizeIntercept)
+            {
+               if (ubar.isEmpty())
+               {
+                    thisz.setIntercept(xbar.get(lambda).getIntercept());
+               }
+               else
+               {
+                    thisz.setIntercept(xbar.get(lambda).getIntercept()
+                           + ubar.get(lambda).getIntercept());
+               }
+            }
+            z.put(lambda, thisz);
+        }
+        else
+      {
+        // L1 regularization
+
+        _logger.info("Running code for regularizer = " + String.valueOf(reg));
+        weight = l / (r * nblocks + 0.0);
+        Map<String, Double> weightmap = new HashMap<String, Double>();
+        for (String k : lambdaMap.keySet())
+        {
+          weightmap.put(k, lambdaMap.get(k) / (r * nblocks + 0.0));
+        }
+        // LinearModel thisz = new LinearModel();
+        thisz.linearCombine(1.0, 1.0, xbar.get(lambda));
+        if (!ubar.isEmpty())
+        {
+          thisz.linearCombine(1.0, 1.0, ubar.get(lambda));
+        }
+        // Iterative Thresholding
+        Map<String, Double> thisCoefficients = thisz.getCoefficients();
+        for (String k : thisCoefficients.keySet())
+        {
+          double val = thisCoefficients.get(k);
+          double threshold = (weightmap.containsKey(k) ? weightmap.get(k) : weight);
+          if (featureCounts != null)
+          {
+            float lk = (lambdaMap.containsKey(k) ? lambdaMap.get(k) : l);
+            threshold = lk / (r * featureCount(featureCounts, k, nblocks) + 0.0);
+          }
+          if (val > threshold)
+          {
+            thisCoefficients.put(k, val - threshold);
+          }
+          else if (val < -threshold)
+          {
+            thisCoefficients.put(k, val + threshold);
+          }
+          else
+          {
+            thisCoefficients.put(k, 0.0);
+          }
+        }
+        thisz.setCoefficients(thisCoefficients);
+        if (!penalizeIntercept)
+        {
+          if (ubar.isEmpty())
+          {
+            thisz.setIntercept(xbar.get(lambda).getIntercept());
+          }
+          else
+          {
+            thisz.setIntercept(xbar.get(lambda).getIntercept()
+                + ubar.get(lambda).getIntercept());
+          }
+        }
+        z.put(lambda, thisz);
+      }
+    }
+  }
+
+  /**
+   * Logs and returns the max absolute difference between last z and this z for each lambda.
+   */
+  static Map<String, Double> zDifference(Map<String, LinearModel> lastz, Map<String, LinearModel> z)
+  {
+    Map<String, Double> zdiff = new HashMap<String, Double>();
+    for (String k : z.keySet())
+    {
+      LinearModel tmp = (lastz.containsKey(k) ? lastz.get(k).copy() : new LinearModel());
+      tmp.linearCombine(1, -1, z.get(k));
+      double diff = tmp.maxAbsValue();
+      _logger.info("For lambda=" + k + ": Max Difference between last z and this z = "
+          + String.valueOf(diff));
+      zdiff.put(k, diff);
+    }
+    return zdiff;
+  }
+
+  /**
+   * Returns the coefficients of z that moved by more than tolerance from base, and the
+   * intercept, for each lambda. The other coefficients of z are set back to their value in
+   * base, in place, so that z is the base plus the delta the tasks see. A coefficient in
+   * base only is sent as 0 when it moved.
+   */
+  static Map<String, LinearModel> zDelta(Map<String, LinearModel> z,
+                                         Map<String, LinearModel> base,
+                                         double tolerance)
+  {
+    Map<String, LinearModel> result = new HashMap<String, LinearModel>();
+    for (String lambda : z.keySet())
+    {
+      Map<String, Double> coefficients = z.get(lambda).getCoefficients();
+      Map<String, Double> baseCoefficients =
+          (base.containsKey(lambda) ? base.get(lambda).getCoefficients() : new HashMap<String, Double>());
+      LinearModel delta = new LinearModel();
+      delta.setIntercept(z.get(lambda).getIntercept());
+      Set<String> keys = new HashSet<String>(coefficients.keySet());
+      keys.addAll(baseCoefficients.keySet());
+      for (String k : keys)
+      {
+        Double value = coefficients.get(k);
+        Double baseValue = baseCoefficients.get(k);
+        double v = (value == null ? 0 : value);
+        if (Math.abs(v - (baseValue == null ? 0 : baseValue)) > tolerance)
+        {
+          delta.getCoefficients().put(k, v);
+        }
+        else if (baseValue == null)
+        {
+          coefficients.remove(k);
+        }
+        else
+        {
+          coefficients.put(k, baseValue);
+        }
+      }
+      result.put(lambda, delta);
+    }
+    return result;
+  }
+
+  /**
+   * Returns a deep copy of the models.
+   */
+  static Map<String, LinearModel> copyModels(Map<String, LinearModel> models)
+  {
+    Map<String, LinearModel> result = new HashMap<String, LinearModel>();
+    for (String k : models.keySet())
+    {
+      result.put(k, models.get(k).copy());
+    }
+    return result;
+  }
+
+  /**
+   * Name of the u-update state file of key (lambda#partition) under dual.update.in.tasks
+   */
+  static String dualStateFile(String key)
+  {
+    return "u-" + key.replace('#', '-') + ".avro";
+  }
+
+  /**
+   * Name of the file of the solver state of key under SOLVER_STATE_DIR
+   */
+  static String solverStateFile(String key)
+  {
+    return "x-" + key.replace('#', '-') + ".avro";
+  }
+
+  /**
+   * Converts an Avro map of doubles as read by a generic reader, with Utf8 keys
+   */
+  static Map<String, Double> toDoubleMap(Object map)
+  {
+    Map<String, Double> result = new HashMap<String, Double>();
+    for (Map.Entry<?, ?> entry : ((Map<?, ?>) map).entrySet())
+    {
+      result.put(entry.getKey().toString(), (Double) entry.getValue());
+    }
+    return result;
+  }
+
+  /**
+   * Name of the file of partitionID in the per-partition u and z dirs of general.consensus
+   */
+  static String sliceFile(int partitionID)
+  {
+    return "part-" + String.valueOf(partitionID) + ".avro";
+  }
+
+  /**
+   * Removes the features that do not appear in dataset from map, but the intercept
+   */
+  static void retainFeatures(Map<String, Double> map, LibLinearDataset dataset)
+  {
+    Iterator<String> iter = map.keySet().iterator();
+    while (iter.hasNext())
+    {
+      String k = iter.next();
+      if (!LibLinearDataset.INTERCEPT_NAME.equals(k) && dataset.getFeatureIndex(k) == -1)
+      {
+        iter.remove();
+      }
+    }
+  }
+
+  /**
+   * Returns the mean of the u's of the next iteration, (ubar + xhat - z) * uScale for each
+   * lambda of xhat, as the tasks compute them under dual.update.in.tasks; xhat is the
+   * over-relaxed xbar
+   */
+  static Map<String, LinearModel> nextUbar(Map<String, LinearModel> ubar,
+                                           Map<String, LinearModel> xhat,
+                                           Map<String, LinearModel> z,
+                                           Map<String, Double> uScale)
+  {
+    Map<String, LinearModel> result = new HashMap<String, LinearModel>(ubar);
+    for (String lambda : xhat.keySet())
+    {
+      LinearModel u = (ubar.containsKey(lambda) ? ubar.get(lambda).copy() : new LinearModel());
+      u.linearCombine(1.0, 1.0, xhat.get(lambda));
+      u.linearCombine(1.0, -1.0, z.get(lambda));
+      if (uScale != null && uScale.get(lambda) != 1.0)
+      {
+        u.rescale(uScale.get(lambda));
+      }
+      result.put(lambda, u);
+    }
+    return result;
+  }
+
+  /**
+   * Number of partitions feature k is shared by, nblocks under global consensus
+   * (featureCounts is null) and for the intercept.
+   */
+  static int featureCount(Map<String, Integer> featureCounts, String k, int nblocks)
+  {
+    if (featureCounts == null)
+    {
+      return nblocks;
+    }
+    Integer count = featureCounts.get(k);
+    return (count == null ? nblocks : count);
+  }
+
+  /**
+   * Returns sum_k featureCount(k) * a_k * b_k, including the intercept: the inner product of
+   * a and b copied into each partition sharing their features.
+   */
+  static double countDot(LinearModel a, LinearModel b, Map<String, Integer> featureCounts, int nblocks)
+  {
+    if (featureCounts == null)
+    {
+      return nblocks * a.dot(b);
+    }
+    double sum = nblocks * a.getIntercept() * b.getIntercept();
+    Map<String, Double> other = b.getCoefficients();
+    for (Map.Entry<String, Double> entry : a.getCoefficients().entrySet())
+    {
+      Double v = other.get(entry.getKey());
+      if (v != null)
+      {
+        sum += featureCount(featureCounts, entry.getKey(), nblocks) * entry.getValue() * v;
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * Turns the means over all nblocks partitions computed by meanModel into the means over
+   * the partitions that have each feature, in place.
+   */
+  static void toPartitionMean(Map<String, LinearModel> mean,
+                              Map<String, Integer> featureCounts,
+                              int nblocks)
+  {
+    for (LinearModel model : mean.values())
+    {
+      Map<String, Double> coefficients = model.getCoefficients();
+      for (Map.Entry<String, Double> entry : coefficients.entrySet())
+      {
+        entry.setValue(entry.getValue() * nblocks / featureCount(featureCounts, entry.getKey(), nblocks));
+      }
+    }
+  }
+
+  /**
+   * Returns alpha * xbar + (1 - alpha) * zPrev for each lambda, the mean of the
+   * over-relaxed x's. xbar itself is returned when alpha = 1.
+   */
+  static Map<String, LinearModel> overRelax(Map<String, LinearModel> xbar,
+                                            Map<String, LinearModel> zPrev,
+                                            double alpha)
+  {
+    if (alpha == 1.0)
+    {
+      return xbar;
+    }
+    Map<String, LinearModel> result = new HashMap<String, LinearModel>();
+    for (String lambda : xbar.keySet())
+    {
+      LinearModel xhat = xbar.get(lambda).copy();
+      xhat.rescale(alpha);
+      if (zPrev.containsKey(lambda))
+      {
+        xhat.linearCombine(1.0, 1 - alpha, zPrev.get(lambda));
+      }
+      result.put(lambda, xhat);
+    }
+    return result;
+  }
+
+  /**
+   * Logs and returns the primal residual sqrt(sum_i ||x_i - z||^2) and the dual residual
+   * rho * sqrt(nblocks) * ||z - lastz|| of each lambda, as {primal, dual}. The primal
+   * residual is expanded as sum_i ||x_i||^2 - 2 * nblocks * z.xbar + nblocks * ||z||^2, so
+   * only the mean of x and the sum of its squared norms are needed.
+   */
+  static Map<String, double[]> residuals(Map<String, LinearModel> z,
+                                         Map<String, LinearModel> lastz,
+                                         Map<String, LinearModel> xbar,
+                                         Map<String, Double> xSumSquaredNorm,
+                                         Map<Float, Float> lambdaRho,
+                                         int nblocks)
+  {
+    return residuals(z, lastz, xbar, xSumSquaredNorm, lambdaRho, nblocks, null);
+  }
+
+  /**
+   * Same as residuals, for general-form consensus when featureCounts is not null
+   */
+  static Map<String, double[]> residuals(Map<String, LinearModel> z,
+                                         Map<String, LinearModel> lastz,
+                                         Map<String, LinearModel> xbar,
+                                         Map<String, Double> xSumSquaredNorm,
+                                         Map<Float, Float> lambdaRho,
+                                         int nblocks,
+                                         Map<String, Integer> featureCounts)
+  {
+    Map<String, double[]> result = new HashMap<String, double[]>();
+    for (String lambda : xbar.keySet())
+    {
+      LinearModel thisz = z.get(lambda);
+      double primal2 = xSumSquaredNorm.get(lambda)
+          - 2.0 * countDot(thisz, xbar.get(lambda), featureCounts, nblocks)
+          + countDot(thisz, thisz, featureCounts, nblocks);
+      double primal = Math.sqrt(Math.max(primal2, 0));
+      LinearModel zdiff = thisz.copy();
+      if (lastz.containsKey(lambda))
+      {
+        zdiff.linearCombine(1, -1, lastz.get(lambda));
+      }
+      double dual = lambdaRho.get(Float.parseFloat(lambda))
+          * Math.sqrt(countDot(zdiff, zdiff, featureCounts, nblocks));
+      _logger.info("For lambda=" + lambda + ": primal residual = " + String.valueOf(primal)
+          + ", dual residual = " + String.valueOf(dual));
+      result.put(lambda, new double[] { primal, dual });
+    }
+    return result;
+  }
+
+  /**
+   * Returns the primal and dual tolerances of each of the lambdas, as {primal, dual}:
+   * sqrt(nblocks * p) * epsAbs + epsRel * max(sqrt(sum_i ||x_i||^2), sqrt(nblocks) * ||z||)
+   * and sqrt(nblocks * p) * epsAbs + epsRel * rho * sqrt(sum_i ||u_i||^2), where p is the
+   * number of coefficients of z plus the intercept. u is the one given to the x-update.
+   */
+  static Map<String, double[]> tolerances(Map<String, LinearModel> z,
+                                          Set<String> lambdas,
+                                          Map<String, Double> xSumSquaredNorm,
+                                          Map<String, Double> uSumSquaredNorm,
+                                          Map<Float, Float> lambdaRho,
+                                          int nblocks,
+                                          double epsAbs,
+                                          double epsRel)
+  {
+    return tolerances(z, lambdas, xSumSquaredNorm, uSumSquaredNorm, lambdaRho, nblocks, null, epsAbs, epsRel);
+  }
+
+  /**
+   * Same as tolerances, for general-form consensus when featureCounts is not null
+   */
+  static Map<String, double[]> tolerances(Map<String, LinearModel> z,
+                                          Set<String> lambdas,
+                                          Map<String, Double> xSumSquaredNorm,
+                                          Map<String, Double> uSumSquaredNorm,
+                                          Map<Float, Float> lambdaRho,
+                                          int nblocks,
+                                          Map<String, Integer> featureCounts,
+                                          double epsAbs,
+                                          double epsRel)
+  {
+    Map<String, double[]> result = new HashMap<String, double[]>();
+    for (String lambda : lambdas)
+    {
+      LinearModel thisz = z.get(lambda);
+      double rho = lambdaRho.get(Float.parseFloat(lambda));
+      // number of entries of all the x's
+      double size = nblocks;
+      for (String k : thisz.getCoefficients().keySet())
+      {
+        size += featureCount(featureCounts, k, nblocks);
+      }
+      double absTolerance = Math.sqrt(size) * epsAbs;
+      double xnorm = Math.sqrt(xSumSquaredNorm.get(lambda));
+      double znorm = Math.sqrt(countDot(thisz, thisz, featureCounts, nblocks));
+      double unorm = (uSumSquaredNorm.containsKey(lambda) ? Math.sqrt(uSumSquaredNorm.get(lambda)) : 0);
+      result.put(lambda, new double[] { absTolerance + epsRel * Math.max(xnorm, znorm),
+          absTolerance + epsRel * rho * unorm });
+    }
+    return result;
+  }
+
+  /**
+   * Sums the AdmmZUpdateStats of the reducers of the distributed z-update by lambda
+   */
+  static Map<String, GenericData.Record> readZUpdateStats(JobConf conf, String path) throws IOException
+  {
+    Map<String, GenericData.Record> result = new HashMap<String, GenericData.Record>();
+    Path statsPath = new Path(path);
+    if (!statsPath.getFileSystem(conf).exists(statsPath))
+    {
+      // no lambda was fitted
+      return result;
+    }
+    for (Path file : Util.findPartFiles(conf, statsPath))
+    {
+      DataFileStream<Object> stream = AvroUtils.getAvroDataStream(conf, file);
+      while (stream.hasNext())
+      {
+        GenericData.Record stats = (GenericData.Record) stream.next();
+        String lambda = stats.get("lambda").toString();
+        GenericData.Record sum = result.get(lambda);
+        if (sum == null)
+        {
+          result.put(lambda, stats);
+          continue;
+        }
+        for (Schema.Field field : AdmmZUpdateStats.SCHEMA$.getFields())
+        {
+          String name = field.name();
+          if (name.equals("zDiffMax"))
+          {
+            sum.put(name, Math.max((Double) sum.get(name), (Double) stats.get(name)));
+          }
+          else if (name.equals("zSize"))
+          {
+            sum.put(name, (Long) sum.get(name) + (Long) stats.get(name));
+          }
+          else if (!name.equals("lambda"))
+          {
+            sum.put(name, (Double) sum.get(name) + (Double) stats.get(name));
+          }
+        }
+      }
+      stream.close();
+    }
+    return result;
+  }
+
+  /**
+   * Same as residuals, from the sums of the distributed z-update
+   */
+  static Map<String, double[]> residuals(Map<String, GenericData.Record> zStats,
+                                         Map<Float, Float> lambdaRho,
+                                         int nblocks)
+  {
+    Map<String, double[]> result = new HashMap<String, double[]>();
+    for (String lambda : zStats.keySet())
+    {
+      GenericData.Record stats = zStats.get(lambda);
+      double primal2 = (Double) stats.get("xSumSquaredNorm")
+          - 2.0 * (Double) stats.get("zDotXSum")
+          + nblocks * (Double) stats.get("zSquaredNorm");
+      double primal = Math.sqrt(Math.max(primal2, 0));
+      double dual = lambdaRho.get(Float.parseFloat(lambda))
+          * Math.sqrt(nblocks * (Double) stats.get("zDiffSquaredNorm"));
+      _logger.info("For lambda=" + lambda + ": primal residual = " + String.valueOf(primal)
+          + ", dual residual = " + String.valueOf(dual));
+      result.put(lambda, new double[] { primal, dual });
+    }
+    return result;
+  }
+
+  /**
+   * Same as tolerances, from the sums of the distributed z-update
+   */
+  static Map<String, double[]> tolerances(Map<String, GenericData.Record> zStats,
+                                          Map<Float, Float> lambdaRho,
+                                          int nblocks,
+                                          double epsAbs,
+                                          double epsRel)
+  {
+    Map<String, double[]> result = new HashMap<String, double[]>();
+    for (String lambda : zStats.keySet())
+    {
+      GenericData.Record stats = zStats.get(lambda);
+      double rho = lambdaRho.get(Float.parseFloat(lambda));
+      double size = nblocks * (1.0 + (Long) stats.get("zSize"));
+      double absTolerance = Math.sqrt(size) * epsAbs;
+      double xnorm = Math.sqrt((Double) stats.get("xSumSquaredNorm"));
+      double znorm = Math.sqrt(nblocks * (Double) stats.get("zSquaredNorm"));
+      double unorm = Math.sqrt((Double) stats.get("uSumSquaredNorm"));
+      result.put(lambda, new double[] { absTolerance + epsRel * Math.max(xnorm, znorm),
+          absTolerance + epsRel * rho * unorm });
+    }
+    return result;
+  }
+
+  /**
+   * Same as zDifference, from the sums of the distributed z-update
+   */
+  static Map<String, Double> zDifference(Map<String, GenericData.Record> zStats)
+  {
+    Map<String, Double> zdiff = new HashMap<String, Double>();
+    for (String lambda : zStats.keySet())
+    {
+      double diff = (Double) zStats.get(lambda).get("zDiffMax");
+      _logger.info("For lambda=" + lambda + ": Max Difference between last z and this z = "
+          + String.valueOf(diff));
+      zdiff.put(lambda, diff);
+    }
+    return zdiff;
+  }
+
+  /**
+   * Writes z in the format of the output of the distributed z-update, which reads it
+   */
+  static void writeConsensusZ(JobConf conf, String path, Map<String, LinearModel> z) throws IOException
+  {
+    AvroHdfsFileWriter<GenericRecord> writer =
+        new AvroHdfsFileWriter<GenericRecord>(conf, path, RegressionTrainOutput.SCHEMA$);
+    DataFileWriter<GenericRecord> recordWriter = writer.get();
+    for (String lambda : z.keySet())
+    {
+      GenericData.Record record = new GenericData.Record(RegressionTrainOutput.SCHEMA$);
+      record.put("key", lambda);
+      record.put("model", z.get(lambda).toAvro(LibLinearDataset.INTERCEPT_NAME));
+      record.put("uplusx", new ArrayList<GenericData.Record>());
+      recordWriter.append(record);
+    }
+    recordWriter.close();
+  }
+
+  /**
+   * Copies the shards of z written by the distributed z-update to path as LinearModelAvro
+   * records, one shard at a time; the shards of a lambda are merged by the readers.
+   */
+  static void writeConsensusModel(JobConf conf, String zPath, String path) throws IOException
+  {
+    AvroHdfsFileWriter<GenericRecord> writer =
+        new AvroHdfsFileWriter<GenericRecord>(conf, path, LinearModelAvro.SCHEMA$);
+    DataFileWriter<GenericRecord> recordWriter = writer.get();
+    for (Path file : Util.findPartFiles(conf, new Path(zPath)))
+    {
+      DataFileStream<Object> stream = AvroUtils.getAvroDataStream(conf, file);
+      while (stream.hasNext())
+      {
+        GenericData.Record shard = (GenericData.Record) stream.next();
+        GenericData.Record record = new GenericData.Record(LinearModelAvro.SCHEMA$);
+        record.put("key", shard.get("key"));
+        record.put("model", shard.get("model"));
+        recordWriter.append(record);
+      }
+      stream.close();
+    }
+    recordWriter.close();
+  }
+
+  /**
+   * Writes one AdmmConvergenceReport record per lambda fitted in the iteration. lambdaRho
+   * has the rho's the iteration ran with.
+   */
+  static void writeConvergenceReport(JobConf conf,
+                                     String path,
+                                     int iter,
+                                     Map<Float, Float> lambdaRho,
+                                     Map<String, double[]> residuals,
+                                     Map<String, double[]> tolerances,
+                                     Set<String> converged,
+                                     Map<String, Double> zdiff,
+                                     float liblinearEpsilon,
+                                     long wallTimeMs) throws IOException
+  {
+    AvroHdfsFileWriter<GenericRecord> writer =
+        new AvroHdfsFileWriter<GenericRecord>(conf, path, AdmmConvergenceReport.SCHEMA$);
+    DataFileWriter<GenericRecord> recordWriter = writer.get();
+    for (String lambda : residuals.keySet())
+    {
+      GenericRecord record = new GenericData.Record(AdmmConvergenceReport.SCHEMA$);
+      record.put("lambda", lambda);
+      record.put("iter", iter);
+      record.put("rho", lambdaRho.get(Float.parseFloat(lambda)));
+      record.put("primalResidual", residuals.get(lambda)[0]);
+      record.put("dualResidual", residuals.get(lambda)[1]);
+      record.put("primalTolerance", tolerances.get(lambda)[0]);
+      record.put("dualTolerance", tolerances.get(lambda)[1]);
+      record.put("converged", converged.contains(lambda));
+      record.put("maxZDifference", zdiff.get(lambda));
+      record.put("liblinearEpsilon", liblinearEpsilon);
+      record.put("wallTimeMs", wallTimeMs);
+      recordWriter.append(record);
+    }
+    recordWriter.close();
+  }
+
+  /**
+   * Writes the AdmmCheckpoint of iteration iter, with the rho's, the converged and the dropped
+   * lambdas at its end, the position on regularization.path and progressive.sampling.fractions and the state of fast.admm and residual balancing the next iteration starts from.
+   */
+  static void writeCheckpoint(JobConf conf,
+                              String path,
+                              int iter,
+                              float liblinearEpsilon,
+                              double mindiff,
+                              float bestTestLoglik,
+                              int pathIter,
+                              int sampleStage,
+                              int sampleStageIter,
+                              Map<Float, Float> lambdaRho,
+                              Set<String> converged,
+                              Set<String> dropped,
+                              Map<String, Double> uScale,
+                              Map<String, Double> momentum,
+                              FastAdmm fast) throws IOException
+  {
+    List<GenericRecord> lambdas = new ArrayList<GenericRecord>();
+    for (Float l : lambdaRho.keySet())
+    {
+      String lambda = String.valueOf(l);
+      GenericRecord record = new GenericData.Record(AdmmCheckpointLambda.SCHEMA$);
+      record.put("lambda", lambda);
+      record.put("rho", lambdaRho.get(l));
+      record.put("converged", converged.contains(lambda));
+      record.put("dropped", dropped.contains(lambda));
+      record.put("uScale", (uScale == null ? null : uScale.get(lambda)));
+      record.put("momentum", (momentum == null ? null : momentum.get(lambda)));
+      record.put("fastA", fast.getA(lambda));
+      record.put("fastResidual", fast.getResidual(lambda));
+      lambdas.add(record);
+    }
+    GenericRecord record = new GenericData.Record(AdmmCheckpoint.SCHEMA$);
+    record.put("iter", iter);
+    record.put("liblinearEpsilon", liblinearEpsilon);
+    record.put("mindiff", mindiff);
+    record.put("bestTestLoglik", bestTestLoglik);
+    record.put("pathIter", pathIter);
+    record.put("sampleStage", sampleStage);
+    record.put("sampleStageIter", sampleStageIter);
+    record.put("lambdas", lambdas);
+    AvroHdfsFileWriter<GenericRecord> writer =
+        new AvroHdfsFileWriter<GenericRecord>(conf, path, AdmmCheckpoint.SCHEMA$);
+    DataFileWriter<GenericRecord> recordWriter = writer.get();
+    recordWriter.append(record);
+    recordWriter.close();
+  }
 
-    @Override
-    public void setConf(Configuration conf)
+  static GenericData.Record readCheckpoint(JobConf conf, String path) throws IOException
+  {
+    DataFileStream<Object> stream = AvroUtils.getAvroDataStream(conf, new Path(path));
+    GenericData.Record record = (GenericData.Record) stream.next();
+    stream.close();
+    return record;
+  }
+
+  /**
+   * Returns the last iteration up to niter that has a complete checkpoint under outBasePath,
+   * 0 if there is none.
+   */
+  static int findLastCheckpoint(JobConf conf, String outBasePath, int niter) throws IOException
+  {
+    FileSystem fs = FileSystem.get(conf);
+    for (int i = niter; i > 0; i--)
     {
-      super.setConf(conf);
-      if (conf == null)
-      {
-        return;
-      }
-      _interceptKey = conf.get(INTERCEPT_KEY, LibLinearDataset.INTERCEPT_NAME);
-      _reportfreq = conf.getLong(REPORT_FREQUENCY, 1000000);
-      _binaryFeature = conf.getBoolean(BINARY_FEATURE, false);
-      _shortFeatureIndex = conf.getBoolean(SHORT_FEATURE_INDEX, false);
-      _liblinearEpsilon = conf.getFloat(LIBLINEAR_EPSILON, 0.01f);
-      _rhoAdaptRate = conf.getFloat(RHO_ADAPT_RATE,  1.0f);
-      AvroDistributedCacheFileReader lambdaRhoReader =
-          new AvroDistributedCacheFileReader(new JobConf(conf));
-      try
+      if (fs.exists(new Path(outBasePath + "/iter-" + String.valueOf(i) + "/checkpoint/state.avro")))
       {
-        lambdaRhoReader.build(conf.get(LAMBDA_RHO_MAP), _lambdaRhoConsumer);
-        _lambdaRhoConsumer.done();
-      }
-      catch (IOException e)
-      {
-        e.printStackTrace();
+        return i;
       }
-      _uPath = conf.get(U_PATH);
-      _initValuePath = conf.get(INIT_VALUE_PATH);
-      _conf = new JobConf(conf);
-      Set<Float> lambdaSet = _lambdaRhoConsumer.get().keySet();
-      _lambdaOrderedList = new ArrayList<Float>(lambdaSet);
-      java.util.Collections.sort(_lambdaOrderedList);
     }
+    return 0;
+  }
 
-    @Override
-    public void reduce(Integer NumKey,
-                       Iterable<RegressionPrepareOutput> values,
-                       AvroCollector<GenericData.Record> collector,
-                       Reporter reporter) throws IOException
+  /**
+   * Deletes the output of the iterations from to to under outBasePath.
+   */
+  static void deleteIterations(JobConf conf, String outBasePath, int from, int to) throws IOException
+  {
+    FileSystem fs = FileSystem.get(conf);
+    for (int i = from; i <= to; i++)
     {
-      int nlambdas = _lambdaRhoConsumer.get().size();
-      float lambda = _lambdaOrderedList.get(NumKey % nlambdas);
-      int partitionID = (int) NumKey / nlambdas;
-      String key = String.valueOf(lambda) + "#" + String.valueOf(partitionID);
-      // float lambda = Float.parseFloat(Util.getLambda(key.toString()));
-      double rho = _lambdaRhoConsumer.get().get(lambda); 
-      if (_rhoAdaptRate!=1.0)
+      Path path = new Path(outBasePath + "/iter-" + String.valueOf(i));
+      if (fs.exists(path))
       {
-        rho = rho* (double) _rhoAdaptRate;
-        _logger.info("Adaptive rate is " + _rhoAdaptRate);
-        _logger.info("Adaptive rho is " + rho);
-      }
-     
-      // get prior mean and init value
-      FindLinearModelConsumer _uConsumer = new FindLinearModelConsumer(key.toString());
-      FindLinearModelConsumer _initValueConsumer =
-          new FindLinearModelConsumer(Util.getLambda(key.toString()));
-      AvroDistributedCacheFileReader uReader = new AvroDistributedCacheFileReader(_conf);
-      uReader.build(_uPath, _uConsumer);
-      _uConsumer.done();
-      _logger.info("Loaded u for the key, size:"
-          + _uConsumer.get().getCoefficients().size());
-      AvroDistributedCacheFileReader initValueReader =
-          new AvroDistributedCacheFileReader(_conf);
-      initValueReader.build(_initValuePath, _initValueConsumer);
-      _initValueConsumer.done();
-      _logger.info("Loaded initial value of the model, size:"
-          + _initValueConsumer.get().getCoefficients().size());
-      GenericData.Record output = new GenericData.Record(RegressionTrainOutput.SCHEMA$);
-      // Prepare the data set
-      LibLinearDataset dataset;
-      if (_binaryFeature)
-      {
-        dataset = new LibLinearBinaryDataset(1.0, _shortFeatureIndex);
+        _logger.info("Deleting " + path + " of the earlier run");
+        fs.delete(path, true);
       }
-      else
-      {
-        dataset = new LibLinearDataset(1.0);
-      }
-      for (RegressionPrepareOutput record : values)
+    }
+  }
+
+  static Map<String, LinearModel> readModels(JobConf conf, String path) throws IOException
+  {
+    AvroHdfsFileReader reader = new AvroHdfsFileReader(conf);
+    ReadLinearModelConsumer consumer = new ReadLinearModelConsumer();
+    reader.build(path, consumer);
+    consumer.done();
+    return consumer.get();
+  }
+
+  /**
+   * Residual balancing: rho = rho * tau if primal > mu * dual, rho = rho / tau if dual > mu *
+   * primal. lambdaRho is updated in place. Since u is the dual variable scaled by 1/rho,
+   * it has to be multiplied by old rho / new rho, which is returned for each lambda.
+   */
+  static Map<String, Double> balanceRho(Map<Float, Float> lambdaRho,
+                                        Map<String, double[]> residuals,
+                                        double mu,
+                                        double tau)
+  {
+    Map<String, Double> uScale = new HashMap<String, Double>();
+    for (String lambda : residuals.keySet())
+    {
+      float l = Float.parseFloat(lambda);
+      double primal = residuals.get(lambda)[0];
+      double dual = residuals.get(lambda)[1];
+      double scale = 1.0;
+      if (primal > mu * dual)
       {
-        dataset.addInstanceAvro(record);
+        scale = tau;
       }
-      dataset.finish();
-      // Prepare the initial value
-      LinearModel initvalue = _initValueConsumer.get();
-      Map<String, Double> initvaluemap = initvalue.toMap(LibLinearDataset.INTERCEPT_NAME);
-      // Prepare the prior mean
-      LinearModel priormean = _uConsumer.get().copy();
-      // Compute z minus u
-      priormean.linearCombine(-1, 1, initvalue);
-      Map<String, Double> priormeanmap = priormean.toMap(LibLinearDataset.INTERCEPT_NAME);
-      // Run liblinear
-      LibLinear liblinear = new LibLinear();
-      liblinear.setReporter(reporter, _reportfreq);
-      String option = "epsilon=" + String.valueOf(_liblinearEpsilon);
-      try
+      else if (dual > mu * primal)
       {
-        liblinear.train(dataset, initvaluemap, priormeanmap, null, 1.0 / rho, option);
-        LinearModel model = liblinear.getLinearModel();
-        output.put("key", key);
-        output.put("model", model.toAvro(LibLinearDataset.INTERCEPT_NAME));
-        LinearModel uplusx = _uConsumer.get();
-        uplusx.linearCombine(1, 1, model);
-        output.put("uplusx", uplusx.toAvro(LibLinearDataset.INTERCEPT_NAME));
+        scale = 1.0 / tau;
       }
-      catch (Exception e)
+      if (scale != 1.0)
       {
-        throw new IOException("Model fitting error!", e);
+        float rho = (float) (lambdaRho.get(l) * scale);
+        _logger.info("For lambda=" + lambda + ": rho changed from " + lambdaRho.get(l) + " to " + rho);
+        lambdaRho.put(l, rho);
       }
-      collector.collect(output);
+      uScale.put(lambda, 1.0 / scale);
     }
+    return uScale;
   }
 
   private void writeLambdaRho(JobConf conf, String path, Map<Float, Float> lambda_rho) throws IOException
@@ -733,7 +3404,16 @@ public class RegressionAdmmTrain extends AbstractAvroJob
     recordWriter.close();
   }
   // u = u + x - z
-  private void computeU(JobConf conf, String uPath, String uplusxPath, Map<String, LinearModel> z) throws IOException
+  // with over-relaxation, u = u + alpha * x + (1 - alpha) * zPrev - z, where zPrev is the z of the x-update
+  // u is then multiplied by uScale of its lambda if uScale is not null
+  private void computeU(JobConf conf,
+                        String uPath,
+                        String uplusxPath,
+                        Map<String, LinearModel> z,
+                        Map<String, Double> uScale,
+                        double alpha,
+                        Map<String, LinearModel> zPrev,
+                        Map<String, String> uHandoff) throws IOException
   {
     AvroHdfsFileWriter<GenericRecord> writer =
         new AvroHdfsFileWriter<GenericRecord>(conf, uPath, LinearModelAvro.SCHEMA$);
@@ -752,69 +3432,161 @@ public class RegressionAdmmTrain extends AbstractAvroJob
           LinearModel newu =
               new LinearModel(LibLinearDataset.INTERCEPT_NAME, (List<?>) record.get("uplusx"));
           newu.linearCombine(1.0, -1.0, z.get(lambda));
+          if (alpha != 1.0)
+          {
+            LinearModel x =
+                new LinearModel(LibLinearDataset.INTERCEPT_NAME, (List<?>) record.get("model"));
+            x.linearCombine(1.0, -1.0, zPrev.get(lambda));
+            newu.linearCombine(1.0, alpha - 1, x);
+          }
+          if (uScale != null && uScale.get(lambda) != 1.0)
+          {
+            newu.rescale(uScale.get(lambda));
+          }
           GenericData.Record newvaluemap =
               new GenericData.Record(LinearModelAvro.SCHEMA$);
           List modellist = newu.toAvro(LibLinearDataset.INTERCEPT_NAME);
           newvaluemap.put("key", partitionID);
           newvaluemap.put("model", modellist);
           recordwriter.append(newvaluemap);
+          if (uHandoff != null && uHandoff.containsKey(lambda))
+          {
+            // the next lambda of the regularization path starts from this u
+            GenericData.Record handoff = new GenericData.Record(LinearModelAvro.SCHEMA$);
+            handoff.put("key", uHandoff.get(lambda) + partitionID.substring(lambda.length()));
+            handoff.put("model", modellist);
+            recordwriter.append(handoff);
+          }
         }
       }
     }
     recordwriter.close();
   }
-  private Map<String, Double> testloglik(JobConf conf, Map<String, LinearModel> modelmap,
-                                         String testPath,
-                                         int num_click_replicates,
-                                         boolean ignore_value) throws IOException
+  // same as computeU under general.consensus: u and the z given to the x-update are only
+  // kept for the features of each partition, i.e. the ones of its u+x, and they are written
+  // as one file per partition under uPath and zPath
+  private void computeSlicedU(JobConf conf,
+                              String uPath,
+                              String zPath,
+                              String uplusxPath,
+                              Map<String, LinearModel> z,
+                              Map<String, Double> uScale,
+                              double alpha,
+                              Map<String, LinearModel> zPrev,
+                              int nblocks) throws IOException
   {
-    DataFileStream<Object> stream = AvroUtils.getAvroDataStream(conf, new Path(testPath));
-    Map<String, Double> loglik = new HashMap<String, Double>();
-    for (String k : modelmap.keySet())
+    List<DataFileWriter<GenericRecord>> uWriters = new ArrayList<DataFileWriter<GenericRecord>>();
+    List<DataFileWriter<GenericRecord>> zWriters = new ArrayList<DataFileWriter<GenericRecord>>();
+    for (int p = 0; p < nblocks; p++)
     {
-      loglik.put(k, 0.0);
+      uWriters.add(new AvroHdfsFileWriter<GenericRecord>(conf,
+                                                         uPath + "/" + sliceFile(p),
+                                                         LinearModelAvro.SCHEMA$).get());
+      zWriters.add(new AvroHdfsFileWriter<GenericRecord>(conf,
+                                                         zPath + "/" + sliceFile(p),
+                                                         LinearModelAvro.SCHEMA$).get());
     }
-    double n = 0;
-    long nrecords = 0;
-    while (stream.hasNext())
+    for (Path path : Util.findPartFiles(conf, new Path(uplusxPath)))
     {
-      GenericData.Record record = (GenericData.Record) stream.next();
-      for (String k : modelmap.keySet())
-      {
-        double tmp = loglik.get(k);
-        loglik.put(k,
-                   tmp
-                   + modelmap.get(k).evalInstanceAvro(record,
-                                                      true,
-                                                      num_click_replicates,
-                                                      ignore_value));
-      }
-      double weight = 1;
-      if (record.get("weight")!=null)
-      {
-        weight = Double.parseDouble(record.get("weight").toString());
-      }
-      nrecords++;
-      n += weight;
-      if (nrecords >= MAX_NTEST_EVENTS)
+      DataFileStream<Object> stream = AvroUtils.getAvroDataStream(conf, path);
+      while (stream.hasNext())
       {
-        break;
+        GenericData.Record record = (GenericData.Record) stream.next();
+        String partitionID = Util.getStringAvro(record, "key", false);
+        if (record.get("uplusx") != null)
+        {
+          String lambda = Util.getLambda(partitionID);
+          int p = Integer.parseInt(partitionID.substring(partitionID.indexOf('#') + 1));
+          LinearModel newu =
+              new LinearModel(LibLinearDataset.INTERCEPT_NAME, (List<?>) record.get("uplusx"));
+          Set<String> features = new HashSet<String>(newu.getCoefficients().keySet());
+          newu.linearCombine(1.0, -1.0, z.get(lambda));
+          if (alpha != 1.0)
+          {
+            LinearModel x =
+                new LinearModel(LibLinearDataset.INTERCEPT_NAME, (List<?>) record.get("model"));
+            x.linearCombine(1.0, -1.0, zPrev.get(lambda));
+            newu.linearCombine(1.0, alpha - 1, x);
+          }
+          if (uScale != null && uScale.get(lambda) != 1.0)
+          {
+            newu.rescale(uScale.get(lambda));
+          }
+          newu.getCoefficients().keySet().retainAll(features);
+          GenericData.Record newvaluemap =
+              new GenericData.Record(LinearModelAvro.SCHEMA$);
+          newvaluemap.put("key", partitionID);
+          newvaluemap.put("model", newu.toAvro(LibLinearDataset.INTERCEPT_NAME));
+          uWriters.get(p).append(newvaluemap);
+          LinearModel zslice = z.get(lambda).copy();
+          zslice.getCoefficients().keySet().retainAll(features);
+          GenericData.Record zvaluemap =
+              new GenericData.Record(LinearModelAvro.SCHEMA$);
+          zvaluemap.put("key", lambda);
+          zvaluemap.put("model", zslice.toAvro(LibLinearDataset.INTERCEPT_NAME));
+          zWriters.get(p).append(zvaluemap);
+        }
       }
+      stream.close();
+    }
+    for (int p = 0; p < nblocks; p++)
+    {
+      uWriters.get(p).close();
+      zWriters.get(p).close();
+    }
+  }
+
+  /**
+   * Decodes the sample test set once into a ScoringBatch of at most MAX_NTEST_EVENTS
+   * records: the first ones of sampleTestPath, or a uniform sample of all the files under
+   * testPath when sampling is true.
+   */
+  static ScoringBatch readSampleTest(JobConf conf,
+                                     String testPath,
+                                     String sampleTestPath,
+                                     boolean sampling,
+                                     boolean ignoreValue) throws IOException
+  {
+    ScoringBatch batch = new ScoringBatch(ignoreValue, (int) MAX_NTEST_EVENTS, sampling, 0);
+    List<Path> paths = new ArrayList<Path>();
+    if (sampling)
+    {
+      paths.addAll(AvroUtils.enumerateFiles(conf, new Path(testPath)));
+    }
+    else
+    {
+      paths.add(new Path(sampleTestPath));
     }
-    for (String k : loglik.keySet())
+    boolean full = false;
+    for (Path path : paths)
     {
-      double tmp = loglik.get(k);
-      loglik.put(k, tmp / n);
+      DataFileStream<Object> stream = AvroUtils.getAvroDataStream(conf, path);
+      while (stream.hasNext() && !full)
+      {
+        full = !batch.add((GenericData.Record) stream.next());
+      }
+      stream.close();
     }
-    _logger.info("Finished computing testloglik...Evaluated #test records=" + nrecords);
+    batch.finish();
+    _logger.info("Loaded " + batch.size() + " sample test records out of " + batch.getNumSeen());
+    return batch;
+  }
+
+  static Map<String, Double> testloglik(Map<String, LinearModel> modelmap,
+                                         ScoringBatch testBatch,
+                                         int num_click_replicates) throws IOException
+  {
+    Map<String, Double> loglik =
+        testBatch.loglik(modelmap, num_click_replicates, Runtime.getRuntime().availableProcessors());
+    _logger.info("Finished computing testloglik...Evaluated #test records=" + testBatch.size());
     return loglik;
   }
-  private void updateLogLikBestModel(JobConf conf, int niter,  Map<String, LinearModel> z, String testPath, 
-                                     boolean ignoreValue, MutableFloat bestTestLoglik, String outBasePath, 
+  static Map<String, Double> updateLogLikBestModel(JobConf conf, int niter,  Map<String, LinearModel> z, ScoringBatch testBatch, 
+                                     MutableFloat bestTestLoglik, String outBasePath, 
                                      int  numClickReplicates) throws IOException
    {   
      Map<String, Double> loglik;
-     loglik = testloglik(conf, z, testPath, 1, ignoreValue);
+     loglik = testloglik(z, testBatch, 1);
      
      AvroHdfsFileWriter<GenericRecord> writer =
          new AvroHdfsFileWriter<GenericRecord>(conf, outBasePath
@@ -842,5 +3614,282 @@ public class RegressionAdmmTrain extends AbstractAvroJob
        }
      }
      testRecordWriter.close();
+     return loglik;
    }   
+
+  /**
+   * Returns the lambdas from the largest to the smallest, the order of regularization.path.
+   */
+  static List<String> pathLambdas(Set<Float> lambdas)
+  {
+    List<Float> sorted = new ArrayList<Float>(lambdas);
+    Collections.sort(sorted, Collections.reverseOrder());
+    List<String> result = new ArrayList<String>();
+    for (Float lambda : sorted)
+    {
+      result.add(String.valueOf(lambda));
+    }
+    return result;
+  }
+
+  /**
+   * Returns the first lambda of the path that has neither converged nor been dropped, null
+   * when the path is done.
+   */
+  static String currentPathLambda(List<String> pathLambdas, Set<String> converged, Set<String> dropped)
+  {
+    for (String lambda : pathLambdas)
+    {
+      if (!converged.contains(lambda) && !dropped.contains(lambda))
+      {
+        return lambda;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the liblinear options of liblinear.max.iter, liblinear.max.cg.iter,
+   * liblinear.max.time and liblinear.threads, to be appended to the epsilon one.
+   */
+  static String liblinearBudget(JobConfig props) throws IOException
+  {
+    StringBuilder option = new StringBuilder();
+    if (props.containsKey(LIBLINEAR_MAX_ITER))
+    {
+      option.append(",max_iter=").append(props.getInt(LIBLINEAR_MAX_ITER));
+    }
+    if (props.containsKey(LIBLINEAR_MAX_CG_ITER))
+    {
+      option.append(",max_cg_iter=").append(props.getInt(LIBLINEAR_MAX_CG_ITER));
+    }
+    if (props.containsKey(LIBLINEAR_MAX_TIME))
+    {
+      option.append(",max_time=").append(props.getDouble(LIBLINEAR_MAX_TIME, 0));
+    }
+    if (props.getInt(LIBLINEAR_THREADS, 1) > 1)
+    {
+      option.append(",threads=").append(props.getInt(LIBLINEAR_THREADS, 1));
+    }
+    return option.toString();
+  }
+
+  /**
+   * The liblinear epsilon of inexact.admm: minEpsilon times the largest ratio of a primal or
+   * dual residual to its tolerance, within [minEpsilon, maxEpsilon], so that the x-updates are
+   * solved loosely while ADMM is far from convergence. Returns epsilon if there is no residual.
+   */
+  static float inexactEpsilon(Map<String, double[]> residuals,
+                              Map<String, double[]> tolerances,
+                              double minEpsilon,
+                              double maxEpsilon,
+                              float epsilon)
+  {
+    if (residuals.isEmpty())
+    {
+      return epsilon;
+    }
+    double ratio = 0;
+    for (String lambda : residuals.keySet())
+    {
+      for (int k = 0; k < 2; k++)
+      {
+        if (tolerances.get(lambda)[k] > 0)
+        {
+          ratio = Math.max(ratio, residuals.get(lambda)[k] / tolerances.get(lambda)[k]);
+        }
+      }
+    }
+    return (float) Math.min(maxEpsilon, Math.max(minEpsilon, minEpsilon * ratio));
+  }
+
+  /**
+   * Returns the fractions of progressive.sampling.fractions, empty if it is not set.
+   */
+  static List<Float> readSampleFractions(JobConfig props) throws IOException
+  {
+    List<Float> fractions = new ArrayList<Float>();
+    for (String fraction : props.getStringList(PROGRESSIVE_SAMPLING_FRACTIONS, new ArrayList<String>(), ","))
+    {
+      if (fraction.trim().isEmpty())
+      {
+        continue;
+      }
+      float f = Float.parseFloat(fraction.trim());
+      if (f <= 0 || f >= 1 || (!fractions.isEmpty() && f <= fractions.get(fractions.size() - 1)))
+      {
+        throw new IOException(PROGRESSIVE_SAMPLING_FRACTIONS + " has to be increasing fractions in (0, 1)!");
+      }
+      fractions.add(f);
+    }
+    return fractions;
+  }
+
+  /**
+   * Returns the iterations of successive.halving.rungs, empty if it is not set.
+   */
+  static Set<Integer> readHalvingRungs(JobConfig props) throws IOException
+  {
+    Set<Integer> rungs = new HashSet<Integer>();
+    for (String rung : props.getStringList(SUCCESSIVE_HALVING_RUNGS, new ArrayList<String>(), ","))
+    {
+      if (!rung.trim().isEmpty())
+      {
+        rungs.add(Integer.parseInt(rung.trim()));
+      }
+    }
+    return rungs;
+  }
+
+  /**
+   * Successive halving at the end of iteration iter: of the lambdas that are neither
+   * converged nor dropped yet, keeps the ceil(n/eta) ones with the best sample test loglik
+   * and returns the others, which are not fitted any more.
+   */
+  static Set<String> halveLambdas(int iter,
+                                  final Map<String, Double> loglik,
+                                  Set<Float> lambdas,
+                                  Set<String> converged,
+                                  Set<String> dropped,
+                                  double eta)
+  {
+    List<String> candidates = new ArrayList<String>();
+    for (Float l : lambdas)
+    {
+      String lambda = String.valueOf(l);
+      if (!converged.contains(lambda) && !dropped.contains(lambda))
+      {
+        candidates.add(lambda);
+      }
+    }
+    Collections.sort(candidates, new Comparator<String>()
+    {
+      @Override
+      public int compare(String a, String b)
+      {
+        return Double.compare(loglik.get(b), loglik.get(a));
+      }
+    });
+    int keep = Math.max(1, (int) Math.ceil(candidates.size() / eta));
+    Set<String> result = new HashSet<String>(candidates.subList(keep, candidates.size()));
+    if (!result.isEmpty())
+    {
+      _logger.info("Successive halving at iteration " + iter + " keeps lambda=" + candidates.subList(0, keep)
+          + " and drops lambda=" + result);
+    }
+    return result;
+  }
+
+  // writes the output of the keys missing from the part files of outpath, the x is the one
+  // of lastOutpath and uplusx = u + x where u is the one given to this iteration; returns the
+  // missing keys. The job must be complete, so that no task adds its output afterwards
+  private Set<String> fillStaleModels(JobConf conf,
+                                      String outpath,
+                                      String lastOutpath,
+                                      String uPath,
+                                      Set<String> keys) throws IOException
+  {
+    Set<String> missing = new HashSet<String>(keys);
+    for (Path path : Util.findPartFiles(conf, new Path(outpath)))
+    {
+      DataFileStream<Object> stream = AvroUtils.getAvroDataStream(conf, path);
+      while (stream.hasNext())
+      {
+        GenericData.Record record = (GenericData.Record) stream.next();
+        missing.remove(Util.getStringAvro(record, "key", false));
+      }
+      stream.close();
+    }
+    if (missing.isEmpty())
+    {
+      return missing;
+    }
+    AvroHdfsFileReader reader = new AvroHdfsFileReader(conf);
+    ReadLinearModelConsumer uConsumer = new ReadLinearModelConsumer();
+    reader.build(uPath, uConsumer);
+    uConsumer.done();
+    Map<String, LinearModel> u = uConsumer.get();
+    AvroHdfsFileWriter<GenericRecord> writer =
+        new AvroHdfsFileWriter<GenericRecord>(conf, outpath + "/part-stale.avro", RegressionTrainOutput.SCHEMA$);
+    DataFileWriter<GenericRecord> recordwriter = writer.get();
+    Set<String> found = new HashSet<String>();
+    for (Path path : Util.findPartFiles(conf, new Path(lastOutpath)))
+    {
+      DataFileStream<Object> stream = AvroUtils.getAvroDataStream(conf, path);
+      while (stream.hasNext())
+      {
+        GenericData.Record record = (GenericData.Record) stream.next();
+        String key = Util.getStringAvro(record, "key", false);
+        if (missing.contains(key))
+        {
+          LinearModel uplusx = (u.containsKey(key) ? u.get(key).copy() : new LinearModel());
+          uplusx.linearCombine(1.0,
+                               1.0,
+                               new LinearModel(LibLinearDataset.INTERCEPT_NAME, (List<?>) record.get("model")));
+          GenericData.Record output = new GenericData.Record(RegressionTrainOutput.SCHEMA$);
+          output.put("key", key);
+          output.put("model", record.get("model"));
+          output.put("uplusx", uplusx.toAvro(LibLinearDataset.INTERCEPT_NAME));
+          recordwriter.append(output);
+          found.add(key);
+        }
+      }
+      stream.close();
+    }
+    recordwriter.close();
+    if (found.size() != missing.size())
+    {
+      missing.removeAll(found);
+      throw new IOException("No model of the last iteration for " + missing);
+    }
+    return missing;
+  }
+
+  // fast ADMM: u = uhat + x - z where uplusx = uhat + x, and uhat = u + gamma * (u - lastu)
+  // u is written to admmUPath and uhat to uPath
+  private void computeFastU(JobConf conf,
+                            String uPath,
+                            String admmUPath,
+                            String uplusxPath,
+                            String lastAdmmUPath,
+                            Map<String, LinearModel> z,
+                            Map<String, Double> momentum) throws IOException
+  {
+    AvroHdfsFileReader reader = new AvroHdfsFileReader(conf);
+    ReadLinearModelConsumer lastUConsumer = new ReadLinearModelConsumer();
+    reader.build(lastAdmmUPath, lastUConsumer);
+    lastUConsumer.done();
+    Map<String, LinearModel> lastu = lastUConsumer.get();
+    DataFileWriter<GenericRecord> uWriter =
+        new AvroHdfsFileWriter<GenericRecord>(conf, uPath, LinearModelAvro.SCHEMA$).get();
+    DataFileWriter<GenericRecord> admmUWriter =
+        new AvroHdfsFileWriter<GenericRecord>(conf, admmUPath, LinearModelAvro.SCHEMA$).get();
+    for (Path path : Util.findPartFiles(conf, new Path(uplusxPath)))
+    {
+      DataFileStream<Object> stream = AvroUtils.getAvroDataStream(conf, path);
+      while (stream.hasNext())
+      {
+        GenericData.Record record = (GenericData.Record) stream.next();
+        String partitionID = Util.getStringAvro(record, "key", false);
+        if (record.get("uplusx") != null)
+        {
+          String lambda = Util.getLambda(partitionID);
+          LinearModel newu =
+              new LinearModel(LibLinearDataset.INTERCEPT_NAME, (List<?>) record.get("uplusx"));
+          newu.linearCombine(1.0, -1.0, z.get(lambda));
+          LinearModel uhat = FastAdmm.extrapolate(newu, lastu.get(partitionID), momentum.get(lambda));
+          GenericData.Record admmURecord = new GenericData.Record(LinearModelAvro.SCHEMA$);
+          admmURecord.put("key", partitionID);
+          admmURecord.put("model", newu.toAvro(LibLinearDataset.INTERCEPT_NAME));
+          admmUWriter.append(admmURecord);
+          GenericData.Record uRecord = new GenericData.Record(LinearModelAvro.SCHEMA$);
+          uRecord.put("key", partitionID);
+          uRecord.put("model", uhat.toAvro(LibLinearDataset.INTERCEPT_NAME));
+          uWriter.append(uRecord);
+        }
+      }
+    }
+    uWriter.close();
+    admmUWriter.close();
+  }
 }
@@ -130,6 +130,7 @@ public class RegressionNaiveTrain extends AbstractAvroJob
                       Pair.getPairSchema(Schema.create(Type.STRING),
                                          RegressionPrepareOutput.SCHEMA$),
                       LinearModelAvro.SCHEMA$);
+    RegressionPrepareDataModel.setDataModel(conf);
     // set up conf
     boolean computeModelMean = props.getBoolean(COMPUTE_MODEL_MEAN, true);
     int nblocks = -1;
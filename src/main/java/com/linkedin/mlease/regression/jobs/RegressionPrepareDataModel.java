@@ -0,0 +1,151 @@
+/**
+ * Copyright 2014 LinkedIn Corp. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.linkedin.mlease.regression.jobs;
+
+import java.io.IOException;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.Decoder;
+import org.apache.avro.mapred.AvroJob;
+import org.apache.avro.specific.SpecificData;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.apache.avro.util.Utf8;
+import org.apache.hadoop.mapred.JobConf;
+
+import com.linkedin.mlease.regression.avro.RegressionPrepareOutput;
+import com.linkedin.mlease.regression.avro.feature;
+
+/**
+ * The Avro data model of the jobs whose reducers read RegressionPrepareOutput records. It is
+ * SpecificData, except that RegressionPrepareOutput records are decoded by
+ * RegressionPrepareOutputReader: the fields are read straight from the binary decoder into
+ * the record given for reuse, which the reducers get back for every value, along with its
+ * feature records and their Utf8 name and term. Once the record has seen its largest
+ * instance, decoding allocates nothing, and the datasets read the bytes of the names from
+ * the Utf8's (without any String under feature hashing).
+ * <p>
+ * Use setDataModel() on the JobConf.
+ */
+public class RegressionPrepareDataModel extends SpecificData
+{
+  private static final Schema FEATURES_SCHEMA =
+      RegressionPrepareOutput.SCHEMA$.getField("features").schema();
+
+  /**
+   * Called by AvroJob with the class loader of the job
+   */
+  public RegressionPrepareDataModel(ClassLoader classLoader)
+  {
+    super(classLoader);
+  }
+
+  /**
+   * Makes the job read its input, map output and reducer input with this data model.
+   */
+  public static void setDataModel(JobConf conf)
+  {
+    AvroJob.setDataModelClass(conf, RegressionPrepareDataModel.class);
+  }
+
+  @Override
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  public DatumReader createDatumReader(Schema schema)
+  {
+    if (RegressionPrepareOutput.SCHEMA$.equals(schema))
+    {
+      return new RegressionPrepareOutputReader(this);
+    }
+    return super.createDatumReader(schema);
+  }
+
+  /**
+   * Decodes RegressionPrepareOutput records written with their own schema without a
+   * ResolvingDecoder. Records written with a different schema (e.g. by an older
+   * RegressionPrepare) are left to SpecificDatumReader.
+   */
+  public static class RegressionPrepareOutputReader implements
+      DatumReader<RegressionPrepareOutput>
+  {
+    private final SpecificData                           _data;
+    private SpecificDatumReader<RegressionPrepareOutput> _resolvingReader = null;
+
+    public RegressionPrepareOutputReader(SpecificData data)
+    {
+      _data = data;
+    }
+
+    @Override
+    public void setSchema(Schema writer)
+    {
+      if (RegressionPrepareOutput.SCHEMA$.equals(writer))
+      {
+        _resolvingReader = null;
+      }
+      else
+      {
+        _resolvingReader =
+            new SpecificDatumReader<RegressionPrepareOutput>(writer,
+                                                             RegressionPrepareOutput.SCHEMA$,
+                                                             _data);
+      }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public RegressionPrepareOutput read(RegressionPrepareOutput reuse, Decoder in) throws IOException
+    {
+      if (_resolvingReader != null)
+      {
+        return _resolvingReader.read(reuse, in);
+      }
+      RegressionPrepareOutput record = (reuse != null ? reuse : new RegressionPrepareOutput());
+      record.key = in.readString(record.key instanceof Utf8 ? (Utf8) record.key : null);
+      record.response = in.readInt();
+      GenericData.Array<feature> features;
+      if (record.features instanceof GenericData.Array)
+      {
+        features = (GenericData.Array<feature>) record.features;
+        // clear() keeps the feature records for peek()
+        features.clear();
+      }
+      else
+      {
+        features = new GenericData.Array<feature>(0, FEATURES_SCHEMA);
+        record.features = features;
+      }
+      for (long n = in.readArrayStart(); n > 0; n = in.arrayNext())
+      {
+        for (long i = 0; i < n; i++)
+        {
+          feature f = features.peek();
+          if (f == null)
+          {
+            f = new feature();
+          }
+          f.name = in.readString(f.name instanceof Utf8 ? (Utf8) f.name : null);
+          f.term = in.readString(f.term instanceof Utf8 ? (Utf8) f.term : null);
+          f.value = in.readFloat();
+          features.add(f);
+        }
+      }
+      record.weight = in.readFloat();
+      record.offset = in.readFloat();
+      return record;
+    }
+  }
+}
@@ -24,6 +24,8 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.commons.math3.linear.CholeskyDecomposition;
 import org.apache.commons.math3.linear.DecompositionSolver;
@@ -66,6 +68,9 @@ import de.bwaldvogel.liblinear.Tron;
  * </p>
  * <ul>
  * <li>max_iter: maximum number of iterations</li>
+ * <li>max_cg_iter: maximum number of conjugate gradient iterations per iteration</li>
+ * <li>max_time: maximum number of seconds of the fit</li>
+ * <li>threads: number of threads the instances are split over in each pass of the fit</li>
  * <li>epsilon: precision of the solution</li>
  * <li>positive_weight: weight to be added to the positive instances</li>
  * </ul>
@@ -95,6 +100,14 @@ public class LibLinear
   double               epsilon            = 0.01;
   String               type               = Logistic_L2_primal;
   int                  max_iter           = 10000;
+  int                  max_cg_iter        = 0;     // 0 for no limit
+  double               max_time           = 0;     // in seconds, 0 for no limit
+  int                  threads            = 1;
+
+  // solver state kept across fits of the same dataset, see setSolverState
+  boolean              keepSolverState    = false;
+  double               delta              = 0;
+  Map<String, Double>  zeroGradient       = null;
   int                  verbose            = 0;
   double               positive_weight    = 1;
 
@@ -137,6 +150,20 @@ public class LibLinear
         {
           max_iter = Util.atoi(pair[1]);
         }
+        else if (pair[0].equals("max_cg_iter"))
+        {
+          max_cg_iter = Util.atoi(pair[1]);
+        }
+        else if (pair[0].equals("max_time"))
+        {
+          max_time = Util.atof(pair[1]);
+        }
+        else if (pair[0].equals("threads"))
+        {
+          threads = Util.atoi(pair[1]);
+          if (threads < 1)
+            throw new Exception();
+        }
         else if (pair[0].equals("verbose"))
         {
           verbose = Util.atoi(pair[1]);
@@ -156,6 +183,32 @@ public class LibLinear
     }
   }
 
+  /**
+   * Starts the next train() from the state of an earlier fit on the same dataset: the trust
+   * region radius delta (0 if unknown) and the gradient of the data term at 0 by feature name
+   * (null if unknown), which then is not computed again. After train(), getDelta() and
+   * getZeroGradient() return the state to start the next fit from.
+   * 
+   * @param delta
+   * @param zeroGradient
+   */
+  public void setSolverState(double delta, Map<String, Double> zeroGradient)
+  {
+    keepSolverState = true;
+    this.delta = delta;
+    this.zeroGradient = zeroGradient;
+  }
+
+  public double getDelta()
+  {
+    return delta;
+  }
+
+  public Map<String, Double> getZeroGradient()
+  {
+    return zeroGradient;
+  }
+
   /**
    * Whether to compute the full posterior variance-covariance matrix
    * @param compute
@@ -278,7 +331,7 @@ public class LibLinear
     if (type.equals(Logistic_L2_primal))
     {
       double multiplier = 1;
-      LibLinearFunction func;
+      LogisticRegressionL2 func;
       
       if (dataset instanceof LibLinearBinaryDataset)
       {
@@ -306,10 +359,36 @@ public class LibLinear
         func.setReporter(reporter, reportFrequency);
       }
       
-      // Find the posterior mode
-      Tron tron =
-          new Tron(func, epsilon * Math.min(pos, neg) / dataset.nInstances(), max_iter);
-      tron.tron(param);
+      ExecutorService pool = null;
+      if (threads > 1)
+      {
+        pool = Executors.newFixedThreadPool(threads);
+        func.setThreads(pool, threads);
+      }
+      try
+      {
+        // Find the posterior mode
+        Tron tron =
+            new Tron(func,
+                     epsilon * Math.min(pos, neg) / dataset.nInstances(),
+                     max_iter,
+                     max_cg_iter,
+                     (long) (max_time * 1000));
+        if (keepSolverState)
+        {
+          tron.setInitialState(delta, zeroGradient(dataset, func, multiplier));
+        }
+        tron.tron(param);
+        delta = tron.getDelta();
+      }
+      finally
+      {
+        if (pool != null)
+        {
+          func.setThreads(null, 1);
+          pool.shutdown();
+        }
+      }
       
       // Compute the posterior variance
       if(computePosteriorVar)
@@ -397,6 +476,41 @@ public class LibLinear
     }
   }
   
+  /**
+   * Returns the gradient of func at 0, from zeroGradient, the gradient of the data term at 0,
+   * when it has all the features of the dataset, and computing it otherwise; zeroGradient is
+   * set to the one of the dataset.
+   */
+  private double[] zeroGradient(LibLinearDataset dataset, LibLinearFunction func, double multiplier)
+  {
+    int n = dataset.nFeatures();
+    double[] g = new double[n];
+    boolean known = (zeroGradient != null);
+    for (int i = 0; known && i < n; i++)
+    {
+      Double value = zeroGradient.get(dataset.getFeatureName(i + 1));
+      if (value == null)
+      {
+        known = false;
+      }
+      else
+      {
+        g[i] = (value - priorMean[i] / priorVar[i]) * multiplier;
+      }
+    }
+    if (!known)
+    {
+      func.fun(new double[n]);
+      func.grad(new double[n], g);
+      zeroGradient = new HashMap<String, Double>();
+      for (int i = 0; i < n; i++)
+      {
+        zeroGradient.put(dataset.getFeatureName(i + 1), g[i] / multiplier + priorMean[i] / priorVar[i]);
+      }
+    }
+    return g;
+  }
+
   /**
    * Same as train(dataset, null, null, null, priorVar, option)
    * 
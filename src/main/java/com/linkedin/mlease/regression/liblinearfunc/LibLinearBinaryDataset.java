@@ -17,6 +17,8 @@ package com.linkedin.mlease.regression.liblinearfunc;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -29,6 +31,7 @@ import java.util.StringTokenizer;
 
 import org.apache.avro.generic.GenericData;
 
+import com.linkedin.mlease.regression.avro.RegressionPartitionShard;
 import com.linkedin.mlease.regression.avro.RegressionPrepareOutput;
 import com.linkedin.mlease.regression.avro.feature;
 import com.linkedin.mlease.utils.Util;
@@ -268,8 +271,6 @@ public class LibLinearBinaryDataset extends LibLinearDataset
       Map<String, ?> feature = (Map<String, ?>) temp;
       String name = Util.getString(feature, "name", false);
       String term = Util.getString(feature, "term", true);
-      if (!"".equals(term))
-        name = name + "\u0001" + term;
       if (feature.containsKey("value"))
       {
         double value = Util.getDouble(feature, "value");
@@ -277,25 +278,7 @@ public class LibLinearBinaryDataset extends LibLinearDataset
           throw new IOException("Cannot handle non-binary feature value (all feature values have to be 1; or just do not specify the value): "
               + feature.toString());
       }
-      if (featureIndex == null)
-        featureIndex = new HashMap<String, Integer>();
-      if (featureName == null)
-        featureName = new ArrayList<String>();
-      if (featureIndex.size() != featureName.size())
-        throw new IOException("featureIndex.size() != featureName.size()");
-      Integer index = featureIndex.get(name);
-      if (index == null)
-      {
-        if (INTERCEPT_NAME.equals(name))
-          throw new IOException("feature name cannot be " + INTERCEPT_NAME);
-        maxFeatureIndex++;
-        featureIndex.put(name, maxFeatureIndex);
-        featureName.add(name);
-        if (featureName.size() != maxFeatureIndex)
-          throw new IOException("featureName.size() != maxFeatureIndex");
-        index = maxFeatureIndex;
-      }
-      x_current[i] = index;
+      x_current[i] = featureIndexOf(name, term);
     }
     if (m > 1)
       Arrays.sort(x_current, 0, m);
@@ -375,8 +358,6 @@ public class LibLinearBinaryDataset extends LibLinearDataset
       GenericData.Record feature = (GenericData.Record) temp;
       String name = Util.getStringAvro(feature, "name", false);
       String term = Util.getStringAvro(feature, "term", true);
-      if (!"".equals(term))
-        name = name + "\u0001" + term;
       if (feature.get("value") != null)
       {
         double value = Util.getDoubleAvro(feature, "value");
@@ -384,25 +365,7 @@ public class LibLinearBinaryDataset extends LibLinearDataset
           throw new IOException("Cannot handle non-binary feature value (all feature values have to be 1; or just do not specify the value): "
               + feature.toString());
       }
-      if (featureIndex == null)
-        featureIndex = new HashMap<String, Integer>();
-      if (featureName == null)
-        featureName = new ArrayList<String>();
-      if (featureIndex.size() != featureName.size())
-        throw new IOException("featureIndex.size() != featureName.size()");
-      Integer index = featureIndex.get(name);
-      if (index == null)
-      {
-        if (INTERCEPT_NAME.equals(name))
-          throw new IOException("feature name cannot be " + INTERCEPT_NAME);
-        maxFeatureIndex++;
-        featureIndex.put(name, maxFeatureIndex);
-        featureName.add(name);
-        if (featureName.size() != maxFeatureIndex)
-          throw new IOException("featureName.size() != maxFeatureIndex");
-        index = maxFeatureIndex;
-      }
-      x_current[i] = index;
+      x_current[i] = featureIndexOf(name, term);
     }
     if (m > 1)
       Arrays.sort(x_current, 0, m);
@@ -467,33 +430,14 @@ public class LibLinearBinaryDataset extends LibLinearDataset
     }
     for (int i = 0; i < m; i++)
     {
-      String name = features.get(i).name.toString();
-      String term = features.get(i).term.toString();
-      if (!"".equals(term))
-        name = name + "\u0001" + term;
+      // the name and term are hashed as they are under feature hashing
+      CharSequence name = features.get(i).name;
+      CharSequence term = features.get(i).term;
       double value = features.get(i).value;
       if (value != 1)
         throw new IOException("Cannot handle non-binary feature value (all feature values have to be 1; or just do not specify the value): "
             + features.get(i).toString());
-      if (featureIndex == null)
-        featureIndex = new HashMap<String, Integer>();
-      if (featureName == null)
-        featureName = new ArrayList<String>();
-      if (featureIndex.size() != featureName.size())
-        throw new IOException("featureIndex.size() != featureName.size()");
-      Integer index = featureIndex.get(name);
-      if (index == null)
-      {
-        if (INTERCEPT_NAME.equals(name))
-          throw new IOException("feature name cannot be " + INTERCEPT_NAME);
-        maxFeatureIndex++;
-        featureIndex.put(name, maxFeatureIndex);
-        featureName.add(name);
-        if (featureName.size() != maxFeatureIndex)
-          throw new IOException("featureName.size() != maxFeatureIndex");
-        index = maxFeatureIndex;
-      }
-      x_current[i] = index;
+      x_current[i] = featureIndexOf(name, term);
     }
     if (m > 1)
       Arrays.sort(x_current, 0, m);
@@ -531,6 +475,7 @@ public class LibLinearBinaryDataset extends LibLinearDataset
     offset_temp.clear();
     weight_temp.clear();
     maxFeatureIndex = 0;
+    clearFeatureHashing();
   }
 
   /**
@@ -547,7 +492,7 @@ public class LibLinearBinaryDataset extends LibLinearDataset
     if (bias > 0)
     {
       n++;
-      if (n == 1 && (featureIndex == null || featureName == null))
+      if (n == 1 && hashIndex == null && (featureIndex == null || featureName == null))
       {
         featureIndex = new HashMap<String, Integer>();
         featureName = new ArrayList<String>();
@@ -624,6 +569,61 @@ public class LibLinearBinaryDataset extends LibLinearDataset
     finished = true;
   }
 
+  /**
+   * Write the finished dataset as a shard, the values are left empty since they are all 1.
+   */
+  @Override
+  public RegressionPartitionShard toShard(String key) throws IOException
+  {
+    if (!finished)
+      throw new IOException("Cannot write an unfinished dataset to a shard.");
+    int nnz = 0;
+    for (int i = 0; i < l; i++)
+      nnz += getNumNonzeroFeatures(i);
+    ByteBuffer rowOffsets = ByteBuffer.allocate(4 * (l + 1));
+    ByteBuffer indices = ByteBuffer.allocate(4 * nnz);
+    int pos = 0;
+    rowOffsets.putInt(pos);
+    for (int i = 0; i < l; i++)
+    {
+      int m = getNumNonzeroFeatures(i);
+      for (int j = 0; j < m; j++)
+        indices.putInt(getFeatureIndex(i, j));
+      pos += m;
+      rowOffsets.putInt(pos);
+    }
+    return newShard(key, rowOffsets, indices, ByteBuffer.allocate(0));
+  }
+
+  @Override
+  public void readFromShard(RegressionPartitionShard shard) throws IOException
+  {
+    readShardHeader(shard);
+    IntBuffer rowOffsets = shard.rowOffsets.duplicate().asIntBuffer();
+    IntBuffer indices = shard.indices.duplicate().asIntBuffer();
+    for (int i = 0; i < l; i++)
+    {
+      int start = rowOffsets.get(i);
+      int m = rowOffsets.get(i + 1) - start;
+      if (useShort)
+      {
+        short[] x_current = new short[m];
+        for (int j = 0; j < m; j++)
+          x_current[j] = (short) indices.get(start + j);
+        x_short.add(x_current);
+      }
+      else
+      {
+        int[] x_current = new int[m];
+        indices.position(start);
+        indices.get(x_current);
+        x_int.add(x_current);
+      }
+    }
+    sanity_check(1);
+    finished = true;
+  }
+
   /**
    * Each line is in the following form: response TAB features TAB weight TAB offset where
    * features is in the following form: space-separated list of NAME=VALUE e.g.,
@@ -723,8 +723,15 @@ public class LibLinearBinaryDataset extends LibLinearDataset
       throw new IOException("l = " + l + ", but weight.length =" + weight.length);
     if (featureIndex != null && featureName == null)
       throw new IOException("featureIndex != null && featureName == null");
-    if (featureIndex == null && featureName != null)
+    if (featureIndex == null && featureName != null && hashIndex == null)
       throw new IOException("featureIndex == null && featureName != null");
+    if (hashIndex != null)
+    {
+      if (featureIndex != null || featureName == null)
+        throw new IOException("featureIndex != null || featureName == null with feature hashing");
+      if (featureName.size() != n)
+        throw new IOException("featureName.size()=" + featureName.size() + ", but n=" + n);
+    }
     if (featureIndex != null)
     {
       if (bias > 0 && (!INTERCEPT_NAME.equals(featureName.get(featureName.size() - 1))))
@@ -19,9 +19,11 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -31,12 +33,13 @@ import java.util.Set;
 import java.util.StringTokenizer;
 
 import org.apache.avro.generic.GenericData;
+import org.apache.avro.util.Utf8;
 
+import com.linkedin.mlease.regression.avro.RegressionPartitionShard;
 import com.linkedin.mlease.regression.avro.RegressionPrepareOutput;
 import com.linkedin.mlease.regression.avro.feature;
 import com.linkedin.mlease.utils.Util;
 
-import de.bwaldvogel.liblinear.FeatureNode;
 import de.bwaldvogel.liblinear.InvalidInputDataException;
 import de.bwaldvogel.liblinear.Problem;
 
@@ -56,6 +59,16 @@ import de.bwaldvogel.liblinear.Problem;
  * <li>Feature index starts from 1 (instead of 0)</li>
  * <li>If bias (i.e., intercept) > 0, then the bias value is added to each instance as the
  * last feature (i.e., its feature index = nFeatures)</li>
+ * <li>The instances are stored in CSR form: the features of instance i are colIdx[k] and
+ * values[k] for k in [rowPtr[i], rowPtr[i+1]), sorted by index. Problem.x is not set.</li>
+ * <li>With setFeatureHashing(), the features are indexed by a hash of the bytes of their name
+ * and term instead of the featureIndex dictionary. The hashes seen are numbered from 1 in the
+ * order they are seen, and featureName only keeps the lexicographically smallest name seen
+ * for each, so that the models keep readable names and the partitions that see the same
+ * colliding features name their coefficient alike.</li>
+ * <li>finish() also builds a column-major (CSC) copy for wide datasets, see
+ * setColumnLayout(): the nonzeros of feature index k are rowIdx[j] and colValues[j] for j
+ * in [colPtr[k-1], colPtr[k]), sorted by instance.</li>
  * </ul>
  * 
  * IMPORTANT NOTE: voldemort.serialization.json.JsonReader seems to have a bug
@@ -76,6 +89,34 @@ public class LibLinearDataset extends Problem
   /** The weight of each instance (default: null) */
   public double[]                 weight          = null;
 
+  /** The start of the features of each instance in colIdx and values, and their end */
+  public int[]                    rowPtr          = null;
+
+  /** The feature index of each nonzero */
+  public int[]                    colIdx          = null;
+
+  /** The feature value of each nonzero */
+  public double[]                 values          = null;
+
+  /** The start of the nonzeros of each feature in rowIdx and colValues, null without CSC */
+  public int[]                    colPtr          = null;
+
+  /** The instance of each nonzero in column-major order */
+  public int[]                    rowIdx          = null;
+
+  /** The value of each nonzero in column-major order */
+  public double[]                 colValues       = null;
+
+  /**
+   * Datasets with at least this many features, and more features than instances, get the
+   * CSC copy by default: X'v then writes its output in order and reads the smaller v at
+   * random, instead of scattering into a vector that does not fit in the cache.
+   */
+  public static final int         COLUMN_LAYOUT_MIN_FEATURES = 1 << 15;
+
+  /** The threshold actually used, which the tests lower to get the CSC copy on small data */
+  static int                      columnLayoutMinFeatures    = COLUMN_LAYOUT_MIN_FEATURES;
+
   /**
    * featureIndex.get(name) returns the numeric index of the feature name (feature index
    * starts from 1)
@@ -91,13 +132,26 @@ public class LibLinearDataset extends Problem
   /** The feature name of intercept */
   public final static String      INTERCEPT_NAME  = "(INTERCEPT)";
 
-  protected ArrayList<Integer>    y_temp          = new ArrayList<Integer>();
-  protected List<FeatureNode[]>   x_temp          = new ArrayList<FeatureNode[]>();
-  protected ArrayList<Double>     offset_temp     = new ArrayList<Double>();
-  protected ArrayList<Double>     weight_temp     = new ArrayList<Double>();
-  protected boolean               finished        = false;
-  protected int                   maxFeatureIndex = 0;
-  protected FeatureNodeComparator featureNodeCmp  = new FeatureNodeComparator();
+  protected GrowableIntArray     y_temp          = new GrowableIntArray();
+  protected GrowableIntArray     rowPtr_temp     = new GrowableIntArray();
+  protected GrowableIntArray     colIdx_temp     = new GrowableIntArray();
+  protected GrowableDoubleArray  values_temp     = new GrowableDoubleArray();
+  protected GrowableDoubleArray  offset_temp     = new GrowableDoubleArray();
+  protected GrowableDoubleArray  weight_temp     = new GrowableDoubleArray();
+  protected boolean              finished        = false;
+  protected int                  maxFeatureIndex = 0;
+  protected Boolean              columnLayout    = null;
+  // under feature hashing, the number of bits of the hash, the feature index of each hash
+  // value (0 if not seen yet), a second hash of the name each index is named after to tell
+  // the collisions by, whether they are counted, and their count
+  protected int                  hashingBits     = 0;
+  protected int[]                hashIndex       = null;
+  protected GrowableIntArray     hashCheck       = null;
+  protected boolean              countCollisions = false;
+  protected long                 hashCollisions  = 0;
+
+  static final long              FNV_OFFSET      = 0xcbf29ce484222325L;
+  static final long              FNV_PRIME       = 0x100000001b3L;
 
   public int nInstances()
   {
@@ -114,6 +168,200 @@ public class LibLinearDataset extends Problem
     return finished;
   }
 
+  /**
+   * Indexes the features by the lowest bits of a hash of the UTF-8 bytes of their name and
+   * term, instead of looking their name up in a dictionary; different features with the same
+   * hash share their coefficient. Must be called on an empty dataset. The dataset then keeps
+   * 4 * 2^bits bytes to number the hash values seen.
+   * 
+   * @param bits
+   *          the number of bits of the hash, from 1 to 30
+   * @param countCollisions
+   *          whether to count the feature occurrences whose hash is the one of a different
+   *          feature, see getNumHashCollisions()
+   * @throws IOException
+   */
+  public void setFeatureHashing(int bits, boolean countCollisions) throws IOException
+  {
+    if (finished || y_temp.size() > 0)
+      throw new IOException("Feature hashing can only be set on an empty dataset.");
+    if (bits < 1 || bits > 30)
+      throw new IOException("The number of bits of the feature hash must be in [1, 30]: " + bits);
+    hashingBits = bits;
+    hashIndex = new int[1 << bits];
+    hashCheck = new GrowableIntArray();
+    this.countCollisions = countCollisions;
+    hashCollisions = 0;
+    featureIndex = null;
+    featureName = new ArrayList<String>();
+  }
+
+  /**
+   * Forgets the features seen under feature hashing, for reset()
+   */
+  protected void clearFeatureHashing()
+  {
+    if (hashIndex == null)
+      return;
+    Arrays.fill(hashIndex, 0);
+    featureName.clear();
+    hashCheck.clear();
+    hashCollisions = 0;
+  }
+
+  /**
+   * Under feature hashing with collision counting, the number of feature occurrences added
+   * whose name is not the one their feature index is named after, 0 otherwise.
+   */
+  public long getNumHashCollisions()
+  {
+    return hashCollisions;
+  }
+
+  /**
+   * The feature index of name\u0001term (or of name when term is empty), a new one if the
+   * feature has not been seen yet.
+   */
+  protected int featureIndexOf(CharSequence name, CharSequence term) throws IOException
+  {
+    if (hashIndex != null)
+    {
+      long h = hashBytes(FNV_OFFSET, (name instanceof Utf8 ? (Utf8) name : new Utf8(name.toString())));
+      if (term.length() > 0)
+      {
+        h = (h ^ 1) * FNV_PRIME;
+        h = hashBytes(h, (term instanceof Utf8 ? (Utf8) term : new Utf8(term.toString())));
+      }
+      int bucket = hashBucket(h);
+      int index = hashIndex[bucket];
+      if (index == 0)
+      {
+        // the only time the name is built
+        String fullName = (term.length() > 0 ? name + "\u0001" + term : name.toString());
+        if (INTERCEPT_NAME.equals(fullName))
+          throw new IOException("feature name cannot be " + INTERCEPT_NAME);
+        maxFeatureIndex++;
+        hashIndex[bucket] = maxFeatureIndex;
+        featureName.add(fullName);
+        hashCheck.add((int) (h >>> 32));
+        index = maxFeatureIndex;
+      }
+      else if (hashCheck.get(index - 1) != (int) (h >>> 32))
+      {
+        // a collision, the name is built to keep the smallest one whatever the order the
+        // features come in
+        if (countCollisions)
+          hashCollisions++;
+        String fullName = (term.length() > 0 ? name + "\u0001" + term : name.toString());
+        if (INTERCEPT_NAME.equals(fullName))
+          throw new IOException("feature name cannot be " + INTERCEPT_NAME);
+        if (fullName.compareTo(featureName.get(index - 1)) < 0)
+        {
+          featureName.set(index - 1, fullName);
+          hashCheck.set(index - 1, (int) (h >>> 32));
+        }
+      }
+      return index;
+    }
+    String key = (term.length() > 0 ? name + "\u0001" + term : name.toString());
+    if (featureIndex == null)
+      featureIndex = new HashMap<String, Integer>();
+    if (featureName == null)
+      featureName = new ArrayList<String>();
+    if (featureIndex.size() != featureName.size())
+      throw new IOException("featureIndex.size() != featureName.size()");
+    Integer index = featureIndex.get(key);
+    if (index == null)
+    {
+      if (INTERCEPT_NAME.equals(key))
+        throw new IOException("feature name cannot be " + INTERCEPT_NAME);
+      maxFeatureIndex++;
+      featureIndex.put(key, maxFeatureIndex);
+      featureName.add(key);
+      if (featureName.size() != maxFeatureIndex)
+        throw new IOException("featureName.size() != maxFeatureIndex");
+      index = maxFeatureIndex;
+    }
+    return index;
+  }
+
+  /**
+   * FNV-1a of the bytes, continuing from h
+   */
+  static long hashBytes(long h, Utf8 bytes)
+  {
+    byte[] b = bytes.getBytes();
+    for (int i = 0; i < bytes.getByteLength(); i++)
+    {
+      h ^= (b[i] & 0xff);
+      h *= FNV_PRIME;
+    }
+    return h;
+  }
+
+  /**
+   * The lowest hashingBits bits of the mixed hash
+   */
+  int hashBucket(long h)
+  {
+    // the finalizer of MurmurHash3, the low bits of FNV alone are not well mixed
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return (int) (h & ((1 << hashingBits) - 1));
+  }
+
+  /**
+   * Whether finish() builds the CSC copy of the instances, which doubles their memory:
+   * true or false to force it, null (default) to build it for the datasets with at least
+   * COLUMN_LAYOUT_MIN_FEATURES features and more features than instances.
+   * 
+   * @param columnLayout
+   */
+  public void setColumnLayout(Boolean columnLayout)
+  {
+    this.columnLayout = columnLayout;
+  }
+
+  /**
+   * Whether the CSC copy is built
+   */
+  public boolean hasColumnLayout()
+  {
+    return colPtr != null;
+  }
+
+  /**
+   * Builds the CSC copy of the rows if setColumnLayout() asks for it
+   */
+  protected void buildColumnLayout()
+  {
+    boolean build =
+        (columnLayout != null ? columnLayout : n >= columnLayoutMinFeatures && n > l);
+    if (!build)
+      return;
+    int nnz = rowPtr[l];
+    colPtr = new int[n + 1];
+    for (int k = 0; k < nnz; k++)
+      colPtr[colIdx[k]]++;
+    for (int j = 1; j <= n; j++)
+      colPtr[j] += colPtr[j - 1];
+    rowIdx = new int[nnz];
+    colValues = new double[nnz];
+    int[] next = Arrays.copyOf(colPtr, n);
+    for (int i = 0; i < l; i++)
+    {
+      for (int k = rowPtr[i]; k < rowPtr[i + 1]; k++)
+      {
+        int pos = next[colIdx[k] - 1]++;
+        rowIdx[pos] = i;
+        colValues[pos] = values[k];
+      }
+    }
+  }
+
   public String getFeatureName(int index)
   {
     if (featureName != null)
@@ -129,6 +377,17 @@ public class LibLinearDataset extends Problem
   {
     if (name == null)
       throw new RuntimeException("the input name is null");
+    if (hashIndex != null)
+    {
+      if (bias > 0 && finished && INTERCEPT_NAME.equals(name))
+        return n;
+      // the bytes of name\u0001term are those hashed by featureIndexOf(name, term); a name
+      // whose hash collided with the one of the feature the index is named after is not in
+      // the data as such, so that values given by name (e.g. z, the prior means and
+      // variances) do not overwrite the value of that feature
+      int index = hashIndex[hashBucket(hashBytes(FNV_OFFSET, new Utf8(name)))];
+      return (index != 0 && name.equals(featureName.get(index - 1)) ? index : -1);
+    }
     if (featureIndex != null)
     {
       Integer index = featureIndex.get(name);
@@ -149,6 +408,73 @@ public class LibLinearDataset extends Problem
     this.bias = bias;
     l = 0;
     n = 0;
+    rowPtr_temp.add(0);
+  }
+
+  /**
+   * Appends a feature to the instance being added
+   */
+  protected void addFeature(int index, double value)
+  {
+    colIdx_temp.add(index);
+    values_temp.add(value);
+  }
+
+  /**
+   * Ends the instance being added: sorts its features by index and reserves the slot of the
+   * bias, whose index is only known in finish()
+   */
+  protected void endInstance()
+  {
+    int start = rowPtr_temp.get(rowPtr_temp.size() - 1);
+    sortFeatures(colIdx_temp.array(), values_temp.array(), start, colIdx_temp.size());
+    if (bias > 0)
+    {
+      colIdx_temp.add(-1);
+      values_temp.add(bias);
+    }
+    rowPtr_temp.add(colIdx_temp.size());
+  }
+
+  /**
+   * Sorts the features in [from, to) by index
+   */
+  static void sortFeatures(int[] index, double[] value, int from, int to)
+  {
+    boolean sorted = true;
+    for (int k = from + 1; sorted && k < to; k++)
+      sorted = (index[k - 1] <= index[k]);
+    if (sorted)
+      return;
+    if (to - from <= 32)
+    {
+      // insertion sort, most instances have few features
+      for (int k = from + 1; k < to; k++)
+      {
+        int i = index[k];
+        double v = value[k];
+        int j = k - 1;
+        for (; j >= from && index[j] > i; j--)
+        {
+          index[j + 1] = index[j];
+          value[j + 1] = value[j];
+        }
+        index[j + 1] = i;
+        value[j + 1] = v;
+      }
+      return;
+    }
+    // sort the indices together with their positions, the indices are positive
+    long[] keys = new long[to - from];
+    for (int k = from; k < to; k++)
+      keys[k - from] = ((long) index[k] << 32) | (k - from);
+    Arrays.sort(keys);
+    double[] v = Arrays.copyOfRange(value, from, to);
+    for (int k = from; k < to; k++)
+    {
+      index[k] = (int) (keys[k - from] >>> 32);
+      value[k] = v[(int) keys[k - from]];
+    }
   }
 
   /** Add an instance (a line) in the LibSVM format */
@@ -175,15 +501,6 @@ public class LibLinearDataset extends Problem
       throw new IOException("Invalid label: " + token, e);
     }
     int m = st.countTokens() / 2;
-    FeatureNode[] x;
-    if (bias > 0)
-    {
-      x = new FeatureNode[m + 1];
-    }
-    else
-    {
-      x = new FeatureNode[m];
-    }
     int indexBefore = 0;
     for (int j = 0; j < m; j++)
     {
@@ -210,7 +527,7 @@ public class LibLinearDataset extends Problem
       try
       {
         double value = Util.atof(token);
-        x[j] = new FeatureNode(index, value);
+        addFeature(index, value);
       }
       catch (NumberFormatException e)
       {
@@ -219,9 +536,9 @@ public class LibLinearDataset extends Problem
     }
     if (m > 0)
     {
-      maxFeatureIndex = Math.max(maxFeatureIndex, x[m - 1].index);
+      maxFeatureIndex = Math.max(maxFeatureIndex, indexBefore);
     }
-    x_temp.add(x);
+    endInstance();
   }
 
   /**
@@ -279,15 +596,6 @@ public class LibLinearDataset extends Problem
       throw new IOException("features is not a list");
     List<?> features = (List<?>) temp;
     int m = features.size();
-    FeatureNode[] x;
-    if (bias > 0)
-    {
-      x = new FeatureNode[m + 1];
-    }
-    else
-    {
-      x = new FeatureNode[m];
-    }
     for (int i = 0; i < m; i++)
     {
       temp = features.get(i);
@@ -296,32 +604,10 @@ public class LibLinearDataset extends Problem
       Map<String, ?> feature = (Map<String, ?>) temp;
       String name = Util.getString(feature, "name", false);
       String term = Util.getString(feature, "term", true);
-      if (!"".equals(term))
-        name = name + "\u0001" + term;
       double value = Util.getDouble(feature, "value");
-      if (featureIndex == null)
-        featureIndex = new HashMap<String, Integer>();
-      if (featureName == null)
-        featureName = new ArrayList<String>();
-      if (featureIndex.size() != featureName.size())
-        throw new IOException("featureIndex.size() != featureName.size()");
-      Integer index = featureIndex.get(name);
-      if (index == null)
-      {
-        if (INTERCEPT_NAME.equals(name))
-          throw new IOException("feature name cannot be " + INTERCEPT_NAME);
-        maxFeatureIndex++;
-        featureIndex.put(name, maxFeatureIndex);
-        featureName.add(name);
-        if (featureName.size() != maxFeatureIndex)
-          throw new IOException("featureName.size() != maxFeatureIndex");
-        index = maxFeatureIndex;
-      }
-      x[i] = new FeatureNode(index, value);
+      addFeature(featureIndexOf(name, term), value);
     }
-    if (m > 1)
-      Arrays.sort(x, 0, m, featureNodeCmp);
-    x_temp.add(x);
+    endInstance();
   }
 
   public void addInstanceAvro(GenericData.Record input) throws IOException
@@ -365,15 +651,6 @@ public class LibLinearDataset extends Problem
       throw new IOException("features is not a list");
     List<?> features = (List<?>) temp;
     int m = features.size();
-    FeatureNode[] x;
-    if (bias > 0)
-    {
-      x = new FeatureNode[m + 1];
-    }
-    else
-    {
-      x = new FeatureNode[m];
-    }
     for (int i = 0; i < m; i++)
     {
       temp = features.get(i);
@@ -382,32 +659,10 @@ public class LibLinearDataset extends Problem
       GenericData.Record feature = (GenericData.Record) temp;
       String name = Util.getStringAvro(feature, "name", false);
       String term = Util.getStringAvro(feature, "term", true);
-      if (!"".equals(term))
-        name = name + "\u0001" + term;
       double value = Util.getDoubleAvro(feature, "value");
-      if (featureIndex == null)
-        featureIndex = new HashMap<String, Integer>();
-      if (featureName == null)
-        featureName = new ArrayList<String>();
-      if (featureIndex.size() != featureName.size())
-        throw new IOException("featureIndex.size() != featureName.size()");
-      Integer index = featureIndex.get(name);
-      if (index == null)
-      {
-        if (INTERCEPT_NAME.equals(name))
-          throw new IOException("feature name cannot be " + INTERCEPT_NAME);
-        maxFeatureIndex++;
-        featureIndex.put(name, maxFeatureIndex);
-        featureName.add(name);
-        if (featureName.size() != maxFeatureIndex)
-          throw new IOException("featureName.size() != maxFeatureIndex");
-        index = maxFeatureIndex;
-      }
-      x[i] = new FeatureNode(index, value);
+      addFeature(featureIndexOf(name, term), value);
     }
-    if (m > 1)
-      Arrays.sort(x, 0, m, featureNodeCmp);
-    x_temp.add(x);
+    endInstance();
   }
 
   public void addInstanceAvro(RegressionPrepareOutput input) throws IOException
@@ -442,45 +697,13 @@ public class LibLinearDataset extends Problem
     // features
     List<feature> features = input.features;
     int m = features.size();
-    FeatureNode[] x;
-    if (bias > 0)
-    {
-      x = new FeatureNode[m + 1];
-    }
-    else
-    {
-      x = new FeatureNode[m];
-    }
     for (int i = 0; i < m; i++)
     {
-      String name = features.get(i).name.toString();
-      String term = features.get(i).term.toString();
-      if (!"".equals(term))
-        name = name + "\u0001" + term;
-      double value = features.get(i).value;
-      if (featureIndex == null)
-        featureIndex = new HashMap<String, Integer>();
-      if (featureName == null)
-        featureName = new ArrayList<String>();
-      if (featureIndex.size() != featureName.size())
-        throw new IOException("featureIndex.size() != featureName.size()");
-      Integer index = featureIndex.get(name);
-      if (index == null)
-      {
-        if (INTERCEPT_NAME.equals(name))
-          throw new IOException("feature name cannot be " + INTERCEPT_NAME);
-        maxFeatureIndex++;
-        featureIndex.put(name, maxFeatureIndex);
-        featureName.add(name);
-        if (featureName.size() != maxFeatureIndex)
-          throw new IOException("featureName.size() != maxFeatureIndex");
-        index = maxFeatureIndex;
-      }
-      x[i] = new FeatureNode(index, value);
+      // the name and term are hashed as they are under feature hashing
+      feature f = features.get(i);
+      addFeature(featureIndexOf(f.name, f.term), f.value);
     }
-    if (m > 1)
-      Arrays.sort(x, 0, m, featureNodeCmp);
-    x_temp.add(x);
+    endInstance();
   }
 
   /**
@@ -491,10 +714,14 @@ public class LibLinearDataset extends Problem
     if (finished)
       throw new IOException("Cannot reset a finished dataset.");
     y_temp.clear();
-    x_temp.clear();
+    rowPtr_temp.clear();
+    rowPtr_temp.add(0);
+    colIdx_temp.clear();
+    values_temp.clear();
     offset_temp.clear();
     weight_temp.clear();
     maxFeatureIndex = 0;
+    clearFeatureHashing();
   }
 
   /**
@@ -592,7 +819,7 @@ public class LibLinearDataset extends Problem
     if (bias > 0)
     {
       n++;
-      if (n == 1 && (featureIndex == null || featureName == null))
+      if (n == 1 && hashIndex == null && (featureIndex == null || featureName == null))
       {
         featureIndex = new HashMap<String, Integer>();
         featureName = new ArrayList<String>();
@@ -603,20 +830,22 @@ public class LibLinearDataset extends Problem
         featureName.add(INTERCEPT_NAME);
     }
 
-    x = new FeatureNode[l][];
-    for (int i = 0; i < l; i++)
+    rowPtr = rowPtr_temp.toArray();
+    colIdx = colIdx_temp.toArray();
+    values = values_temp.toArray();
+    rowPtr_temp.clear();
+    colIdx_temp.clear();
+    values_temp.clear();
+    if (bias > 0)
     {
-      x[i] = x_temp.get(i);
-      if (bias > 0)
+      for (int i = 0; i < l; i++)
       {
-        assert x[i][x[i].length - 1] == null;
-        x[i][x[i].length - 1] = new FeatureNode(maxFeatureIndex + 1, bias);
+        assert colIdx[rowPtr[i + 1] - 1] == -1;
+        colIdx[rowPtr[i + 1] - 1] = maxFeatureIndex + 1;
       }
     }
 
-    y = new int[l];
-    for (int i = 0; i < l; i++)
-      y[i] = y_temp.get(i);
+    y = y_temp.toArray();
 
     offset = new double[l];
     if (offset_temp.size() > 0)
@@ -649,14 +878,131 @@ public class LibLinearDataset extends Problem
     }
 
     sanity_check(1);
+    buildColumnLayout();
     y_temp.clear();
-    x_temp.clear();
     offset_temp.clear();
     weight_temp.clear();
     // System.gc(); GC has very high cost for small datasets
     finished = true;
   }
 
+  /**
+   * Write the finished dataset as a shard: the feature names and the instances in CSR
+   * form. readFromShard() loads it back without parsing the feature names again.
+   * 
+   * @param key
+   *          the partition id
+   * @throws IOException
+   */
+  public RegressionPartitionShard toShard(String key) throws IOException
+  {
+    if (!finished)
+      throw new IOException("Cannot write an unfinished dataset to a shard.");
+    int nnz = rowPtr[l];
+    ByteBuffer rowOffsets = ByteBuffer.allocate(4 * (l + 1));
+    ByteBuffer indices = ByteBuffer.allocate(4 * nnz);
+    ByteBuffer valueBuffer = ByteBuffer.allocate(8 * nnz);
+    rowOffsets.asIntBuffer().put(rowPtr);
+    rowOffsets.position(4 * (l + 1));
+    indices.asIntBuffer().put(colIdx, 0, nnz);
+    indices.position(4 * nnz);
+    valueBuffer.asDoubleBuffer().put(values, 0, nnz);
+    valueBuffer.position(8 * nnz);
+    return newShard(key, rowOffsets, indices, valueBuffer);
+  }
+
+  /**
+   * Read a shard written by toShard() into this empty dataset; the dataset is finished
+   * afterwards.
+   * 
+   * @param shard
+   * @throws IOException
+   */
+  public void readFromShard(RegressionPartitionShard shard) throws IOException
+  {
+    readShardHeader(shard);
+    IntBuffer rowOffsets = shard.rowOffsets.duplicate().asIntBuffer();
+    IntBuffer indices = shard.indices.duplicate().asIntBuffer();
+    DoubleBuffer valueBuffer = shard.values.duplicate().asDoubleBuffer();
+    rowPtr = new int[l + 1];
+    rowOffsets.get(rowPtr);
+    colIdx = new int[rowPtr[l]];
+    indices.get(colIdx);
+    values = new double[rowPtr[l]];
+    valueBuffer.get(values);
+    sanity_check(1);
+    buildColumnLayout();
+    finished = true;
+  }
+
+  /**
+   * Fill the shard with everything but the feature vectors
+   */
+  protected RegressionPartitionShard newShard(String key,
+                                              ByteBuffer rowOffsets,
+                                              ByteBuffer indices,
+                                              ByteBuffer values)
+  {
+    ByteBuffer labels = ByteBuffer.allocate(4 * l);
+    ByteBuffer weights = ByteBuffer.allocate(8 * l);
+    ByteBuffer offsets = ByteBuffer.allocate(8 * l);
+    for (int i = 0; i < l; i++)
+    {
+      labels.putInt(y[i]);
+      weights.putDouble(weight[i]);
+      offsets.putDouble(offset[i]);
+    }
+    List<CharSequence> names = new ArrayList<CharSequence>();
+    if (featureName != null)
+      names.addAll(featureName);
+    RegressionPartitionShard shard = new RegressionPartitionShard();
+    shard.key = key;
+    shard.bias = bias;
+    shard.featureNames = names;
+    shard.rowOffsets = (ByteBuffer) rowOffsets.flip();
+    shard.indices = (ByteBuffer) indices.flip();
+    shard.values = (ByteBuffer) values.flip();
+    shard.labels = (ByteBuffer) labels.flip();
+    shard.weights = (ByteBuffer) weights.flip();
+    shard.offsets = (ByteBuffer) offsets.flip();
+    return shard;
+  }
+
+  /**
+   * Read everything but the feature vectors from the shard
+   */
+  protected void readShardHeader(RegressionPartitionShard shard) throws IOException
+  {
+    if (finished || y_temp.size() > 0)
+      throw new IOException("Can only read a shard into an empty dataset.");
+    if (shard.bias != bias)
+      throw new IOException("The shard has bias = " + shard.bias + ", but the dataset has bias = "
+          + bias);
+    IntBuffer labels = shard.labels.duplicate().asIntBuffer();
+    DoubleBuffer weights = shard.weights.duplicate().asDoubleBuffer();
+    DoubleBuffer offsets = shard.offsets.duplicate().asDoubleBuffer();
+    l = labels.remaining();
+    n = shard.featureNames.size();
+    maxFeatureIndex = (bias > 0 ? n - 1 : n);
+    if (n > 0)
+    {
+      featureIndex = new HashMap<String, Integer>();
+      featureName = new ArrayList<String>(n);
+      for (CharSequence name : shard.featureNames)
+      {
+        String s = name.toString();
+        featureName.add(s);
+        featureIndex.put(s, featureName.size());
+      }
+    }
+    y = new int[l];
+    labels.get(y);
+    weight = new double[l];
+    weights.get(weight);
+    offset = new double[l];
+    offsets.get(offset);
+  }
+
   /**
    * Each line is in the following form: response TAB features TAB weight TAB offset where
    * features is in the following form: space-separated list of NAME=VALUE e.g.,
@@ -679,20 +1025,20 @@ public class LibLinearDataset extends Problem
     {
       out.append(y[i]);
       out.append("\t");
-      for (int j = 0; j < x[i].length; j++)
+      for (int k = rowPtr[i]; k < rowPtr[i + 1]; k++)
       {
-        if (j > 0)
+        if (k > rowPtr[i])
           out.append(" ");
         String name;
         if (featureName == null)
         {
-          name = x[i][j].getIndex() + "";
+          name = colIdx[k] + "";
         }
         else
         {
-          name = featureName.get(x[i][j].getIndex() - 1);
+          name = featureName.get(colIdx[k] - 1);
         }
-        out.append(name + "=" + x[i][j].getValue());
+        out.append(name + "=" + values[k]);
       }
       if (weight != null)
       {
@@ -723,16 +1069,26 @@ public class LibLinearDataset extends Problem
   {
     if (l != y.length)
       throw new IOException("l = " + l + ", but y.length =" + y.length);
-    if (l != x.length)
-      throw new IOException("l = " + l + ", but x.length =" + x.length);
+    if (l + 1 != rowPtr.length)
+      throw new IOException("l = " + l + ", but rowPtr.length =" + rowPtr.length);
+    if (rowPtr[l] != colIdx.length || rowPtr[l] != values.length)
+      throw new IOException("rowPtr[l] = " + rowPtr[l] + ", but colIdx.length =" + colIdx.length
+          + " and values.length =" + values.length);
     if (offset != null && l != offset.length)
       throw new IOException("l = " + l + ", but offset.length =" + offset.length);
     if (weight != null && l != weight.length)
       throw new IOException("l = " + l + ", but weight.length =" + weight.length);
     if (featureIndex != null && featureName == null)
       throw new IOException("featureIndex != null && featureName == null");
-    if (featureIndex == null && featureName != null)
+    if (featureIndex == null && featureName != null && hashIndex == null)
       throw new IOException("featureIndex == null && featureName != null");
+    if (hashIndex != null)
+    {
+      if (featureIndex != null || featureName == null)
+        throw new IOException("featureIndex != null || featureName == null with feature hashing");
+      if (featureName.size() != n)
+        throw new IOException("featureName.size()=" + featureName.size() + ", but n=" + n);
+    }
     if (featureIndex != null)
     {
       if (bias > 0 && (!INTERCEPT_NAME.equals(featureName.get(featureName.size() - 1))))
@@ -762,11 +1118,11 @@ public class LibLinearDataset extends Problem
     }
     if (level >= 2)
     {
-      for (int i = 0; i < x.length; i++)
+      for (int i = 0; i < l; i++)
       {
-        for (int j = 0; j < x[i].length; j++)
+        for (int j = 0; j < rowPtr[i + 1] - rowPtr[i]; j++)
         {
-          int index = x[i][j].getIndex();
+          int index = colIdx[rowPtr[i] + j];
           if (index < 1 || index > n)
             throw new IOException("feature index out of bound x[" + i + "][" + j
                 + "].index=" + index);
@@ -819,10 +1175,95 @@ public class LibLinearDataset extends Problem
 
 }
 
-class FeatureNodeComparator implements Comparator<FeatureNode>
+/**
+ * An int array that grows as values are appended, without boxing them
+ */
+class GrowableIntArray
+{
+  private int[] array = new int[16];
+  private int   size  = 0;
+
+  void add(int value)
+  {
+    if (size == array.length)
+      array = Arrays.copyOf(array, 2 * size);
+    array[size++] = value;
+  }
+
+  int get(int i)
+  {
+    return array[i];
+  }
+
+  void set(int i, int value)
+  {
+    array[i] = value;
+  }
+
+  int size()
+  {
+    return size;
+  }
+
+  /** The backing array, valid up to size() until the next add() */
+  int[] array()
+  {
+    return array;
+  }
+
+  int[] toArray()
+  {
+    return Arrays.copyOf(array, size);
+  }
+
+  /** Empties the array and releases its storage */
+  void clear()
+  {
+    array = new int[16];
+    size = 0;
+  }
+}
+
+/**
+ * A double array that grows as values are appended, without boxing them
+ */
+class GrowableDoubleArray
 {
-  public int compare(FeatureNode x1, FeatureNode x2)
+  private double[] array = new double[16];
+  private int      size  = 0;
+
+  void add(double value)
+  {
+    if (size == array.length)
+      array = Arrays.copyOf(array, 2 * size);
+    array[size++] = value;
+  }
+
+  double get(int i)
+  {
+    return array[i];
+  }
+
+  int size()
+  {
+    return size;
+  }
+
+  /** The backing array, valid up to size() until the next add() */
+  double[] array()
+  {
+    return array;
+  }
+
+  double[] toArray()
+  {
+    return Arrays.copyOf(array, size);
+  }
+
+  /** Empties the array and releases its storage */
+  void clear()
   {
-    return x1.index - x2.index;
+    array = new double[16];
+    size = 0;
   }
 }
@@ -15,14 +15,17 @@
 
 package com.linkedin.mlease.regression.liblinearfunc;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
 import org.apache.hadoop.mapred.Reporter;
 
 import com.linkedin.mlease.regression.liblinearfunc.LibLinearDataset;
 
-import de.bwaldvogel.liblinear.Feature;
-
-;
-
 /**
  * <p>
  * Logistic Regression with a Gaussian prior
@@ -44,6 +47,14 @@ import de.bwaldvogel.liblinear.Feature;
  * 
  *    where D[i,i] = data.weight[i] * prob_i(w) * (prob_i(w) - 1)
  * </pre>
+ * <p>
+ * With setThreads(), fun, grad and Hv split the instances into one contiguous block per
+ * thread. X'v is accumulated per block and the blocks are summed in a fixed order, so the
+ * results only depend on the number of threads, and are the same as the serial ones up to
+ * rounding. When the dataset has its CSC copy, X'v is computed from it instead, one dot
+ * product per feature, split by feature over the threads; it is then the same as the serial
+ * one.
+ * </p>
  * 
  * @author bchen
  */
@@ -61,13 +72,99 @@ public class LogisticRegressionL2 implements LibLinearFunction
   Reporter                         reporter        = null;
   long                             reportFrequency = 10000000;
 
+  // the pool the blocks run on, null to run serially
+  ExecutorService                  pool            = null;
+  int                              numBlocks       = 1;
+  // X'v of each block, allocated on the first parallel XTv
+  double[][]                       XTvBlocks       = null;
+
   public void setReporter(Reporter rep, long n)
   {
     reporter = rep;
     reportFrequency = n;
   }
 
-  long counter = 0;
+  // the rows done by each block since its last progress report
+  long[] counters = new long[1];
+
+  /**
+   * Counts a row of block, and reports progress every reportFrequency rows of the block
+   */
+  protected void progress(int block)
+  {
+    if (++counters[block] >= reportFrequency)
+    {
+      counters[block] = 0;
+      if (reporter != null)
+        reporter.progress();
+    }
+  }
+
+  /**
+   * Runs the row loops on numThreads blocks on pool, which the caller shuts down. A
+   * numThreads of 1 or a null pool runs them serially.
+   * 
+   * @param pool
+   * @param numThreads
+   */
+  public void setThreads(ExecutorService pool, int numThreads)
+  {
+    this.pool = (numThreads > 1 ? pool : null);
+    this.numBlocks = (this.pool != null ? numThreads : 1);
+    counters = new long[numBlocks];
+    XTvBlocks = null;
+  }
+
+  /**
+   * A loop over the range [from, to) of block
+   */
+  protected static abstract class BlockTask
+  {
+    abstract void run(int block, int from, int to);
+  }
+
+  /**
+   * Splits [0, n) into numBlocks contiguous blocks and runs task on each of them, on the
+   * pool when there is one.
+   */
+  protected void runBlocks(int n, final BlockTask task)
+  {
+    if (pool == null)
+    {
+      task.run(0, 0, n);
+      return;
+    }
+    List<Future<?>> futures = new ArrayList<Future<?>>(numBlocks);
+    for (int b = 0; b < numBlocks; b++)
+    {
+      final int block = b;
+      final int from = (int) ((long) n * b / numBlocks);
+      final int to = (int) ((long) n * (b + 1) / numBlocks);
+      futures.add(pool.submit(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          task.run(block, from, to);
+        }
+      }));
+    }
+    try
+    {
+      for (Future<?> future : futures)
+      {
+        future.get();
+      }
+    }
+    catch (InterruptedException e)
+    {
+      throw new RuntimeException("Interrupted while running the blocks", e);
+    }
+    catch (ExecutionException e)
+    {
+      throw new RuntimeException("Failed to run the blocks", e.getCause());
+    }
+  }
 
   public LogisticRegressionL2(LibLinearDataset dataset,
                               double[] priorMean,
@@ -112,40 +209,131 @@ public class LogisticRegressionL2 implements LibLinearFunction
       reporter.progress();
   }
 
-  protected void Xv(double[] v, double[] Xv)
+  protected void Xv(final double[] v, final double[] Xv)
+  {
+    runBlocks(data.l, new BlockTask()
+    {
+      @Override
+      void run(int block, int from, int to)
+      {
+        Xv(block, v, Xv, from, to);
+      }
+    });
+  }
+
+  /**
+   * Xv[i] = v'x[i,] for the instances i in [from, to)
+   */
+  protected void Xv(int block, double[] v, double[] Xv, int from, int to)
   {
+    int[] rowPtr = data.rowPtr;
+    int[] colIdx = data.colIdx;
+    double[] values = data.values;
 
-    for (int i = 0; i < data.l; i++)
+    for (int i = from; i < to; i++)
     {
-      Xv[i] = 0;
-      for (Feature s : data.x[i])
+      double sum = 0;
+      for (int k = rowPtr[i]; k < rowPtr[i + 1]; k++)
       {
-        Xv[i] += v[s.getIndex() - 1] * s.getValue();
+        sum += v[colIdx[k] - 1] * values[k];
       }
-      counter = (counter + 1) % reportFrequency;
-      if (counter == 0 && reporter != null)
-        reporter.progress();
+      Xv[i] = sum;
+      progress(block);
     }
   }
 
-  protected void XTv(double[] v, double[] XTv)
+  protected void XTv(final double[] v, final double[] XTv)
   {
-    int l = data.l;
     int w_size = data.nFeatures();
-    Feature[][] x = data.x;
 
-    for (int i = 0; i < w_size; i++)
-      XTv[i] = 0;
+    if (data.colPtr != null)
+    {
+      runBlocks(w_size, new BlockTask()
+      {
+        @Override
+        void run(int block, int from, int to)
+        {
+          XTvByColumn(block, v, XTv, from, to);
+        }
+      });
+      return;
+    }
+    if (pool == null)
+    {
+      for (int i = 0; i < w_size; i++)
+        XTv[i] = 0;
+      XTv(0, v, XTv, 0, data.l);
+      return;
+    }
+    if (XTvBlocks == null)
+    {
+      XTvBlocks = new double[numBlocks][w_size];
+    }
+    runBlocks(data.l, new BlockTask()
+    {
+      @Override
+      void run(int block, int from, int to)
+      {
+        double[] sum = XTvBlocks[block];
+        Arrays.fill(sum, 0);
+        XTv(block, v, sum, from, to);
+      }
+    });
+    // sum the blocks in order, split by feature
+    runBlocks(w_size, new BlockTask()
+    {
+      @Override
+      void run(int block, int from, int to)
+      {
+        for (int k = from; k < to; k++)
+        {
+          double sum = 0;
+          for (double[] blockSum : XTvBlocks)
+            sum += blockSum[k];
+          XTv[k] = sum;
+        }
+      }
+    });
+  }
+
+  /**
+   * XTv[k] = v'x[,k] for the features k in [from, to), from the CSC copy. The nonzeros of
+   * each feature are in instance order, so the sums are the same as the row-major ones.
+   */
+  protected void XTvByColumn(int block, double[] v, double[] XTv, int from, int to)
+  {
+    int[] colPtr = data.colPtr;
+    int[] rowIdx = data.rowIdx;
+    double[] colValues = data.colValues;
 
-    for (int i = 0; i < l; i++)
+    for (int k = from; k < to; k++)
     {
-      for (Feature s : x[i])
+      double sum = 0;
+      for (int j = colPtr[k]; j < colPtr[k + 1]; j++)
       {
-        XTv[s.getIndex() - 1] += v[i] * s.getValue();
+        sum += v[rowIdx[j]] * colValues[j];
       }
-      counter = (counter + 1) % reportFrequency;
-      if (counter == 0 && reporter != null)
-        reporter.progress();
+      XTv[k] = sum;
+      progress(block);
+    }
+  }
+
+  /**
+   * Adds v[i] * x[i,] to XTv for the instances i in [from, to)
+   */
+  protected void XTv(int block, double[] v, double[] XTv, int from, int to)
+  {
+    int[] rowPtr = data.rowPtr;
+    int[] colIdx = data.colIdx;
+    double[] values = data.values;
+
+    for (int i = from; i < to; i++)
+    {
+      for (int k = rowPtr[i]; k < rowPtr[i + 1]; k++)
+      {
+        XTv[colIdx[k] - 1] += v[i] * values[k];
+      }
+      progress(block);
     }
   }
 
@@ -153,20 +341,48 @@ public class LogisticRegressionL2 implements LibLinearFunction
    * loss(w) = (1/2) * sum_k { (w[k] - priorMean[k])^2 / priorVar[k] } + sum_i {
    * data.weight[i] * log(1 + exp(-y[i] * score_i(w))) }
    */
-  public double fun(double[] w)
+  public double fun(final double[] w)
   {
     int i;
     double f = 0;
-    int[] y = data.y;
-    int l = data.l;
     int w_size = data.nFeatures();
+    final double[] blockLoss = new double[numBlocks];
 
     if (reporter != null)
       reporter.progress();
 
-    Xv(w, z);
+    runBlocks(data.l, new BlockTask()
+    {
+      @Override
+      void run(int block, int from, int to)
+      {
+        Xv(block, w, z, from, to);
+        blockLoss[block] = loss(block, from, to);
+      }
+    });
+    for (double loss : blockLoss)
+      f += loss;
+    f = 2.0 * f;
+    for (i = 0; i < w_size; i++)
+    {
+      double temp = w[i] - priorMean[i];
+      f += temp * temp * priorVar_inv[i];
+    }
+    f /= 2.0;
 
-    for (i = 0; i < l; i++)
+    return (multiplier * f);
+  }
+
+  /**
+   * sum_i { data.weight[i] * log(1 + exp(-y[i] * score_i(w))) } for the instances i in
+   * [from, to), given z[i] = w'x[i,]
+   */
+  private double loss(int block, int from, int to)
+  {
+    double f = 0;
+    int[] y = data.y;
+
+    for (int i = from; i < to; i++)
     {
 
       z[i] += data.offset[i];
@@ -177,19 +393,9 @@ public class LogisticRegressionL2 implements LibLinearFunction
       else
         f += weight[i] * (-yz + Math.log1p(Math.exp(yz)));
 
-      counter = (counter + 1) % reportFrequency;
-      if (counter == 0 && reporter != null)
-        reporter.progress();
+      progress(block);
     }
-    f = 2.0 * f;
-    for (i = 0; i < w_size; i++)
-    {
-      double temp = w[i] - priorMean[i];
-      f += temp * temp * priorVar_inv[i];
-    }
-    f /= 2.0;
-
-    return (multiplier * f);
+    return f;
   }
 
   /**
@@ -199,25 +405,29 @@ public class LogisticRegressionL2 implements LibLinearFunction
   public void grad(double[] w, double[] g)
   {
     int i;
-    int[] y = data.y;
-    int l = data.l;
     int w_size = data.nFeatures();
 
     if (reporter != null)
       reporter.progress();
 
-    for (i = 0; i < l; i++)
+    runBlocks(data.l, new BlockTask()
     {
-      z[i] = 1 / (1 + Math.exp(-y[i] * z[i]));
-      // z[i] = prob_i(w) = (1 + exp(-y[i] * score_i(w)))^-1
-      D[i] = z[i] * (1 - z[i]);
-      // D[i] = prob_i(w) * (1 - prob_i(w))
-      z[i] = weight[i] * (z[i] - 1) * y[i];
-
-      counter = (counter + 1) % reportFrequency;
-      if (counter == 0 && reporter != null)
-        reporter.progress();
-    }
+      @Override
+      void run(int block, int from, int to)
+      {
+        int[] y = data.y;
+        for (int i = from; i < to; i++)
+        {
+          z[i] = 1 / (1 + Math.exp(-y[i] * z[i]));
+          // z[i] = prob_i(w) = (1 + exp(-y[i] * score_i(w)))^-1
+          D[i] = z[i] * (1 - z[i]);
+          // D[i] = prob_i(w) * (1 - prob_i(w))
+          z[i] = weight[i] * (z[i] - 1) * y[i];
+
+          progress(block);
+        }
+      }
+    });
     XTv(z, g);
 
     for (i = 0; i < w_size; i++)
@@ -228,19 +438,26 @@ public class LogisticRegressionL2 implements LibLinearFunction
    * loss''(w) = diag(1/priorVar) + X' D X, where D[i,i] = data.weight[i] * prob_i(w) *
    * (1 - prob_i(w))
    */
-  public void Hv(double[] s, double[] Hs)
+  public void Hv(final double[] s, double[] Hs)
   {
     int i;
     int l = data.l;
     int w_size = data.nFeatures();
-    double[] wa = new double[l];
+    final double[] wa = new double[l];
 
     if (reporter != null)
       reporter.progress();
 
-    Xv(s, wa);
-    for (i = 0; i < l; i++)
-      wa[i] = weight[i] * D[i] * wa[i];
+    runBlocks(l, new BlockTask()
+    {
+      @Override
+      void run(int block, int from, int to)
+      {
+        Xv(block, s, wa, from, to);
+        for (int i = from; i < to; i++)
+          wa[i] = weight[i] * D[i] * wa[i];
+      }
+    });
 
     XTv(wa, Hs);
     for (i = 0; i < w_size; i++)
@@ -256,12 +473,15 @@ public class LogisticRegressionL2 implements LibLinearFunction
    *           sum_i D[i,i] * X[i,m] * X[i,n]
    */
   public void hessian(double[] w, double[][] H){
+    int[] rowPtr = data.rowPtr;
+    int[] colIdx = data.colIdx;
+    double[] values = data.values;
     for(int k=0; k<data.n; k++) H[k][k] = priorVar_inv[k];
     for(int i=0; i<data.l; i++){
       double score = 0;
-      for (Feature s : data.x[i])
+      for (int a = rowPtr[i]; a < rowPtr[i + 1]; a++)
       {
-        score += w[s.getIndex() - 1] * s.getValue();
+        score += w[colIdx[a] - 1] * values[a];
       }
       score += data.offset[i];
       // score = w'x[i,] + data.offset[i]
@@ -270,24 +490,22 @@ public class LogisticRegressionL2 implements LibLinearFunction
       
       // Fill in H[m][n] for m >= n
       int prev_index = Integer.MIN_VALUE;
-      for (Feature s : data.x[i])
+      for (int a = rowPtr[i]; a < rowPtr[i + 1]; a++)
       {
-        int m = s.getIndex() - 1;
+        int m = colIdx[a] - 1;
         // check whether features are sorted by index
         if(m <= prev_index) throw new RuntimeException("The input features are not sorted by feature index values");
         prev_index = m;
         
-        for (Feature t : data.x[i])
+        for (int b = rowPtr[i]; b < rowPtr[i + 1]; b++)
         {
-          int n = t.getIndex() - 1;
-          H[m][n] += D_ii * s.getValue() * t.getValue();
+          int n = colIdx[b] - 1;
+          H[m][n] += D_ii * values[a] * values[b];
           if(m == n) break;
         }
       }
 
-      counter = (counter + 1) % reportFrequency;
-      if (counter == 0 && reporter != null)
-        reporter.progress();
+      progress(0);
     }
     // Fill in H[m][n] for m < n
     for(int m=0; m<H.length; m++)
@@ -302,27 +520,28 @@ public class LogisticRegressionL2 implements LibLinearFunction
    *                              X[i,k] * X[i,k]
    */
   public void hessianDiagonal(double[] w, double[] H){
+    int[] rowPtr = data.rowPtr;
+    int[] colIdx = data.colIdx;
+    double[] values = data.values;
     for(int k=0; k<data.n; k++) H[k] = priorVar_inv[k];
     for(int i=0; i<data.l; i++){
       double score = 0;
-      for (Feature s : data.x[i])
+      for (int a = rowPtr[i]; a < rowPtr[i + 1]; a++)
       {
-        score += w[s.getIndex() - 1] * s.getValue();
+        score += w[colIdx[a] - 1] * values[a];
       }
       score += data.offset[i];
       // score = w'x[i,] + data.offset[i]
       double p = 1.0 / (1.0 + Math.exp(-data.y[i] * score));
       double q = weight[i] * p * (1-p);
       
-      for (Feature s : data.x[i])
+      for (int a = rowPtr[i]; a < rowPtr[i + 1]; a++)
       {
-        int k = s.getIndex() - 1;
-        H[k] += q * s.getValue() * s.getValue();
+        int k = colIdx[a] - 1;
+        H[k] += q * values[a] * values[a];
       }
 
-      counter = (counter + 1) % reportFrequency;
-      if (counter == 0 && reporter != null)
-        reporter.progress();
+      progress(0);
     }
   }
 
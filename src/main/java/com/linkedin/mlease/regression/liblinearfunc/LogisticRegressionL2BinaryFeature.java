@@ -55,40 +55,31 @@ public class LogisticRegressionL2BinaryFeature extends LogisticRegressionL2
   }
 
   @Override
-  protected void Xv(double[] v, double[] Xv)
+  protected void Xv(int block, double[] v, double[] Xv, int from, int to)
   {
     LibLinearBinaryDataset d = (LibLinearBinaryDataset) data;
-    for (int i = 0; i < data.l; i++)
+    for (int i = from; i < to; i++)
     {
       Xv[i] = 0;
       for (int j = 0; j < d.getNumNonzeroFeatures(i); j++)
       {
         Xv[i] += v[d.getFeatureIndex(i, j) - 1];
       }
-      counter = (counter + 1) % reportFrequency;
-      if (counter == 0 && reporter != null)
-        reporter.progress();
+      progress(block);
     }
   }
 
   @Override
-  protected void XTv(double[] v, double[] XTv)
+  protected void XTv(int block, double[] v, double[] XTv, int from, int to)
   {
-    int l = data.l;
-    int w_size = data.nFeatures();
     LibLinearBinaryDataset d = (LibLinearBinaryDataset) data;
-    for (int i = 0; i < w_size; i++)
-      XTv[i] = 0;
-
-    for (int i = 0; i < l; i++)
+    for (int i = from; i < to; i++)
     {
       for (int j = 0; j < d.getNumNonzeroFeatures(i); j++)
       {
         XTv[d.getFeatureIndex(i, j) - 1] += v[i];
       }
-      counter = (counter + 1) % reportFrequency;
-      if (counter == 0 && reporter != null)
-        reporter.progress();
+      progress(block);
     }
   }
 
@@ -118,9 +109,7 @@ public class LogisticRegressionL2BinaryFeature extends LogisticRegressionL2
         H[k] += q;
       }
 
-      counter = (counter + 1) % reportFrequency;
-      if (counter == 0 && reporter != null)
-        reporter.progress();
+      progress(0);
     }
   }
 
@@ -162,9 +151,7 @@ public class LogisticRegressionL2BinaryFeature extends LogisticRegressionL2
         }
       }
 
-      counter = (counter + 1) % reportFrequency;
-      if (counter == 0 && reporter != null)
-        reporter.progress();
+      progress(0);
     }
     // Fill in H[m][n] for m < n
     for(int m=0; m<H.length; m++)
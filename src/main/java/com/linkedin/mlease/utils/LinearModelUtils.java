@@ -69,9 +69,38 @@ public class LinearModelUtils
                                                    int nblocks,
                                                    int lambdasize,
                                                    boolean check) throws Exception
+  {
+    return meanModel(conf, modelPath, nblocks, lambdasize, check, null);
+  }
+
+  /**
+   * Same as meanModel, and also puts the sum of the squared norms of the models of each
+   * lambda into sumSquaredNorm when it is not null.
+   */
+  public static Map<String, LinearModel> meanModel(JobConf conf, String modelPath,
+                                                   int nblocks,
+                                                   int lambdasize,
+                                                   boolean check,
+                                                   Map<String, Double> sumSquaredNorm) throws Exception
+  {
+    return meanModel(conf, modelPath, nblocks, lambdasize, check, sumSquaredNorm, null, null);
+  }
+
+  /**
+   * Same as meanModel, and also puts the number of models each feature appears in into
+   * featureCounts and the sum of the uSquaredNorm field of the records of each lambda into
+   * uSumSquaredNorm when they are not null.
+   */
+  public static Map<String, LinearModel> meanModel(JobConf conf, String modelPath,
+                                                   int nblocks,
+                                                   int lambdasize,
+                                                   boolean check,
+                                                   Map<String, Double> sumSquaredNorm,
+                                                   Map<String, Integer> featureCounts,
+                                                   Map<String, Double> uSumSquaredNorm) throws Exception
   {
     AvroHdfsFileReader reader = new AvroHdfsFileReader(conf);
-    MeanLinearModelConsumer consumer = new MeanLinearModelConsumer(nblocks);
+    MeanLinearModelConsumer consumer = new MeanLinearModelConsumer(nblocks, featureCounts != null);
     reader.build(modelPath, consumer);
     consumer.done();
     if (check)
@@ -82,6 +111,18 @@ public class LinearModelUtils
         throw new RuntimeException("Some models failed!");
       }
     }
+    if (sumSquaredNorm != null)
+    {
+      sumSquaredNorm.putAll(consumer.getSumSquaredNorm());
+    }
+    if (featureCounts != null)
+    {
+      featureCounts.putAll(consumer.getFeatureCounts());
+    }
+    if (uSumSquaredNorm != null)
+    {
+      uSumSquaredNorm.putAll(consumer.getUSumSquaredNorm());
+    }
     return consumer.get();
   }
 }
@@ -254,6 +254,11 @@ public class Util
 
     for (FileStatus status : fs.listStatus(root))
     {
+      if (AvroUtils.shouldPathBeIgnored(status.getPath()))
+      {
+        // e.g. _SUCCESS, _logs or the _temporary dir of a killed job
+        continue;
+      }
       if (status.isDir())
       {
         files.addAll(findPartFiles(conf, status.getPath()));
@@ -13,6 +13,20 @@ public class Tron {
 
     private final int      max_iter;
 
+    // work budgets: CG iterations of each Newton iteration and wall-clock time, 0 for none
+    private final int      max_cg_iter;
+
+    private final long     max_time_millis;
+
+    // warm start: the trust region radius to start with (0 for |grad(w)|), and the gradient at
+    // w=0 when it is known, which saves the two passes over the data that compute it
+    private double         init_delta      = 0;
+
+    private double[]       zero_gradient   = null;
+
+    // trust region radius at the end of tron()
+    private double         last_delta      = 0;
+
     public Tron( final Function fun_obj ) {
         this(fun_obj, 0.1);
     }
@@ -22,9 +36,24 @@ public class Tron {
     }
 
     public Tron( final Function fun_obj, double eps, int max_iter ) {
+        this(fun_obj, eps, max_iter, 0, 0);
+    }
+
+    public Tron( final Function fun_obj, double eps, int max_iter, int max_cg_iter, long max_time_millis ) {
         this.fun_obj = fun_obj;
         this.eps = eps;
         this.max_iter = max_iter;
+        this.max_cg_iter = max_cg_iter;
+        this.max_time_millis = max_time_millis;
+    }
+
+    public void setInitialState(double delta, double[] zero_gradient) {
+        this.init_delta = delta;
+        this.zero_gradient = zero_gradient;
+    }
+
+    public double getDelta() {
+        return last_delta;
     }
 
     public void tron(double[] w) {
@@ -39,6 +68,7 @@ public class Tron {
         double delta, snorm, one = 1.0;
         double alpha, f, fnew, prered, actred, gs;
         int search = 1, iter = 1;
+        long start = System.currentTimeMillis();
         double[] s = new double[n];
         double[] r = new double[n];
         double[] w_new = new double[n];
@@ -47,15 +77,21 @@ public class Tron {
         // CHANGED BY bchen: BEGIN
         // for (i = 0; i < n; i++) w[i] = 0;
 
-        for(i=0; i<n; i++) s[i] = 0;
-        f = fun_obj.fun(s);
-        fun_obj.grad(s, g);
-        double gnorm1 = euclideanNorm(g); // |gradient|^2 at w=0
+        double gnorm1; // |gradient|^2 at w=0
+        if (zero_gradient != null) {
+            gnorm1 = euclideanNorm(zero_gradient);
+        } else {
+            for(i=0; i<n; i++) s[i] = 0;
+            f = fun_obj.fun(s);
+            fun_obj.grad(s, g);
+            gnorm1 = euclideanNorm(g);
+        }
 
         f = fun_obj.fun(w);
         fun_obj.grad(w, g);
         delta = euclideanNorm(g);
         double gnorm = delta;
+        if (init_delta > 0) delta = init_delta;
 
         // CHANGED BY bchen: END
         
@@ -64,6 +100,11 @@ public class Tron {
         iter = 1;
 
         while (iter <= max_iter && search != 0) {
+            // checked on every iteration, rejected steps do not count in iter
+            if (max_time_millis > 0 && System.currentTimeMillis() - start >= max_time_millis) {
+                info("time budget reached%n");
+                break;
+            }
             cg_iter = trcg(delta, g, s, r);
 
             System.arraycopy(w, 0, w_new, 0, n);
@@ -121,6 +162,7 @@ public class Tron {
                 break;
             }
         }
+        last_delta = delta;
     }
 
     private int trcg(double delta, double[] g, double[] s, double[] r) {
@@ -142,6 +184,7 @@ public class Tron {
 
         while (true) {
             if (euclideanNorm(r) <= cgtol) break;
+            if (max_cg_iter > 0 && cg_iter >= max_cg_iter) break;
             cg_iter++;
             fun_obj.Hv(d, Hd);
 
@@ -0,0 +1,245 @@
+/**
+ * Copyright 2014 LinkedIn Corp. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.linkedin.mlease.models;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.junit.Test;
+
+/**
+ * ScoringBatch against LinearModel.evalInstanceAvro on the same records, and its reservoir.
+ */
+public class TestScoringBatch
+{
+  // test data with double values, which ScoringBatch must not round
+  private static final Schema SCHEMA =
+      new Schema.Parser().parse("{\"type\":\"record\",\"name\":\"TestRecord\",\"fields\":["
+          + "{\"name\":\"response\",\"type\":\"int\"},"
+          + "{\"name\":\"features\",\"type\":{\"type\":\"array\",\"items\":"
+          + "{\"type\":\"record\",\"name\":\"TestFeature\",\"fields\":["
+          + "{\"name\":\"name\",\"type\":\"string\"},"
+          + "{\"name\":\"term\",\"type\":\"string\"},"
+          + "{\"name\":\"value\",\"type\":\"double\"}]}}},"
+          + "{\"name\":\"weight\",\"type\":[\"null\",\"double\"]},"
+          + "{\"name\":\"offset\",\"type\":[\"null\",\"double\"]}]}");
+  private static final Schema FEATURE_SCHEMA = SCHEMA.getField("features").schema().getElementType();
+
+  private static GenericData.Record feature(String name, String term, double value)
+  {
+    GenericData.Record feature = new GenericData.Record(FEATURE_SCHEMA);
+    feature.put("name", name);
+    feature.put("term", term);
+    feature.put("value", value);
+    return feature;
+  }
+
+  /**
+   * Records over 30 names, some with a term, and some with no weight or offset
+   */
+  private static List<GenericData.Record> records(Random random, int count)
+  {
+    List<GenericData.Record> records = new ArrayList<GenericData.Record>();
+    for (int i = 0; i < count; i++)
+    {
+      GenericData.Record record = new GenericData.Record(SCHEMA);
+      record.put("response", (random.nextBoolean() ? 1 : (random.nextBoolean() ? 0 : -1)));
+      List<GenericData.Record> features = new ArrayList<GenericData.Record>();
+      int m = random.nextInt(8);
+      for (int j = 0; j < m; j++)
+      {
+        int id = random.nextInt(30);
+        features.add(feature("f" + id, (id % 3 == 0 ? "t" + (id % 2) : ""), random.nextGaussian() / 3));
+      }
+      record.put("features", features);
+      record.put("weight", (i % 4 == 0 ? null : 0.5 + random.nextDouble()));
+      record.put("offset", (i % 5 == 0 ? null : random.nextGaussian() / 7));
+      records.add(record);
+    }
+    return records;
+  }
+
+  /**
+   * A model with coefficients for some of the names only
+   */
+  private static LinearModel model(Random random)
+  {
+    LinearModel model = new LinearModel();
+    model.setIntercept(random.nextGaussian());
+    Map<String, Double> coefficients = new HashMap<String, Double>();
+    for (int id = 0; id < 30; id += 1 + random.nextInt(2))
+    {
+      String name = "f" + id + (id % 3 == 0 ? "\u0001t" + (id % 2) : "");
+      coefficients.put(name, random.nextGaussian() / 1.3);
+    }
+    model.setCoefficients(coefficients);
+    return model;
+  }
+
+  /**
+   * The test loglik as computed from evalInstanceAvro before ScoringBatch
+   */
+  private static double expectedLoglik(LinearModel model,
+                                       List<GenericData.Record> records,
+                                       int numClickReplicates,
+                                       boolean ignoreValue) throws Exception
+  {
+    double sum = 0;
+    double n = 0;
+    for (GenericData.Record record : records)
+    {
+      sum += model.evalInstanceAvro(record, true, numClickReplicates, ignoreValue);
+      n += (record.get("weight") == null ? 1 : (Double) record.get("weight"));
+    }
+    return sum / n;
+  }
+
+  private static ScoringBatch batch(List<GenericData.Record> records,
+                                    boolean ignoreValue,
+                                    int capacity,
+                                    boolean sampling,
+                                    long seed) throws Exception
+  {
+    ScoringBatch batch = new ScoringBatch(ignoreValue, capacity, sampling, seed);
+    for (GenericData.Record record : records)
+    {
+      batch.add(record);
+    }
+    batch.finish();
+    return batch;
+  }
+
+  @Test
+  public void testSameAsEvalInstanceAvro() throws Exception
+  {
+    Random random = new Random(11);
+    List<GenericData.Record> records = records(random, 300);
+    for (boolean ignoreValue : new boolean[] { false, true })
+    {
+      ScoringBatch batch = batch(records, ignoreValue, 1000, false, 0);
+      assertEquals(300, batch.size());
+      for (int t = 0; t < 5; t++)
+      {
+        LinearModel model = model(random);
+        for (int replicates : new int[] { 1, 3 })
+        {
+          assertEquals(expectedLoglik(model, records, replicates, ignoreValue),
+                       batch.loglik(model, replicates),
+                       0.0);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testSeveralModels() throws Exception
+  {
+    Random random = new Random(12);
+    List<GenericData.Record> records = records(random, 100);
+    ScoringBatch batch = batch(records, false, 1000, false, 0);
+    Map<String, LinearModel> models = new HashMap<String, LinearModel>();
+    for (int t = 0; t < 4; t++)
+    {
+      models.put("1.0#" + t, model(random));
+    }
+    Map<String, Double> loglik = batch.loglik(models, 1, 3);
+    assertEquals(models.keySet(), loglik.keySet());
+    for (String key : models.keySet())
+    {
+      assertEquals(expectedLoglik(models.get(key), records, 1, false), loglik.get(key), 0.0);
+    }
+  }
+
+  @Test
+  public void testFirstRecords() throws Exception
+  {
+    Random random = new Random(13);
+    List<GenericData.Record> records = records(random, 50);
+    ScoringBatch batch = new ScoringBatch(false, 20, false, 0);
+    for (int i = 0; i < 20; i++)
+    {
+      assertTrue(batch.add(records.get(i)));
+    }
+    // full without sampling: the caller can stop
+    assertFalse(batch.add(records.get(20)));
+    batch.finish();
+    assertEquals(20, batch.size());
+    LinearModel model = model(random);
+    assertEquals(expectedLoglik(model, records.subList(0, 20), 1, false), batch.loglik(model, 1), 0.0);
+  }
+
+  @Test
+  public void testReservoir() throws Exception
+  {
+    // record i has offset i, so the offsets tell which records were kept
+    int count = 100;
+    int capacity = 10;
+    List<GenericData.Record> records = new ArrayList<GenericData.Record>();
+    for (int i = 0; i < count; i++)
+    {
+      GenericData.Record record = new GenericData.Record(SCHEMA);
+      record.put("response", i % 2);
+      record.put("features", new ArrayList<GenericData.Record>());
+      record.put("offset", (double) i);
+      records.add(record);
+    }
+    int runs = 4000;
+    int[] kept = new int[count];
+    for (int seed = 0; seed < runs; seed++)
+    {
+      ScoringBatch batch = new ScoringBatch(false, capacity, true, seed);
+      for (GenericData.Record record : records)
+      {
+        assertTrue(batch.add(record));
+      }
+      batch.finish();
+      assertEquals(capacity, batch.size());
+      assertEquals(count, batch.getNumSeen());
+      Set<Integer> offsets = new HashSet<Integer>();
+      for (int r = 0; r < capacity; r++)
+      {
+        offsets.add((int) batch.getOffset(r));
+      }
+      assertEquals(capacity, offsets.size());
+      for (int i : offsets)
+      {
+        kept[i]++;
+      }
+    }
+    // each record is kept with probability capacity / count: 400 times out of 4000, with a
+    // standard deviation of 19
+    for (int i = 0; i < count; i++)
+    {
+      assertTrue("record " + i + " kept " + kept[i] + " times", Math.abs(kept[i] - 400) < 100);
+    }
+
+    // the same seed keeps the same records
+    assertEquals(batch(records, false, capacity, true, 7).getOffset(3),
+                 batch(records, false, capacity, true, 7).getOffset(3),
+                 0.0);
+  }
+}
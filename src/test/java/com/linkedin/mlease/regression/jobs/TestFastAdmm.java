@@ -0,0 +1,100 @@
+/**
+ * Copyright 2014 LinkedIn Corp. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.linkedin.mlease.regression.jobs;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.linkedin.mlease.models.LinearModel;
+
+/**
+ * The momentum and restart rule of FastAdmm.
+ */
+public class TestFastAdmm
+{
+  private static final double EPS = 1e-12;
+
+  private static Map<String, double[]> residuals(double primal, double dual)
+  {
+    Map<String, double[]> residuals = new HashMap<String, double[]>();
+    residuals.put("1.0", new double[] { primal, dual });
+    return residuals;
+  }
+
+  private static LinearModel model(double intercept, double a)
+  {
+    LinearModel model = new LinearModel();
+    model.setIntercept(intercept);
+    Map<String, Double> coefficients = new HashMap<String, Double>();
+    coefficients.put("a", a);
+    model.setCoefficients(coefficients);
+    return model;
+  }
+
+  @Test
+  public void testMomentum()
+  {
+    Map<Float, Float> lambdaRho = new HashMap<Float, Float>();
+    lambdaRho.put(1.0f, 2.0f);
+    FastAdmm fast = new FastAdmm(0.5);
+    // a_1 = 1, so the first iteration has no momentum
+    assertEquals(0.0, fast.momentum(residuals(1, 1), lambdaRho).get("1.0"), EPS);
+    double a2 = (1 + Math.sqrt(5)) / 2;
+    assertEquals(a2, fast.getA("1.0"), EPS);
+    assertEquals(2.5, fast.getResidual("1.0"), EPS);
+
+    // c_2 = 0.25 < 0.5 * 2.5
+    double a3 = (1 + Math.sqrt(1 + 4 * a2 * a2)) / 2;
+    assertEquals((a2 - 1) / a3, fast.momentum(residuals(0.25, 0.5), lambdaRho).get("1.0"), EPS);
+    assertEquals(0.25, fast.getResidual("1.0"), EPS);
+  }
+
+  @Test
+  public void testRestart()
+  {
+    Map<Float, Float> lambdaRho = new HashMap<Float, Float>();
+    lambdaRho.put(1.0f, 1.0f);
+    FastAdmm fast = new FastAdmm(0.5);
+    fast.momentum(residuals(1, 1), lambdaRho);
+    // c_2 = 2 is not below 0.5 * 2: restart from the previous iterates, c_2 = c_1 / eta
+    Map<String, Double> gamma = fast.momentum(residuals(1, 1), lambdaRho);
+    assertEquals(-1.0, gamma.get("1.0"), 0.0);
+    assertEquals(1.0, fast.getA("1.0"), 0.0);
+    assertEquals(4.0, fast.getResidual("1.0"), EPS);
+
+    Map<String, LinearModel> current = new HashMap<String, LinearModel>();
+    current.put("1.0", model(3.0, -2.5));
+    current.put("1.0#1", model(0.5, 7.0));
+    Map<String, LinearModel> previous = new HashMap<String, LinearModel>();
+    previous.put("1.0", model(1.0, 0.125));
+    Map<String, LinearModel> restarted = FastAdmm.extrapolate(current, previous, gamma);
+    assertEquals(1.0, restarted.get("1.0").getIntercept(), 0.0);
+    assertEquals(0.125, restarted.get("1.0").getCoefficients().get("a"), 0.0);
+    // a missing previous model is 0
+    assertEquals(0.0, restarted.get("1.0#1").getIntercept(), 0.0);
+    assertEquals(0.0, restarted.get("1.0#1").getCoefficients().get("a"), 0.0);
+
+    // c_3 = 2 is not below 0.5 * 4 either, then c_4 = 0.5 is and a_4 = 1 gives no momentum
+    assertEquals(-1.0, fast.momentum(residuals(1, 1), lambdaRho).get("1.0"), 0.0);
+    assertEquals(8.0, fast.getResidual("1.0"), EPS);
+    assertEquals(0.0, fast.momentum(residuals(0.5, 0.5), lambdaRho).get("1.0"), EPS);
+    assertEquals(0.5, fast.getResidual("1.0"), EPS);
+  }
+}
@@ -0,0 +1,193 @@
+/**
+ * Copyright 2014 LinkedIn Corp. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.linkedin.mlease.regression.jobs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.Encoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.junit.Test;
+
+import com.linkedin.mlease.regression.avro.RegressionPrepareOutput;
+import com.linkedin.mlease.regression.avro.feature;
+
+/**
+ * RegressionPrepareOutputReader against SpecificDatumReader on the same bytes.
+ */
+public class TestRegressionPrepareDataModel
+{
+  // the features of successive records shrink and grow, down to none
+  private static final int[] NUM_FEATURES = { 5, 2, 0, 9, 3, 3, 40, 1 };
+
+  private static List<RegressionPrepareOutput> records(Random random)
+  {
+    List<RegressionPrepareOutput> records = new ArrayList<RegressionPrepareOutput>();
+    for (int i = 0; i < NUM_FEATURES.length; i++)
+    {
+      List<feature> features = new ArrayList<feature>();
+      for (int j = 0; j < NUM_FEATURES[i]; j++)
+      {
+        // names of different lengths, so that the reused Utf8's shrink and grow too
+        String name = "f" + random.nextInt((int) Math.pow(10, 1 + random.nextInt(5)));
+        features.add(new feature(name, (random.nextBoolean() ? "" : "térm" + j), (float) random.nextGaussian()));
+      }
+      records.add(new RegressionPrepareOutput("key" + i + (i % 2 == 0 ? "" : "-longer"),
+                                              random.nextInt(2),
+                                              features,
+                                              random.nextFloat(),
+                                              (float) random.nextGaussian()));
+    }
+    return records;
+  }
+
+  private static byte[] encode(List<RegressionPrepareOutput> records, boolean blocking) throws Exception
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    // the blocking encoder splits the long arrays in several blocks
+    Encoder encoder =
+        (blocking ? new EncoderFactory().configureBlockSize(64).blockingBinaryEncoder(out, null)
+            : EncoderFactory.get().binaryEncoder(out, null));
+    SpecificDatumWriter<RegressionPrepareOutput> writer =
+        new SpecificDatumWriter<RegressionPrepareOutput>(RegressionPrepareOutput.SCHEMA$);
+    for (RegressionPrepareOutput record : records)
+    {
+      writer.write(record, encoder);
+    }
+    encoder.flush();
+    return out.toByteArray();
+  }
+
+  /**
+   * Reads the records back with both readers, the fast one reusing one record for all, and
+   * compares them one by one
+   */
+  private static void assertSameRecords(byte[] bytes,
+                                        Schema writer,
+                                        int count,
+                                        DatumReader<RegressionPrepareOutput> reader) throws Exception
+  {
+    SpecificDatumReader<RegressionPrepareOutput> expectedReader =
+        new SpecificDatumReader<RegressionPrepareOutput>(writer, RegressionPrepareOutput.SCHEMA$);
+    BinaryDecoder expectedIn = DecoderFactory.get().binaryDecoder(bytes, null);
+    BinaryDecoder in = DecoderFactory.get().binaryDecoder(bytes, null);
+    reader.setSchema(writer);
+    RegressionPrepareOutput reuse = null;
+    for (int i = 0; i < count; i++)
+    {
+      RegressionPrepareOutput expected = expectedReader.read(null, expectedIn);
+      RegressionPrepareOutput actual = reader.read(reuse, in);
+      if (reuse != null)
+      {
+        assertSame(reuse, actual);
+      }
+      assertEquals(expected, actual);
+      assertEquals(expected.toString(), actual.toString());
+      reuse = actual;
+    }
+    assertTrue(in.isEnd());
+  }
+
+  @Test
+  public void testCreateDatumReader()
+  {
+    RegressionPrepareDataModel model = new RegressionPrepareDataModel(getClass().getClassLoader());
+    assertTrue(model.createDatumReader(RegressionPrepareOutput.SCHEMA$) instanceof RegressionPrepareDataModel.RegressionPrepareOutputReader);
+    assertTrue(model.createDatumReader(feature.SCHEMA$) instanceof SpecificDatumReader);
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception
+  {
+    List<RegressionPrepareOutput> records = records(new Random(1));
+    RegressionPrepareDataModel model = new RegressionPrepareDataModel(getClass().getClassLoader());
+    for (boolean blocking : new boolean[] { false, true })
+    {
+      assertSameRecords(encode(records, blocking),
+                        RegressionPrepareOutput.SCHEMA$,
+                        records.size(),
+                        new RegressionPrepareDataModel.RegressionPrepareOutputReader(model));
+    }
+  }
+
+  @Test
+  public void testOtherWriterSchema() throws Exception
+  {
+    // an older writer: an extra field, and int values promoted to float
+    Schema writer =
+        new Schema.Parser().parse("{\"type\":\"record\",\"name\":\"RegressionPrepareOutput\","
+            + "\"namespace\":\"com.linkedin.mlease.regression.avro\",\"fields\":["
+            + "{\"name\":\"key\",\"type\":\"string\"},"
+            + "{\"name\":\"source\",\"type\":\"string\"},"
+            + "{\"name\":\"response\",\"type\":\"int\"},"
+            + "{\"name\":\"features\",\"type\":{\"type\":\"array\",\"items\":"
+            + "{\"type\":\"record\",\"name\":\"feature\",\"fields\":["
+            + "{\"name\":\"name\",\"type\":\"string\"},"
+            + "{\"name\":\"term\",\"type\":\"string\"},"
+            + "{\"name\":\"value\",\"type\":\"int\"}]}}},"
+            + "{\"name\":\"weight\",\"type\":\"float\"},"
+            + "{\"name\":\"offset\",\"type\":\"float\"}]}");
+    Schema featureSchema = writer.getField("features").schema().getElementType();
+    Random random = new Random(2);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Encoder encoder = EncoderFactory.get().binaryEncoder(out, null);
+    GenericDatumWriter<GenericRecord> datumWriter = new GenericDatumWriter<GenericRecord>(writer);
+    for (int i = 0; i < NUM_FEATURES.length; i++)
+    {
+      GenericData.Record record = new GenericData.Record(writer);
+      record.put("key", "key" + i);
+      record.put("source", "s" + i);
+      record.put("response", i % 2);
+      List<GenericData.Record> features = new ArrayList<GenericData.Record>();
+      for (int j = 0; j < NUM_FEATURES[i]; j++)
+      {
+        GenericData.Record f = new GenericData.Record(featureSchema);
+        f.put("name", "f" + random.nextInt(1000));
+        f.put("term", "");
+        f.put("value", random.nextInt(7));
+        features.add(f);
+      }
+      record.put("features", features);
+      record.put("weight", 1.0f);
+      record.put("offset", (float) random.nextGaussian());
+      datumWriter.write(record, encoder);
+    }
+    encoder.flush();
+
+    RegressionPrepareDataModel.RegressionPrepareOutputReader reader =
+        new RegressionPrepareDataModel.RegressionPrepareOutputReader(new RegressionPrepareDataModel(getClass().getClassLoader()));
+    assertSameRecords(out.toByteArray(), writer, NUM_FEATURES.length, reader);
+
+    // and back to the records of RegressionPrepare
+    List<RegressionPrepareOutput> records = records(new Random(3));
+    assertSameRecords(encode(records, false), RegressionPrepareOutput.SCHEMA$, records.size(), reader);
+  }
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright 2014 LinkedIn Corp. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.linkedin.mlease.regression.liblinearfunc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.linkedin.mlease.regression.avro.RegressionPrepareOutput;
+import com.linkedin.mlease.regression.avro.feature;
+
+/**
+ * X'v from the CSC copy of LibLinearDataset against the row-major X'v.
+ */
+public class TestLibLinearDatasetColumnLayout
+{
+  @After
+  public void tearDown()
+  {
+    LibLinearDataset.columnLayoutMinFeatures = LibLinearDataset.COLUMN_LAYOUT_MIN_FEATURES;
+  }
+
+  /**
+   * Few instances over many features
+   */
+  private static List<RegressionPrepareOutput> wideInstances()
+  {
+    Random random = new Random(5);
+    List<RegressionPrepareOutput> instances = new ArrayList<RegressionPrepareOutput>();
+    for (int i = 0; i < 40; i++)
+    {
+      List<feature> features = new ArrayList<feature>();
+      List<Integer> ids = new ArrayList<Integer>();
+      int m = 1 + random.nextInt(30);
+      while (ids.size() < m)
+      {
+        int id = random.nextInt(500);
+        if (!ids.contains(id))
+          ids.add(id);
+      }
+      for (int id : ids)
+        features.add(new feature("f" + id, "", (float) random.nextGaussian()));
+      instances.add(new RegressionPrepareOutput("0", random.nextInt(2), features, 1.0f, 0.0f));
+    }
+    return instances;
+  }
+
+  private static LibLinearDataset build(List<RegressionPrepareOutput> instances, Boolean columnLayout) throws Exception
+  {
+    LibLinearDataset dataset = new LibLinearDataset(1.0);
+    dataset.setColumnLayout(columnLayout);
+    return TestLibLinearDatasetCsr.build(dataset, instances);
+  }
+
+  /**
+   * X'v, on numThreads threads from the CSC copy, and the kernels that use it give exactly
+   * the same results from both datasets
+   */
+  private static void assertSameXTv(LibLinearDataset rows, LibLinearDataset columns, int numThreads)
+  {
+    assertFalse(rows.hasColumnLayout());
+    assertTrue(columns.hasColumnLayout());
+    int n = rows.nFeatures();
+    Random random = new Random(7);
+    double[] v = TestLibLinearDatasetCsr.random(random, rows.nInstances(), -0.5);
+    double[] w = TestLibLinearDatasetCsr.random(random, n, -0.5);
+    double[] priorMean = new double[n];
+    double[] priorVar = TestLibLinearDatasetCsr.random(random, n, 0.5);
+    LogisticRegressionL2 byRow = new LogisticRegressionL2(rows, priorMean, priorVar, 1.0, 1.0, 1.0);
+    LogisticRegressionL2 byColumn = new LogisticRegressionL2(columns, priorMean, priorVar, 1.0, 1.0, 1.0);
+    ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+    try
+    {
+      byColumn.setThreads(pool, numThreads);
+      double[] expected = new double[n];
+      double[] actual = new double[n];
+      byRow.XTv(v, expected);
+      byColumn.XTv(v, actual);
+      assertArrayEquals(expected, actual, 0.0);
+
+      // fun() sums its loss by block, so the kernels are compared serially
+      byColumn.setThreads(null, 1);
+      assertEquals(byRow.fun(w), byColumn.fun(w), 0.0);
+      byRow.grad(w, expected);
+      byColumn.grad(w, actual);
+      assertArrayEquals(expected, actual, 0.0);
+      byRow.Hv(w, expected);
+      byColumn.Hv(w, actual);
+      assertArrayEquals(expected, actual, 0.0);
+    }
+    finally
+    {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testThreshold() throws Exception
+  {
+    List<RegressionPrepareOutput> instances = wideInstances();
+    LibLinearDataset rows = build(instances, null);
+    assertTrue(rows.nFeatures() > rows.nInstances());
+    LibLinearDataset.columnLayoutMinFeatures = rows.nFeatures();
+    LibLinearDataset columns = build(instances, null);
+    assertSameXTv(rows, columns, 1);
+    assertSameXTv(rows, columns, 3);
+
+    // not built when there are more instances than features
+    List<RegressionPrepareOutput> tall = TestLibLinearDatasetCsr.randomInstances(new Random(1), false);
+    LibLinearDataset.columnLayoutMinFeatures = 1;
+    assertFalse(build(tall, null).hasColumnLayout());
+  }
+
+  @Test
+  public void testForced() throws Exception
+  {
+    List<RegressionPrepareOutput> tall = TestLibLinearDatasetCsr.randomInstances(new Random(1), false);
+    assertSameXTv(build(tall, false), build(tall, true), 1);
+    assertSameXTv(build(tall, false), build(tall, true), 4);
+  }
+
+  @Test
+  public void testFromShard() throws Exception
+  {
+    List<RegressionPrepareOutput> instances = wideInstances();
+    LibLinearDataset rows = build(instances, false);
+    LibLinearDataset empty = new LibLinearDataset(1.0);
+    empty.setColumnLayout(true);
+    LibLinearDataset columns = TestLibLinearDatasetCsr.roundTrip(rows, empty);
+    assertSameXTv(rows, columns, 2);
+  }
+}
@@ -0,0 +1,325 @@
+/**
+ * Copyright 2014 LinkedIn Corp. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.linkedin.mlease.regression.liblinearfunc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.linkedin.mlease.regression.avro.RegressionPartitionShard;
+import com.linkedin.mlease.regression.avro.RegressionPrepareOutput;
+import com.linkedin.mlease.regression.avro.feature;
+
+/**
+ * The CSR storage of LibLinearDataset and the kernels of LogisticRegressionL2 against a
+ * dense computation from the instances as they were added, for the real-valued and the
+ * binary (int and short index) datasets, with the intercept, and through a shard.
+ */
+public class TestLibLinearDatasetCsr
+{
+  private static final double          EPS = 1e-9;
+
+  private List<RegressionPrepareOutput> _instances;
+  private List<RegressionPrepareOutput> _binaryInstances;
+
+  @Before
+  public void setUp()
+  {
+    _instances = randomInstances(new Random(1), false);
+    _binaryInstances = randomInstances(new Random(2), true);
+  }
+
+  /**
+   * Instances with their features in random order, some weights and offsets
+   */
+  static List<RegressionPrepareOutput> randomInstances(Random random, boolean binary)
+  {
+    List<RegressionPrepareOutput> instances = new ArrayList<RegressionPrepareOutput>();
+    for (int i = 0; i < 200; i++)
+    {
+      List<feature> features = new ArrayList<feature>();
+      List<Integer> ids = new ArrayList<Integer>();
+      int m = random.nextInt(12);
+      while (ids.size() < m)
+      {
+        int id = random.nextInt(60);
+        if (!ids.contains(id))
+          ids.add(id);
+      }
+      for (int id : ids)
+      {
+        // half of the features have a term
+        String term = (id % 2 == 0 ? "" : "t" + (id % 3));
+        float value = (binary ? 1.0f : (float) random.nextGaussian());
+        features.add(new feature("f" + id, term, value));
+      }
+      float weight = (i % 3 == 0 ? 0.5f + random.nextFloat() : 1.0f);
+      float offset = (i % 4 == 0 ? (float) random.nextGaussian() : 0.0f);
+      instances.add(new RegressionPrepareOutput("0", random.nextInt(2), features, weight, offset));
+    }
+    return instances;
+  }
+
+  static LibLinearDataset build(LibLinearDataset dataset, List<RegressionPrepareOutput> instances) throws Exception
+  {
+    for (RegressionPrepareOutput instance : instances)
+      dataset.addInstanceAvro(instance);
+    dataset.finish();
+    return dataset;
+  }
+
+  /**
+   * The instances as a dense matrix, with the intercept in the last column
+   */
+  static double[][] dense(LibLinearDataset dataset, List<RegressionPrepareOutput> instances)
+  {
+    double[][] X = new double[instances.size()][dataset.nFeatures()];
+    for (int i = 0; i < instances.size(); i++)
+    {
+      for (feature f : instances.get(i).features)
+      {
+        String name = f.name + ("".equals(f.term.toString()) ? "" : "\u0001" + f.term);
+        X[i][dataset.getFeatureIndex(name) - 1] = f.value;
+      }
+      X[i][dataset.nFeatures() - 1] = 1.0;
+    }
+    return X;
+  }
+
+  static LogisticRegressionL2 function(LibLinearDataset dataset, double[] priorMean, double[] priorVar)
+  {
+    if (dataset instanceof LibLinearBinaryDataset)
+      return new LogisticRegressionL2BinaryFeature((LibLinearBinaryDataset) dataset,
+                                                   priorMean,
+                                                   priorVar,
+                                                   1.0,
+                                                   1.0,
+                                                   1.0);
+    return new LogisticRegressionL2(dataset, priorMean, priorVar, 1.0, 1.0, 1.0);
+  }
+
+  static double[] random(Random random, int n, double shift)
+  {
+    double[] v = new double[n];
+    for (int k = 0; k < n; k++)
+      v[k] = shift + random.nextDouble();
+    return v;
+  }
+
+  /**
+   * Checks fun, grad, Hv, hessian and hessianDiagonal against their dense formulas
+   */
+  static void checkKernels(LibLinearDataset dataset, double[][] X)
+  {
+    int l = X.length;
+    int n = dataset.nFeatures();
+    Random random = new Random(3);
+    double[] w = random(random, n, -0.5);
+    double[] s = random(random, n, -0.5);
+    double[] priorMean = random(random, n, -0.5);
+    double[] priorVar = random(random, n, 0.5);
+    LogisticRegressionL2 func = function(dataset, priorMean, priorVar);
+
+    double f = 0;
+    double[] g = new double[n];
+    double[] D = new double[l];
+    for (int k = 0; k < n; k++)
+    {
+      f += 0.5 * (w[k] - priorMean[k]) * (w[k] - priorMean[k]) / priorVar[k];
+      g[k] = (w[k] - priorMean[k]) / priorVar[k];
+    }
+    for (int i = 0; i < l; i++)
+    {
+      double score = dataset.offset[i];
+      for (int k = 0; k < n; k++)
+        score += w[k] * X[i][k];
+      int y = dataset.y[i];
+      double p = 1.0 / (1.0 + Math.exp(-y * score));
+      f += dataset.weight[i] * Math.log1p(Math.exp(-y * score));
+      for (int k = 0; k < n; k++)
+        g[k] += dataset.weight[i] * (p - 1) * y * X[i][k];
+      D[i] = dataset.weight[i] * p * (1 - p);
+    }
+    double[] Hs = new double[n];
+    double[][] H = new double[n][n];
+    for (int k = 0; k < n; k++)
+    {
+      Hs[k] = s[k] / priorVar[k];
+      H[k][k] = 1.0 / priorVar[k];
+    }
+    for (int i = 0; i < l; i++)
+    {
+      double xs = 0;
+      for (int k = 0; k < n; k++)
+        xs += X[i][k] * s[k];
+      for (int k = 0; k < n; k++)
+      {
+        Hs[k] += D[i] * xs * X[i][k];
+        for (int j = 0; j < n; j++)
+          H[k][j] += D[i] * X[i][k] * X[i][j];
+      }
+    }
+
+    assertEquals(f, func.fun(w), EPS * Math.abs(f));
+    double[] grad = new double[n];
+    func.grad(w, grad);
+    assertArrayEquals(g, grad, EPS);
+    double[] hv = new double[n];
+    func.Hv(s, hv);
+    assertArrayEquals(Hs, hv, EPS);
+    double[][] hessian = new double[n][n];
+    func.hessian(w, hessian);
+    double[] diagonal = new double[n];
+    func.hessianDiagonal(w, diagonal);
+    for (int k = 0; k < n; k++)
+    {
+      assertArrayEquals(H[k], hessian[k], EPS);
+      assertEquals(H[k][k], diagonal[k], EPS);
+    }
+  }
+
+  /**
+   * Writes the shard of dataset through Avro and reads it into empty
+   */
+  static LibLinearDataset roundTrip(LibLinearDataset dataset, LibLinearDataset empty) throws Exception
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(out, null);
+    SpecificDatumWriter<RegressionPartitionShard> writer =
+        new SpecificDatumWriter<RegressionPartitionShard>(RegressionPartitionShard.SCHEMA$);
+    writer.write(dataset.toShard("7"), encoder);
+    encoder.flush();
+    SpecificDatumReader<RegressionPartitionShard> reader =
+        new SpecificDatumReader<RegressionPartitionShard>(RegressionPartitionShard.SCHEMA$);
+    RegressionPartitionShard shard =
+        reader.read(null, DecoderFactory.get().binaryDecoder(out.toByteArray(), null));
+    assertEquals("7", shard.key.toString());
+    empty.readFromShard(shard);
+    return empty;
+  }
+
+  static void assertSameInstances(LibLinearDataset expected, LibLinearDataset actual)
+  {
+    assertEquals(expected.nInstances(), actual.nInstances());
+    assertEquals(expected.nFeatures(), actual.nFeatures());
+    assertArrayEquals(expected.y, actual.y);
+    assertArrayEquals(expected.weight, actual.weight, 0.0);
+    assertArrayEquals(expected.offset, actual.offset, 0.0);
+    for (int k = 1; k <= expected.nFeatures(); k++)
+    {
+      assertEquals(expected.getFeatureName(k), actual.getFeatureName(k));
+      assertEquals(k, actual.getFeatureIndex(expected.getFeatureName(k)));
+    }
+  }
+
+  @Test
+  public void testRows() throws Exception
+  {
+    LibLinearDataset dataset = build(new LibLinearDataset(1.0), _instances);
+    assertEquals(_instances.size(), dataset.nInstances());
+    assertEquals(LibLinearDataset.INTERCEPT_NAME, dataset.getFeatureName(dataset.nFeatures()));
+    for (int i = 0; i < dataset.nInstances(); i++)
+    {
+      int start = dataset.rowPtr[i];
+      int end = dataset.rowPtr[i + 1];
+      // the features of the instance plus the intercept, sorted by index
+      assertEquals(_instances.get(i).features.size() + 1, end - start);
+      for (int k = start + 1; k < end; k++)
+        assertTrue(dataset.colIdx[k - 1] < dataset.colIdx[k]);
+      assertEquals(dataset.nFeatures(), dataset.colIdx[end - 1]);
+      assertEquals(1.0, dataset.values[end - 1], 0.0);
+      assertEquals(_instances.get(i).response == 1 ? 1 : -1, dataset.y[i]);
+    }
+  }
+
+  @Test
+  public void testKernels() throws Exception
+  {
+    LibLinearDataset dataset = build(new LibLinearDataset(1.0), _instances);
+    checkKernels(dataset, dense(dataset, _instances));
+  }
+
+  @Test
+  public void testBinaryKernels() throws Exception
+  {
+    for (boolean useShort : new boolean[] { false, true })
+    {
+      LibLinearDataset dataset = build(new LibLinearBinaryDataset(1.0, useShort), _binaryInstances);
+      checkKernels(dataset, dense(dataset, _binaryInstances));
+    }
+  }
+
+  @Test
+  public void testBinaryMatchesValues() throws Exception
+  {
+    // the binary instances through the real-valued dataset give the same X
+    LibLinearDataset values = build(new LibLinearDataset(1.0), _binaryInstances);
+    for (boolean useShort : new boolean[] { false, true })
+    {
+      LibLinearDataset binary = build(new LibLinearBinaryDataset(1.0, useShort), _binaryInstances);
+      assertSameInstances(values, binary);
+      double[][] X = dense(values, _binaryInstances);
+      double[][] Y = dense(binary, _binaryInstances);
+      for (int i = 0; i < X.length; i++)
+        assertArrayEquals(X[i], Y[i], 0.0);
+    }
+  }
+
+  @Test
+  public void testShardRoundTrip() throws Exception
+  {
+    LibLinearDataset dataset = build(new LibLinearDataset(1.0), _instances);
+    LibLinearDataset copy = roundTrip(dataset, new LibLinearDataset(1.0));
+    assertSameInstances(dataset, copy);
+    assertArrayEquals(dataset.rowPtr, copy.rowPtr);
+    assertArrayEquals(dataset.colIdx, copy.colIdx);
+    assertArrayEquals(dataset.values, copy.values, 0.0);
+    checkKernels(copy, dense(dataset, _instances));
+  }
+
+  @Test
+  public void testBinaryShardRoundTrip() throws Exception
+  {
+    for (boolean useShort : new boolean[] { false, true })
+    {
+      LibLinearBinaryDataset dataset =
+          (LibLinearBinaryDataset) build(new LibLinearBinaryDataset(1.0, useShort), _binaryInstances);
+      LibLinearBinaryDataset copy =
+          (LibLinearBinaryDataset) roundTrip(dataset, new LibLinearBinaryDataset(1.0, useShort));
+      assertSameInstances(dataset, copy);
+      for (int i = 0; i < dataset.nInstances(); i++)
+      {
+        assertEquals(dataset.getNumNonzeroFeatures(i), copy.getNumNonzeroFeatures(i));
+        for (int j = 0; j < dataset.getNumNonzeroFeatures(i); j++)
+          assertEquals(dataset.getFeatureIndex(i, j), copy.getFeatureIndex(i, j));
+      }
+      checkKernels(copy, dense(dataset, _binaryInstances));
+    }
+  }
+}
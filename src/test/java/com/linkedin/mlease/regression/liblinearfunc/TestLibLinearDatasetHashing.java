@@ -0,0 +1,133 @@
+/**
+ * Copyright 2014 LinkedIn Corp. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.linkedin.mlease.regression.liblinearfunc;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.util.Utf8;
+import org.junit.Test;
+
+import com.linkedin.mlease.regression.avro.RegressionPrepareOutput;
+import com.linkedin.mlease.regression.avro.feature;
+
+/**
+ * Feature hashing with colliding names.
+ */
+public class TestLibLinearDatasetHashing
+{
+  private static RegressionPrepareOutput instance(int response, String... names)
+  {
+    List<feature> features = new ArrayList<feature>();
+    for (String name : names)
+    {
+      features.add(new feature(name, "", 1.0f));
+    }
+    return new RegressionPrepareOutput("0", response, features, 1.0f, 0.0f);
+  }
+
+  /**
+   * A name that falls in the same bucket as name but is not name
+   */
+  private static String collidingName(LibLinearDataset dataset, String name)
+  {
+    int bucket = dataset.hashBucket(LibLinearDataset.hashBytes(LibLinearDataset.FNV_OFFSET, new Utf8(name)));
+    for (int i = 0;; i++)
+    {
+      String other = "f" + i;
+      if (!other.equals(name)
+          && dataset.hashBucket(LibLinearDataset.hashBytes(LibLinearDataset.FNV_OFFSET,
+                                                           new Utf8(other))) == bucket)
+      {
+        return other;
+      }
+    }
+  }
+
+  @Test
+  public void testCollidingNameAbsentFromData() throws Exception
+  {
+    LibLinearDataset dataset = new LibLinearDataset(1.0);
+    dataset.setFeatureHashing(2, true);
+    String absent = collidingName(dataset, "a");
+    dataset.addInstanceAvro(instance(1, "a"));
+    dataset.addInstanceAvro(instance(0, "a"));
+    dataset.finish();
+
+    assertEquals(1, dataset.getFeatureIndex("a"));
+    assertEquals(-1, dataset.getFeatureIndex(absent));
+    assertEquals(2, dataset.getFeatureIndex(LibLinearDataset.INTERCEPT_NAME));
+
+    // whatever the order of the map, the value of a is not overwritten by the absent name
+    Map<String, Double> map = new HashMap<String, Double>();
+    map.put("a", 1.0);
+    map.put(absent, 5.0);
+    double[] param = new double[dataset.nFeatures()];
+    new LibLinear().initSetup(param, map, dataset, 0.0);
+    assertEquals(1.0, param[0], 0.0);
+    assertEquals(0.0, param[1], 0.0);
+  }
+
+  @Test
+  public void testCollidingNamesInData() throws Exception
+  {
+    LibLinearDataset dataset = new LibLinearDataset(1.0);
+    dataset.setFeatureHashing(2, true);
+    String other = collidingName(dataset, "a");
+    dataset.addInstanceAvro(instance(1, "a"));
+    dataset.addInstanceAvro(instance(0, other));
+    dataset.finish();
+
+    // both share the coefficient named after the smallest name
+    assertEquals(2, dataset.nFeatures());
+    assertEquals("a", dataset.getFeatureName(1));
+    assertEquals(1, dataset.getFeatureIndex("a"));
+    assertEquals(-1, dataset.getFeatureIndex(other));
+    assertEquals(1, dataset.getNumHashCollisions());
+  }
+
+  @Test
+  public void testNameDoesNotDependOnOrder() throws Exception
+  {
+    LibLinearDataset first = new LibLinearDataset(1.0);
+    first.setFeatureHashing(2, false);
+    String other = collidingName(first, "a");
+    first.addInstanceAvro(instance(1, "a"));
+    first.addInstanceAvro(instance(0, other));
+    first.finish();
+
+    // another partition sees them the other way round, and the larger name more often
+    LibLinearBinaryDataset second = new LibLinearBinaryDataset(1.0, false);
+    second.setFeatureHashing(2, true);
+    second.addInstanceAvro(instance(1, other));
+    second.addInstanceAvro(instance(0, other));
+    second.addInstanceAvro(instance(1, "a"));
+    second.addInstanceAvro(instance(0, other));
+    second.finish();
+
+    assertEquals("a", first.getFeatureName(1));
+    assertEquals("a", second.getFeatureName(1));
+    assertEquals(1, second.getFeatureIndex("a"));
+    assertEquals(-1, second.getFeatureIndex(other));
+    // counted against the name of the index when they were added
+    assertEquals(2, second.getNumHashCollisions());
+    assertEquals(0, first.getNumHashCollisions());
+  }
+}
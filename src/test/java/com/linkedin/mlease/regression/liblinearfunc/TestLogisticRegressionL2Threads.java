@@ -0,0 +1,152 @@
+/**
+ * Copyright 2014 LinkedIn Corp. All rights reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.linkedin.mlease.regression.liblinearfunc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.mapred.Counters.Counter;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.Reporter;
+import org.junit.Test;
+
+/**
+ * The row loops of LogisticRegressionL2 split over threads.
+ */
+public class TestLogisticRegressionL2Threads
+{
+  private static final double EPS = 1e-10;
+
+  /**
+   * Counts the progress reports
+   */
+  private static class CountingReporter implements Reporter
+  {
+    final AtomicInteger _progress = new AtomicInteger();
+
+    @Override
+    public void progress()
+    {
+      _progress.incrementAndGet();
+    }
+
+    @Override
+    public void setStatus(String status)
+    {
+    }
+
+    @Override
+    public Counter getCounter(Enum<?> name)
+    {
+      return null;
+    }
+
+    @Override
+    public Counter getCounter(String group, String name)
+    {
+      return null;
+    }
+
+    @Override
+    public void incrCounter(Enum<?> key, long amount)
+    {
+    }
+
+    @Override
+    public void incrCounter(String group, String counter, long amount)
+    {
+    }
+
+    @Override
+    public InputSplit getInputSplit()
+    {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public float getProgress()
+    {
+      return 0;
+    }
+  }
+
+  @Test
+  public void testSameAsSerial() throws Exception
+  {
+    LibLinearDataset dataset =
+        TestLibLinearDatasetCsr.build(new LibLinearDataset(1.0),
+                                      TestLibLinearDatasetCsr.randomInstances(new Random(1), false));
+    int n = dataset.nFeatures();
+    Random random = new Random(3);
+    double[] w = TestLibLinearDatasetCsr.random(random, n, -0.5);
+    double[] s = TestLibLinearDatasetCsr.random(random, n, -0.5);
+    double[] priorMean = new double[n];
+    double[] priorVar = TestLibLinearDatasetCsr.random(random, n, 0.5);
+    LogisticRegressionL2 serial = new LogisticRegressionL2(dataset, priorMean, priorVar, 1.0, 1.0, 1.0);
+    LogisticRegressionL2 parallel = new LogisticRegressionL2(dataset, priorMean, priorVar, 1.0, 1.0, 1.0);
+    ExecutorService pool = Executors.newFixedThreadPool(3);
+    try
+    {
+      parallel.setThreads(pool, 3);
+      double f = serial.fun(w);
+      assertEquals(f, parallel.fun(w), EPS * Math.abs(f));
+      double[] expected = new double[n];
+      double[] actual = new double[n];
+      serial.grad(w, expected);
+      parallel.grad(w, actual);
+      assertArrayEquals(expected, actual, EPS);
+      serial.Hv(s, expected);
+      parallel.Hv(s, actual);
+      assertArrayEquals(expected, actual, EPS);
+    }
+    finally
+    {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testProgressPerBlock() throws Exception
+  {
+    // 200 instances on 4 threads: each block counts its 50 rows in Xv and 50 in the loss
+    LibLinearDataset dataset =
+        TestLibLinearDatasetCsr.build(new LibLinearDataset(1.0),
+                                      TestLibLinearDatasetCsr.randomInstances(new Random(1), false));
+    assertEquals(200, dataset.nInstances());
+    int n = dataset.nFeatures();
+    double[] priorVar = TestLibLinearDatasetCsr.random(new Random(3), n, 0.5);
+    LogisticRegressionL2 func = new LogisticRegressionL2(dataset, new double[n], priorVar, 1.0, 1.0, 1.0);
+    CountingReporter reporter = new CountingReporter();
+    func.setReporter(reporter, 10);
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    try
+    {
+      func.setThreads(pool, 4);
+      func.fun(new double[n]);
+    }
+    finally
+    {
+      pool.shutdown();
+    }
+    // one report at the start of fun(), and 100 / 10 per block
+    assertEquals(1 + 4 * 10, reporter._progress.get());
+  }
+}